@@ -50,7 +50,6 @@ import java.rmi.RemoteException;
 import java.rmi.NoSuchObjectException;
 import java.rmi.ServerException;
 
-import javax.rmi.PortableRemoteObject;
 
 import java.util.List;
 import java.util.ArrayList;
@@ -65,12 +64,14 @@ import org.ow2.carol.rmi.exception.RmiUtility;
  * Implementation of the object that represents a transaction.
  * This remote object has been created by a TransactionFactory.
  * It extends The RemoteControl Remote Interface
+ * It is exported when returned by the remote TransactionFactory, or
+ * when its transaction context is shipped to another JVM.
  *
  * @see	   org.objectweb.jotm.TransactionFactory
  *
  */
 public class ControlImpl
-    extends PortableRemoteObject
+    extends LazyRemoteObject
     implements Control, Resource, Coordinator, Terminator, RecoveryCoordinator, TimerEventListener {
 
     /**
@@ -101,6 +102,10 @@ public class ControlImpl
      * @serial
      */
     private Log mylog;
+    /**
+     * Factory indexing this Control, or null
+     */
+    private transient TransactionFactoryImpl factory;
 
     // ---------------------------------------------------------------
     // Constructors
@@ -115,6 +120,18 @@ public class ControlImpl
      * org.objectweb.jotm.Coordinator or a org.omg.CosTransactions.Coordinator
      */
     ControlImpl(int timeout, Xid x, Object supco) throws RemoteException {
+        this(timeout, x, supco, null);
+    }
+
+    /**
+     * Constructor for create or recreate by a TransactionFactory
+     *
+     * @param timeout		Timeout in seconds for this transaction
+     * @param x	     	Xid allocated to this transaction
+     * @param supco		Superior coordinator (null if create)
+     * @param factory		TransactionFactory to tell when this object is destroyed
+     */
+    ControlImpl(int timeout, Xid x, Object supco, TransactionFactoryImpl factory) throws RemoteException {
         if (TraceTm.jotm.isDebugEnabled()) {
             TraceTm.jotm.debug("timeout="+ timeout +", xid="+ x +", supco="+ supco);
         }
@@ -124,6 +141,7 @@ public class ControlImpl
             mystatus = Status.STATUS_ACTIVE;
             xid = x;
             hasSupCoord = (supco != null);
+            this.factory = factory;
 
             // XXX In case of sub-coordinator, should we arm a timer for rollback ???
             mytimer = TimerManager.getInstance().addTimer(this, timeout, Integer.valueOf(1), false);
@@ -132,9 +150,13 @@ public class ControlImpl
         // If sub-coord, register resource
         if (supco != null) {
             try {
-                if (supco instanceof Coordinator)
+                if (supco instanceof ControlImpl) {
+                    // local superior: no need to export
+                    ((ControlImpl) supco).register_resource(this);
+                } else if (supco instanceof Coordinator) {
+                    export();
                     ((Coordinator) supco).register_resource(this);
-                else
+                } else
                     // XXX CORBA Cordinator not taken into account
                     // register the control as a CORBA resource in the remote CORBA Coordinator (we use a wraper)
                     //((org.omg.CosTransactions.Coordinator) supco).register_resource(new ControlResourceImpl(this));
@@ -375,7 +397,7 @@ public class ControlImpl
 
         case Status.STATUS_MARKED_ROLLBACK :
             // Synchronization objects
-            int errors = do_before_completion();
+            int errors = do_before_completion(false);
 
             if (errors > 0) {
                 TraceTm.jotm.info("ControlImpl.commit(boolean): before completion error at rollback");
@@ -407,7 +429,7 @@ public class ControlImpl
             TraceTm.jotm.debug("1 resource");
 
             // Synchronization objects
-            int errors = do_before_completion();
+            int errors = do_before_completion(true);
 
             if (errors > 0) {
                 TraceTm.jotm.info("before completion error -> rollback");
@@ -572,7 +594,7 @@ public class ControlImpl
         // Superior coordinator.
         if (!hasSupCoord) {
             // Synchronization objects
-            int errors = do_before_completion();
+            int errors = do_before_completion(false);
             if (errors > 0) {
                 TraceTm.jotm.info("ControlImpl.rollback(): before completion error at rollback");
             }
@@ -764,6 +786,8 @@ public class ControlImpl
             } catch (Exception e) {
                 TraceTm.jotm.error("ControlImpl.timeoutExpired(Object): rollback raised exception ", e);
             }
+            // forget this ControlImpl later, as after an explicit rollback
+            completed(true);
             break;
         case 2 :
             if (TraceTm.jotm.isDebugEnabled()) {
@@ -808,7 +832,7 @@ public class ControlImpl
         int ret = Resource.VOTE_READONLY;
 
         // Synchronization objects
-        errors = do_before_completion();
+        errors = do_before_completion(true);
 
         if (errors > 0) {
             if (TraceTm.jotm.isDebugEnabled()) {
@@ -1078,10 +1102,12 @@ public class ControlImpl
             TraceTm.jotm.debug("");
         }
 
+        if (factory != null) {
+            factory.removeControl(this, xid);
+        }
+
         // unexportObject explicitly
-        try {
-            unexportObject(this);
-        } catch (Exception e) {}
+        unexport();
     }
 
     /**
@@ -1107,21 +1133,40 @@ public class ControlImpl
     }
 
     /**
-     * Sends before_completion to the registered synchronizations
+     * Sends before_completion to the registered synchronizations.
+     * A synchronization that is also a Resource is the SubCoordinator of a
+     * JVM, calling all the synchronizations of that JVM: on rollback, it is
+     * not called, as its rollback will do what is needed.
+     * The synchronizations are called concurrently if the ResourceFanOut
+     * is enabled.
      *
+     * @param committing	false if the transaction is rolled back
      * @return		0 if no error
      */
-    private int do_before_completion() {
+    private int do_before_completion(boolean committing) {
         if (TraceTm.jotm.isDebugEnabled()) {
             TraceTm.jotm.debug("ControlImpl.do_before_completion()");
             TraceTm.jotm.debug("synchronizationList.size()="+ synchronizationList.size());
         }
 
+        List<RemoteSynchro> syncs = synchronizations(committing);
         int errors = 0;
 
-        for (int i = 0; i < synchronizationList.size(); i++) {
+        ResourceFanOut fanout = ResourceFanOut.getInstance();
+        if (fanout != null && syncs.size() > 1) {
+            Object[] results = fanout.beforeCompletion(syncs, this);
+            for (int i = 0; i < results.length; i++) {
+                if (results[i] != null) {
+                    TraceTm.jotm.error("before_completion raised exception ", (Throwable) results[i]);
+                    errors++;
+                }
+            }
+            return errors;
+        }
+
+        for (int i = 0; i < syncs.size(); i++) {
 
-            RemoteSynchro sync = (RemoteSynchro) synchronizationList.get(i);
+            RemoteSynchro sync = syncs.get(i);
 
             try {
                 sync.before_completion(this);
@@ -1134,7 +1179,9 @@ public class ControlImpl
     }
 
     /**
-     * Sends after_completion to the registered synchronizations
+     * Sends after_completion to the registered synchronizations.
+     * The SubCoordinators are not called: they call their synchronizations
+     * when their own branch completes.
      */
     private void do_after_completion() {
 
@@ -1144,8 +1191,21 @@ public class ControlImpl
             TraceTm.jotm.debug("synchronizationList.size()="+ synchronizationList.size());
         }
 
-        for (int i = 0; i < synchronizationList.size(); i++) {
-            RemoteSynchro sync = (RemoteSynchro) synchronizationList.get(i);
+        List<RemoteSynchro> syncs = synchronizations(false);
+
+        ResourceFanOut fanout = ResourceFanOut.getInstance();
+        if (fanout != null && syncs.size() > 1) {
+            Object[] results = fanout.afterCompletion(syncs, this, mystatus);
+            for (int i = 0; i < results.length; i++) {
+                if (results[i] != null) {
+                    TraceTm.jotm.error("after_completion raised exception ", (Throwable) results[i]);
+                }
+            }
+            return;
+        }
+
+        for (int i = 0; i < syncs.size(); i++) {
+            RemoteSynchro sync = syncs.get(i);
 
             try {
                 sync.after_completion(this, mystatus);
@@ -1154,4 +1214,20 @@ public class ControlImpl
             }
         }
     }
+
+    /**
+     * Copy the synchronizations to be called, as a synchronization may
+     * register others while being called.
+     * @param all include the SubCoordinators
+     * @return the synchronizations
+     */
+    private synchronized List<RemoteSynchro> synchronizations(boolean all) {
+        List<RemoteSynchro> syncs = new ArrayList<RemoteSynchro>(synchronizationList.size());
+        for (RemoteSynchro sync : synchronizationList) {
+            if (all || !(sync instanceof Resource)) {
+                syncs.add(sync);
+            }
+        }
+        return syncs;
+    }
 }
@@ -50,6 +50,8 @@ package org.objectweb.jotm;
 
 import java.io.Serializable;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.naming.NamingException;
 import javax.naming.Reference;
@@ -104,9 +106,9 @@ public class Current implements UserTransaction, TransactionManager, Referenceab
  
     /*
      * Static hashtable: Xid ---> transaction
-     * All accesses must be synchronized (we use the Current lock monitor)
+     * Concurrent map: no lock is needed, iterations are weakly consistent.
      */
-    private transient static Map<Xid, TransactionImpl> txXids = new HashMap<Xid, TransactionImpl>();
+    private transient static ConcurrentMap<Xid, TransactionImpl> txXids = new ConcurrentHashMap<Xid, TransactionImpl>();
 
     // Must be init at null, for clients that do not get UserTransaction
     private transient static Current unique = null;
@@ -121,11 +123,8 @@ public class Current implements UserTransaction, TransactionManager, Referenceab
     private static boolean transactionRecovery = DEFAULT_RECOVERY;
     private static boolean appServer = true;
     
-    // management counter
-    private transient int nb_bg_tx = 0;
-    private transient int nb_rb_tx = 0;
-    private transient int nb_cm_tx = 0;
-    private transient int nb_to = 0;
+    // management counters
+    private transient TransactionMetrics metrics;
 
     // ------------------------------------------------------------------
     // Constructors
@@ -137,8 +136,11 @@ public class Current implements UserTransaction, TransactionManager, Referenceab
      */
     public Current() {
         unique = this;
-        timermgr = TimerManager.getInstance();
+        // jotm.properties is loaded by the recovery: do it before
+        // the TimerManager is configured.
         transactionRecovery();
+        timermgr = TimerManager.getInstance();
+        metrics = TransactionMetrics.getInstance();
     }
 
     /**
@@ -151,8 +153,9 @@ public class Current implements UserTransaction, TransactionManager, Referenceab
     public Current(TransactionFactory tmfact) {
         unique = this;
         setTMFactory(tmfact);
-        timermgr = TimerManager.getInstance();
         transactionRecovery();
+        timermgr = TimerManager.getInstance();
+        metrics = TransactionMetrics.getInstance();
     }
 
     /**
@@ -214,16 +217,14 @@ public class Current implements UserTransaction, TransactionManager, Referenceab
         // checks that no transaction is already associated with this thread.
         TransactionImpl tx = threadTx.get();
         if (tx != null) {
-            synchronized(this) {
-                if (txXids.containsValue(tx)) {
-                    if (! txcanrollback(tx)) {
-                        TraceTm.jta.debug("Nested transactions not supported");
-                        throw new NotSupportedException("Nested transactions not supported");
-                    }
-                } else {
-                    if (TraceTm.jta.isDebugEnabled()) {
-                        TraceTm.jta.debug("Resetting current tx = " + tx + " since it is already completed.");
-                    }
+            if (isRegistered(tx)) {
+                if (! txcanrollback(tx)) {
+                    TraceTm.jta.debug("Nested transactions not supported");
+                    throw new NotSupportedException("Nested transactions not supported");
+                }
+            } else {
+                if (TraceTm.jta.isDebugEnabled()) {
+                    TraceTm.jta.debug("Resetting current tx = " + tx + " since it is already completed.");
                 }
             }
         }
@@ -266,6 +267,10 @@ public class Current implements UserTransaction, TransactionManager, Referenceab
             TraceTm.jta.debug("threadTx set to " + tx);
         }
 
+        // sets the time stamp for the transaction
+        // (before it becomes visible to the monitoring methods)
+        tx.setTxDate(new Date());
+
         // associates this Tx with the Xid
         putTxXid(otid, tx);
 
@@ -273,9 +278,6 @@ public class Current implements UserTransaction, TransactionManager, Referenceab
         if (timermgr != null) {
             tx.setTimer(timermgr.addTimer(tx, transactionTimeout, null, false));
         }
-        
-        // sets the time stamp for the transaction
-        tx.setTxDate(new Date());
 
     }
 
@@ -333,16 +335,14 @@ public class Current implements UserTransaction, TransactionManager, Referenceab
         // checks that no transaction is already associated with this thread.
         TransactionImpl tx = threadTx.get();
         if (tx != null) {
-            synchronized(this) {
-                if (txXids.containsValue(tx)) {
-                    if (! txcanrollback(tx)) {
-                        throw new NotSupportedException("Nested transactions not supported");
-                    }
-                }
-                if (TraceTm.jta.isDebugEnabled()) {
-                    TraceTm.jta.debug("Resetting current tx = " + tx + " since it is already completed.");
+            if (isRegistered(tx)) {
+                if (! txcanrollback(tx)) {
+                    throw new NotSupportedException("Nested transactions not supported");
                 }
             }
+            if (TraceTm.jta.isDebugEnabled()) {
+                TraceTm.jta.debug("Resetting current tx = " + tx + " since it is already completed.");
+            }
         }
 
         // stores the passed xid components
@@ -359,6 +359,10 @@ public class Current implements UserTransaction, TransactionManager, Referenceab
             TraceTm.jta.debug("threadTx set to " + tx);
         }
 
+        // sets the time stamp for the transaction
+        // (before it becomes visible to the monitoring methods)
+        tx.setTxDate(new Date());
+
         // associates this Tx with the Xid
         putTxXid(pxid, tx);
 
@@ -366,9 +370,6 @@ public class Current implements UserTransaction, TransactionManager, Referenceab
         if (timermgr != null) {
             tx.setTimer(timermgr.addTimer(tx, (int) timeout, null, false));
         }
-
-        // sets the time stamp for the transaction
-        tx.setTxDate(new Date());
     }
 
     /**
@@ -563,16 +564,12 @@ public class Current implements UserTransaction, TransactionManager, Referenceab
         
         TransactionImpl tx = threadTx.get();
 
-        if (tx != null) {
-            synchronized(this) {
-                if (txXids.containsValue(tx)) {
-                    if (TraceTm.jta.isDebugEnabled()) {
-                        TraceTm.jta.debug("Cannot reset transaction timeout, tx in execution");
-                    }
-                    // Cannot reset transaction timeout, tx (ut.begin)in execution, ignore.
-                    return;
-                }
+        if (tx != null && isRegistered(tx)) {
+            if (TraceTm.jta.isDebugEnabled()) {
+                TraceTm.jta.debug("Cannot reset transaction timeout, tx in execution");
             }
+            // Cannot reset transaction timeout, tx (ut.begin)in execution, ignore.
+            return;
         }
 
         threadTimeout.set(timeout);
@@ -944,12 +941,13 @@ public class Current implements UserTransaction, TransactionManager, Referenceab
                     TraceTm.jta.debug("new Tx");
                 }
                 tx = new TransactionImpl(pctx);
-                // In case the Tx is already rolled back, this has to be undone
-                // at some time.
-                putTxXid(xid, tx);
 
                 // sets the time stamp for the transaction
                 tx.setTxDate(new Date());
+
+                // In case the Tx is already rolled back, this has to be undone
+                // at some time.
+                putTxXid(xid, tx);
             }
 
         } else {
@@ -1017,14 +1015,16 @@ public class Current implements UserTransaction, TransactionManager, Referenceab
      *
      * @param xid <code>Xid</code> of the transaction
      */
-    public synchronized void forgetTx(Xid xid) {
+    public void forgetTx(Xid xid) {
         if (TraceTm.jotm.isDebugEnabled()) {
             TraceTm.jotm.debug("xid=" + xid);
         }
 
-        // Only clear threadTx if this thread is working on its Xid
-        TransactionImpl txCur = txXids.get(xid);
+        // Remove first: if several threads forget the same transaction,
+        // only one of them gets it and cleans it up.
+        TransactionImpl txCur = removeTxXid(xid);
 
+        // Only clear threadTx if this thread is working on its Xid
         if (txCur != null && txCur.equals(threadTx.get())) {
             threadTx.set(null);
             if (TraceTm.jta.isDebugEnabled()) {
@@ -1034,7 +1034,6 @@ public class Current implements UserTransaction, TransactionManager, Referenceab
         if (txCur != null) {
             txCur.cleanup();
         }
-        removeTxXid(xid);
     }
 
     /**
@@ -1042,21 +1041,21 @@ public class Current implements UserTransaction, TransactionManager, Referenceab
      * @param xid <code>Xid</code> of the transaction
      * @return the TransactionImpl
      */
-    public synchronized TransactionImpl getTxByXid(Xid xid) {
+    public TransactionImpl getTxByXid(Xid xid) {
         return txXids.get(xid);
     }
 
     /**
      * Get the Xid's of all prepared transactions.
+     * The list is a snapshot: transactions may begin or complete meanwhile.
      * @return array of all Xids in the prepared state
      */
-    public synchronized javax.transaction.xa.Xid[] getPreparedHeuristicXid() {
-        if (txXids.size() <= 0) {
+    public javax.transaction.xa.Xid[] getPreparedHeuristicXid() {
+        if (txXids.isEmpty()) {
             return null;
         }
         ArrayList<Xid> xidlist = new ArrayList<Xid>();
-        for (Xid key : txXids.keySet()) {
-            TransactionImpl tx = txXids.get(key);
+        for (TransactionImpl tx : txXids.values()) {
             try {
                 if (tx.getStatus() == Status.STATUS_PREPARED) {
                     xidlist.add(tx.getXid());
@@ -1070,28 +1069,28 @@ public class Current implements UserTransaction, TransactionManager, Referenceab
 
     /**
      * Get all Xid's associated with this transaction.
+     * The list is a snapshot: transactions may begin or complete meanwhile.
      * @return array of all Xids
      */
-    public synchronized javax.transaction.xa.Xid[] getAllXid() {
-        int xidCount = txXids.size();
-        if (xidCount == 0) {
+    public javax.transaction.xa.Xid[] getAllXid() {
+        if (txXids.isEmpty()) {
             return null;
         }
 
-        ArrayList<javax.transaction.xa.Xid> xidlist = new ArrayList<javax.transaction.xa.Xid>();
-        for (javax.transaction.xa.Xid key : txXids.keySet()) {
-            xidlist.add(key);
+        ArrayList<javax.transaction.xa.Xid> xidlist = new ArrayList<javax.transaction.xa.Xid>(txXids.keySet());
+        if (xidlist.isEmpty()) {
+            return null;
         }
-        return (javax.transaction.xa.Xid[]) xidlist.toArray();
+        return xidlist.toArray(new javax.transaction.xa.Xid[xidlist.size()]);
     }
 
     /**
      * Get all executing transactions.
+     * The list is a snapshot: transactions may begin or complete meanwhile.
      * @return array of all Transactions in execution
      */
-    public synchronized String [] getAllTx() {
-        int txCount = txXids.size();
-        if (txCount <= 0) {
+    public String [] getAllTx() {
+        if (txXids.isEmpty()) {
             return null;
         }
 
@@ -1099,8 +1098,7 @@ public class Current implements UserTransaction, TransactionManager, Referenceab
         List        txResourceList;
         int         txResourceCount;
         String      txStatusName;
-        for (Xid key : txXids.keySet()) {
-            TransactionImpl mytx = txXids.get(key);
+        for (TransactionImpl mytx : txXids.values()) {
             
             try {
                 txStatusName = StatusHelper.getStatusName(mytx.getStatus());
@@ -1125,12 +1123,10 @@ public class Current implements UserTransaction, TransactionManager, Referenceab
             }
         }
 
-        String [] myTxString = new String[txCount];
-        for (int i = 0; i < txCount; i++) {
-            myTxString[i] = txList.get(i);
+        if (txList.isEmpty()) {
+            return null;
         }
-
-        return myTxString;
+        return txList.toArray(new String[txList.size()]);
     }
 
     /**
@@ -1551,10 +1547,19 @@ public class Current implements UserTransaction, TransactionManager, Referenceab
         }
     }
 
+    /*
+     * Is this transaction still in the hashtable ?
+     * Transactions are equal if their Xid are equal.
+     */
+    private boolean isRegistered(TransactionImpl tx) {
+        Xid xid = tx.getXid();
+        return xid != null && txXids.containsKey(xid);
+    }
+
     /*
      * put the Tx/Xid mapping into the hashtable.
      */
-    private synchronized void putTxXid(Xid xid, TransactionImpl tx) {
+    private void putTxXid(Xid xid, TransactionImpl tx) {
         if (TraceTm.jta.isDebugEnabled()) {
             TraceTm.jta.debug("Associate tx to xid (xid=" + xid + ") tx =" + tx);
         }
@@ -1564,8 +1569,8 @@ public class Current implements UserTransaction, TransactionManager, Referenceab
     /*
      * given the Xid, get the corresponding Tx from the hashtable.
      */
-    private synchronized TransactionImpl getTxXid(Xid xid) {
-        TransactionImpl tx = (TransactionImpl) txXids.get(xid);
+    private TransactionImpl getTxXid(Xid xid) {
+        TransactionImpl tx = txXids.get(xid);
         if (TraceTm.jta.isDebugEnabled()) {
             TraceTm.jta.debug("get tx from xid (xid="+ xid +") tx =" + tx);
         }
@@ -1574,12 +1579,13 @@ public class Current implements UserTransaction, TransactionManager, Referenceab
 
     /*
      * removeTxXid method.
+     * @return the transaction removed, or null if not found
      */
-    private synchronized void removeTxXid(Xid xid) {
+    private TransactionImpl removeTxXid(Xid xid) {
         if (TraceTm.jta.isDebugEnabled()) {
             TraceTm.jta.debug("remove tx from xid (xid="+ xid +")");
         }
-        txXids.remove(xid);
+        return txXids.remove(xid);
     }
 
     /**
@@ -1599,18 +1605,15 @@ public class Current implements UserTransaction, TransactionManager, Referenceab
      *
      * @return current number of transaction
      */
-    public synchronized int getTotalCurrentTransactions() {
+    public int getTotalCurrentTransactions() {
         return txXids.size();
     }
 
     /**
      * Increments number of begun transactions by one.
      */
-    synchronized void incrementBeginCounter() {
-        nb_bg_tx++;
-        if (TraceTm.jta.isDebugEnabled()) {
-            TraceTm.jta.debug("nb_bg_tx="+nb_bg_tx);
-        }
+    void incrementBeginCounter() {
+        metrics().transactionBegun();
     }
 
     /**
@@ -1618,17 +1621,14 @@ public class Current implements UserTransaction, TransactionManager, Referenceab
      * @return total number of begun transactions
      */
     public int getTotalBegunTransactions() {
-        return nb_bg_tx;
+        return toInt(metrics().getBegunTransactions());
     }
 
     /**
      * Increments the number of rolled back transaction by one.
      */
-    synchronized void incrementRollbackCounter() {
-        nb_rb_tx++;
-        if (TraceTm.jta.isDebugEnabled()) {
-            TraceTm.jta.debug("nb_rb_tx="+nb_rb_tx);
-        }
+    void incrementRollbackCounter() {
+        metrics().transactionRolledback();
     }
 
     /**
@@ -1636,17 +1636,14 @@ public class Current implements UserTransaction, TransactionManager, Referenceab
      * @return total number of rolled back transactions
      */
     public int getTotalRolledbackTransactions() {
-        return nb_rb_tx;
+        return toInt(metrics().getRolledbackTransactions());
     }
 
     /**
      * Increments the number of of committed transactions by one.
      */
-    synchronized void incrementCommitCounter() {
-        nb_cm_tx++;
-        if (TraceTm.jta.isDebugEnabled()) {
-            TraceTm.jta.debug("nb_cm_tx="+nb_cm_tx);
-        }
+    void incrementCommitCounter() {
+        metrics().transactionCommitted();
     }
 
     /**
@@ -1655,27 +1652,21 @@ public class Current implements UserTransaction, TransactionManager, Referenceab
      * @return total number of commited transactions
      */
     public int getTotalCommittedTransactions() {
-        return nb_cm_tx;
+        return toInt(metrics().getCommittedTransactions());
     }
 
     /**
      * Resets total number of transactions.
      */
-    public synchronized void resetAllTxTotalCounters() {
-        nb_bg_tx = 0;
-        nb_cm_tx = 0;
-        nb_rb_tx = 0;
-        nb_to = 0;
+    public void resetAllTxTotalCounters() {
+        metrics().reset();
     }
 
     /**
      * Increments number of rolled back transactions due to timeout by one.
      */
-    synchronized void incrementExpiredCounter() {
-        nb_to++;
-        if (TraceTm.jta.isDebugEnabled()) {
-            TraceTm.jta.debug("nb_to="+nb_to);
-        }
+    void incrementExpiredCounter() {
+        metrics().transactionExpired();
     }
 
     /**
@@ -1683,22 +1674,49 @@ public class Current implements UserTransaction, TransactionManager, Referenceab
      * @return number of rolled back transactions due to timeout
      */
     public int getTotalExpiredTransactions() {
-        return nb_to;
+        return toInt(metrics().getExpiredTransactions());
     }
 
     /**
      * Returns all counters.
      * @return an array of all counters (current tx, begun tx, committed tx,
      * rolled back tx, timeouted tx)
+     * @deprecated use getMetrics().snapshot(), whose counters do not wrap.
      */
-    public synchronized Integer[] getTransactionCounters() {
+    public Integer[] getTransactionCounters() {
+        TransactionMetrics.Snapshot snap = metrics().snapshot();
         Integer[] result = new Integer[5];
-        result[0] = txXids.size();
-        result[1] = nb_bg_tx;
-        result[2] = nb_cm_tx;
-        result[3] = nb_rb_tx;
-        result[4] = nb_to;
+        result[0] = toInt(snap.getCurrentTransactions());
+        result[1] = toInt(snap.getBegunTransactions());
+        result[2] = toInt(snap.getCommittedTransactions());
+        result[3] = toInt(snap.getRolledbackTransactions());
+        result[4] = toInt(snap.getExpiredTransactions());
         return result;
     }
 
+    /**
+     * Returns the transaction counters and latency histograms.
+     * @return the metrics of this transaction manager
+     */
+    public TransactionMetrics getMetrics() {
+        return metrics();
+    }
+
+    /**
+     * The field is transient: get the metrics again after a deserialization.
+     */
+    private TransactionMetrics metrics() {
+        if (metrics == null) {
+            metrics = TransactionMetrics.getInstance();
+        }
+        return metrics;
+    }
+
+    /**
+     * Saturate a counter to keep the int based management methods usable.
+     */
+    private static int toInt(long value) {
+        return value > Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) value;
+    }
+
 }
@@ -0,0 +1,394 @@
+/*
+ * @(#) GroupCommitLog.java
+ *
+ * JOTM: Java Open Transaction Manager
+ *
+ *
+ * This module was originally developed by
+ *
+ *  - Bull S.A. as part of the JOnAS application server code released in
+ *    July 1999 (www.bull.com)
+ *
+ * --------------------------------------------------------------------------
+ *  The original code and portions created by Bull SA are
+ *  Copyright (c) 1999 BULL SA
+ *  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * -Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * -Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * --------------------------------------------------------------------------
+ * $Id$
+ * --------------------------------------------------------------------------
+ */
+package org.objectweb.jotm;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.objectweb.howl.log.LogException;
+import org.objectweb.howl.log.xa.XACommittingTx;
+import org.objectweb.howl.log.xa.XALogger;
+
+/**
+ * Group commit stage in front of the HOWL XALogger.
+ * Grouping is off by default (jotm.recovery.GroupCommitSize is 1): each
+ * record is then written directly by the committing thread.
+ * When it is on, the commit records of concurrent transactions are queued, and a writer
+ * thread logs them together in one XACOMMIT record, so that only one forced
+ * write is done for the whole batch. The writer waits at most <i>window</i>
+ * for other records once it has one, and never puts more than
+ * <i>maxBatch</i> transactions in a record. With a window of 0, only the
+ * records queued while the previous force was in progress are grouped.
+ *
+ * All the transactions of a batch share the same XACommittingTx. The XADONE
+ * record (not forced) is written once all of them are done.
+ * <p>
+ * So a transaction of a batch that never completes its phase 2 (for example
+ * a resource left to the recovery) keeps the XACOMMIT record of the whole
+ * batch in the log: HOWL carries it forward at each log file switch, and
+ * replays all the transactions of the batch at restart. This is not timed
+ * out: writing the XADONE record before the last transaction is done would
+ * lose its commit decision. The records of the other transactions of the
+ * batch are only replayed again, which recovery handles as for any
+ * committed transaction whose done record is missing.
+ * @param <T> the handle of a logged commit record
+ */
+class GroupCommitLog<T> implements Runnable {
+
+    /**
+     * The log written by a GroupCommitLog
+     * @param <T> the handle of a logged commit record
+     */
+    interface Log<T> {
+
+        /**
+         * Write a commit record and force it.
+         */
+        T putCommit(byte[][] record) throws LogException, IOException, InterruptedException;
+
+        /**
+         * Write the done record of a commit record.
+         */
+        void putDone(byte[][] record, T tx) throws LogException, IOException, InterruptedException;
+    }
+
+    private final Log<T> xaLog;
+
+    /**
+     * max time (ns) to wait for other records
+     */
+    private final long window;
+
+    /**
+     * max number of transactions in an XACOMMIT record
+     */
+    private final int maxBatch;
+
+    /**
+     * commit requests waiting for the writer
+     */
+    private final LinkedList<Request<T>> queue = new LinkedList<Request<T>>();
+
+    /**
+     * number of done still expected for a batched commit record
+     */
+    private final Map<T, AtomicInteger> pendingDone =
+        Collections.synchronizedMap(new IdentityHashMap<T, AtomicInteger>());
+
+    private final Thread writer;
+
+    private boolean closed = false;
+
+    // statistics
+    private final AtomicLong forces = new AtomicLong();
+    private final AtomicLong records = new AtomicLong();
+
+    /**
+     * Group the commit records written in a HOWL log.
+     * @param xaLog opened HOWL log
+     * @param windowMicros max time (micro seconds) to wait for other records
+     * @param maxBatch max number of transactions in an XACOMMIT record
+     * @return the group commit stage
+     */
+    static GroupCommitLog<XACommittingTx> howl(final XALogger xaLog, long windowMicros, int maxBatch) {
+        Log<XACommittingTx> log = new Log<XACommittingTx>() {
+            public XACommittingTx putCommit(byte[][] record)
+                throws LogException, IOException, InterruptedException {
+                return xaLog.putCommit(record);
+            }
+            public void putDone(byte[][] record, XACommittingTx tx)
+                throws LogException, IOException, InterruptedException {
+                xaLog.putDone(record, tx);
+            }
+        };
+        return new GroupCommitLog<XACommittingTx>(log, windowMicros, maxBatch);
+    }
+
+    /**
+     * Constructor
+     * @param xaLog log where the records are written
+     * @param windowMicros max time (micro seconds) to wait for other records
+     * @param maxBatch max number of transactions in an XACOMMIT record
+     */
+    GroupCommitLog(Log<T> xaLog, long windowMicros, int maxBatch) {
+        this.xaLog = xaLog;
+        this.window = windowMicros * 1000L;
+        this.maxBatch = maxBatch < 1 ? 1 : maxBatch;
+        if (this.maxBatch > 1) {
+            writer = new Thread(this, "JotmGroupCommit");
+            writer.setDaemon(true);
+            writer.start();
+        } else {
+            writer = null;
+        }
+    }
+
+    /**
+     * Log a commit record, grouped with the concurrent ones.
+     * @param record the commit record of one transaction
+     * @return the handle to give to putDone
+     * @throws LogException could not log the record
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    T putCommit(byte[][] record) throws LogException, IOException, InterruptedException {
+        if (writer == null) {
+            forces.incrementAndGet();
+            records.incrementAndGet();
+            return xaLog.putCommit(record);
+        }
+        Request<T> req = new Request<T>(record);
+        synchronized (queue) {
+            if (closed) {
+                throw new LogException("Group commit log closed");
+            }
+            queue.addLast(req);
+            queue.notifyAll();
+        }
+        return req.await();
+    }
+
+    /**
+     * Log the done record of a transaction. For a batch, the record is
+     * written only when the last transaction of the batch is done, so it
+     * is never written if one of them never calls putDone.
+     * @param record the done record
+     * @param tx the handle returned by putCommit
+     * @throws LogException could not log the record
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    void putDone(byte[][] record, T tx) throws LogException, IOException, InterruptedException {
+        AtomicInteger remaining = pendingDone.get(tx);
+        if (remaining != null) {
+            if (remaining.decrementAndGet() > 0) {
+                return;
+            }
+            pendingDone.remove(tx);
+        }
+        xaLog.putDone(record, tx);
+    }
+
+    /**
+     * Declare the number of transactions found in a replayed XACOMMIT record.
+     * @param tx the handle of the replayed record
+     * @param count number of transactions in the record
+     */
+    void expectDone(T tx, int count) {
+        if (count > 1) {
+            pendingDone.put(tx, new AtomicInteger(count));
+        }
+    }
+
+    /**
+     * @return number of XACOMMIT records written
+     */
+    long getForceCount() {
+        return forces.get();
+    }
+
+    /**
+     * @return number of transactions logged
+     */
+    long getRecordCount() {
+        return records.get();
+    }
+
+    /**
+     * Stop the writer. Requests still queued are written before.
+     */
+    void close() {
+        if (writer == null) {
+            return;
+        }
+        synchronized (queue) {
+            closed = true;
+            queue.notifyAll();
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Writer thread
+     */
+    public void run() {
+        List<Request<T>> batch = new ArrayList<Request<T>>(maxBatch);
+        while (true) {
+            try {
+                synchronized (queue) {
+                    while (queue.isEmpty() && !closed) {
+                        queue.wait();
+                    }
+                    if (queue.isEmpty()) {
+                        return;
+                    }
+                    if (window > 0) {
+                        long deadline = System.nanoTime() + window;
+                        long left;
+                        while (!closed && queue.size() < maxBatch
+                               && (left = deadline - System.nanoTime()) > 0) {
+                            queue.wait(left / 1000000L, (int) (left % 1000000L));
+                        }
+                    }
+                    while (!queue.isEmpty() && batch.size() < maxBatch) {
+                        batch.add(queue.removeFirst());
+                    }
+                }
+            } catch (InterruptedException e) {
+                // keep on writing: committers are waiting
+                continue;
+            }
+            write(batch);
+            batch.clear();
+        }
+    }
+
+    /**
+     * Write a batch in one XACOMMIT record and wake up its committers.
+     */
+    private void write(List<Request<T>> batch) {
+        byte[][] fields;
+        int size = batch.size();
+        if (size == 1) {
+            fields = batch.get(0).record;
+        } else {
+            int count = 0;
+            for (int i = 0; i < size; i++) {
+                count += batch.get(i).record.length;
+            }
+            fields = new byte[count][];
+            int pos = 0;
+            for (int i = 0; i < size; i++) {
+                byte[][] record = batch.get(i).record;
+                System.arraycopy(record, 0, fields, pos, record.length);
+                pos += record.length;
+            }
+        }
+
+        T tx = null;
+        Exception error = null;
+        try {
+            tx = xaLog.putCommit(fields);
+            if (size > 1) {
+                pendingDone.put(tx, new AtomicInteger(size));
+            }
+            forces.incrementAndGet();
+            records.addAndGet(size);
+        } catch (Exception e) {
+            TraceTm.jotm.error("Cannot write group commit record of " + size + " transactions", e);
+            error = e;
+        }
+        for (int i = 0; i < size; i++) {
+            batch.get(i).complete(tx, error);
+        }
+    }
+
+    /**
+     * A commit record waiting to be written
+     */
+    private static class Request<T> {
+
+        final byte[][] record;
+        private boolean done = false;
+        private T tx;
+        private Exception error;
+
+        Request(byte[][] record) {
+            this.record = record;
+        }
+
+        synchronized void complete(T tx, Exception error) {
+            this.tx = tx;
+            this.error = error;
+            done = true;
+            notifyAll();
+        }
+
+        /**
+         * Wait until the record is forced. The wait cannot be interrupted,
+         * since the record may be written anyway.
+         */
+        synchronized T await() throws LogException, IOException, InterruptedException {
+            boolean interrupted = false;
+            while (!done) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            if (error == null) {
+                return tx;
+            }
+            if (error instanceof LogException) {
+                throw (LogException) error;
+            }
+            if (error instanceof IOException) {
+                throw (IOException) error;
+            }
+            if (error instanceof InterruptedException) {
+                throw (InterruptedException) error;
+            }
+            if (error instanceof RuntimeException) {
+                throw (RuntimeException) error;
+            }
+            IOException ioe = new IOException(error.getMessage());
+            ioe.initCause(error);
+            throw ioe;
+        }
+    }
+}
@@ -44,7 +44,6 @@ package org.objectweb.jotm;
 
 import java.io.Serializable;
 import java.nio.ByteBuffer;
-import java.security.SecureRandom;
 import javax.transaction.xa.Xid;
 
 /**
@@ -68,22 +67,17 @@ import javax.transaction.xa.Xid;
  */
 public class JavaXidImpl implements Xid, Serializable  {
 
-    public static final int JOTM_FORMAT_ID = 0xBB14;
+    /**
+     * Serial version UID of the former versions, whose serialized form is
+     * still read.
+     */
+    private static final long serialVersionUID = 8064538006260053476L;
 
-    // these cells are gated by this.getClass()
-    private static SecureRandom rand = null;    // (also used as first-time flag)
-    private final  byte internalVersId = 1;
-    private static int count = 1;
-    private static long uuid0;
-    private static long uuid1;
-    private static boolean uuidsRecovered = false;
-    private static byte[] gtrid_base = null;   // created by makeGtridBase()
-    private static String host, server;
+    public static final int JOTM_FORMAT_ID = 0xBB14;
 
     private String fullString = "";
     private String shortString = "";
 
-    private boolean hashcodevalid = false;
     private int myhashcode;
 
     static String HexDigits[] = {
@@ -151,6 +145,11 @@ public class JavaXidImpl implements Xid, Serializable  {
      */
     private byte[] bqual;
 
+    /**
+     * XidImpl this Xid was built from, if any
+     */
+    private transient XidImpl jotmXid;
+
     // -------------------------------------------------------------------
     // Constructors
     // -------------------------------------------------------------------
@@ -164,10 +163,16 @@ public class JavaXidImpl implements Xid, Serializable  {
         }
 
         formatId = jotmXid.getFormatId();
-        gtrid = jotmXid.getGlobalTransactionId();
+        // the arrays of a XidImpl are never modified: they can be shared
+        gtrid = XidImpl.gtridOf(jotmXid);
         gtrid_length = gtrid.length;
-        bqual = jotmXid.getBranchQualifier();
+        bqual = XidImpl.bqualOf(jotmXid);
         bqual_length = bqual.length;
+        if (jotmXid instanceof XidImpl) {
+            // same value, computed once
+            myhashcode = jotmXid.hashCode();
+            this.jotmXid = (XidImpl) jotmXid;
+        }
     }
 
     // -------------------------------------------------------------------
@@ -195,6 +200,29 @@ public class JavaXidImpl implements Xid, Serializable  {
         return (byte[]) bqual.clone();
     }
 
+    /**
+     * Get the Global Transaction Id without copying it.
+     * The array must not be modified.
+     */
+    byte[] gtrid() {
+        return gtrid;
+    }
+
+    /**
+     * Get the Branch Qualifier without copying it.
+     * The array must not be modified.
+     */
+    byte[] bqual() {
+        return bqual;
+    }
+
+    /**
+     * @return the XidImpl this Xid was built from, or null
+     */
+    XidImpl xid() {
+        return jotmXid;
+    }
+
     // -------------------------------------------------------------------
     // other methods
     // -------------------------------------------------------------------
@@ -282,101 +310,6 @@ public class JavaXidImpl implements Xid, Serializable  {
         return shortString;
     }
 
-    /*
-     *  make a unique but recognizable gtrid.
-     *
-     *  format:
-     *  1.  internal version identifier - 1 byte
-     *  2.  uuid                        - 16 bytes
-     *  3.  host name                   - 16 bytes
-     *  4.  server name                 - 15 bytes
-     *  5.  timestamp                   - 8 bytes
-     *  6.  [reserved for use by bqual  - 8 bytes]
-     *
-     *  Items 1 thru 4 are generated by makeGtridBase and comprise the recognizable
-     *  portion of a gtrid or bqual. Together, these serve to make Xids generated on
-     *  this system unique from those generated on other systems.
-     *  Item 5 is generated by this routine and serves to make gtrids unique.
-     *  Item 6 serves to distinguish different bquals belonging
-     *  to the same Xid, and is generated elsewhere.
-     *
-     *  Items 1 thru 4 are used to determine if we (JOTM) generated this gtrid/bqual.
-     */
-    private byte[] makeGtrid() {
-        makeGtridBase();
-        long uniqueTimeStamp;
-
-        synchronized(getClass()) {
-            uniqueTimeStamp = System.currentTimeMillis() * 1024 + count;
-            count++;
-        }
-
-        ByteBuffer bb = ByteBuffer.allocate(gtrid_base.length+8);
-        bb.put(gtrid_base);
-        bb.putLong(uniqueTimeStamp);
-        return bb.array();
-    }
-
-    /**
-     * acquire the configured uuid, host and server name.
-     * fabricate a uuid if one does not yet exist.
-     * and append a unique timestamp.
-     */
-    private void makeGtridBase() {
-
-        synchronized(getClass()) {
-            if (rand == null) {
-                rand = new SecureRandom();
-
-                if (uuidsRecovered == false) {    // first time or no journal
-                    //uuid0 = Long.parseLong(System.getProperty("jotm.uuid.part1"),16);
-                    //uuid1 = Long.parseLong(System.getProperty("jotm.uuid.part2"),16);
-                    uuid0 = rand.nextLong();
-                    uuid1 = rand.nextLong();
-
-                    // We build the Inique ID Record in makeGtridBase
-                    // Store the Unique ID Record using HOWL so it can manage for us.
-                    // It will never have a DONE record written.
-                    //
-                    // The Unique ID record consists of two fields:
-                    //     1. uuid0
-                    //     2. uuid1
-                    //
-                    // The XA Unique ID record format:
-                    //     Unique ID record type1 (byte[3]) - 'RU1'
-                    //     Unique ID record stored uuido (long) - 8 bytes
-                    //     Unique ID record stored uuid1 (long) - 8 bytes
-                    //
-
-                    byte [] UniqueID = new byte[3+8+8];
-                    byte [] [] UniqueIDRecord = new byte [1][3+8+8];
-
-                    String rt1 = "RU1";
-
-                    ByteBuffer rr1 = ByteBuffer.wrap(UniqueID);
-                    rr1.put(rt1.getBytes());
-                    rr1.putLong(uuid0);
-                    rr1.putLong(uuid1);
-
-                    UniqueIDRecord [0] = UniqueID;
-                }
-
-                host = "";
-                server = "";
-                // make host & server names fixed length, as defined above
-                host = (host+"                ").substring(0,15);
-                server = (server+"               ").substring(0,14);
-                gtrid_base = new byte[1+8+8+16+15];
-                ByteBuffer	bb = ByteBuffer.wrap(gtrid_base);
-                bb.put(internalVersId);
-                bb.putLong(uuid0);
-                bb.putLong(uuid1);
-                bb.put(host.getBytes());
-                bb.put(server.getBytes());
-            }
-        }
-    }
-
     // -------------------------------------------------------------------
     // equals and hashCode
     // -------------------------------------------------------------------
@@ -385,17 +318,18 @@ public class JavaXidImpl implements Xid, Serializable  {
      * return true if objects are identical
      */
     public boolean equals(Object obj2) {
+        if (obj2 == this) {
+            return true;
+        }
         if ((obj2 == null) || (!(obj2 instanceof JavaXidImpl))) {
             return false;
         }
         JavaXidImpl xid2 = (JavaXidImpl) obj2;
 
-        if (formatId == xid2.getFormatId()
-            && java.util.Arrays.equals(bqual, xid2.getBranchQualifier())
-            && java.util.Arrays.equals(gtrid, xid2.getGlobalTransactionId())) {
-            return true;
-        }
-        return false;
+        return formatId == xid2.formatId
+            && hashCode() == xid2.hashCode()
+            && java.util.Arrays.equals(bqual, xid2.bqual)
+            && java.util.Arrays.equals(gtrid, xid2.gtrid);
     }
 
     /**
@@ -404,10 +338,10 @@ public class JavaXidImpl implements Xid, Serializable  {
     @Override
         public int hashCode() {
 
-        int hc = 0;
-
-        if (hashcodevalid == false) {
+        // single read: 0 means not yet computed (a hash of 0 is only computed again)
+        int hc = myhashcode;
 
+        if (hc == 0) {
             for (int i = 0; i < gtrid.length; i++) {
                 hc = hc * 37 + gtrid[i];
             }
@@ -417,8 +351,7 @@ public class JavaXidImpl implements Xid, Serializable  {
             }
 
             myhashcode = hc;
-            hashcodevalid = true;
         }
-        return myhashcode;
+        return hc;
     }
 }
@@ -0,0 +1,80 @@
+/*
+ * @(#) JmxMetricsRegistry.java
+ *
+ * JOTM: Java Open Transaction Manager
+ *
+ *
+ * This module was originally developed by
+ *
+ *  - Bull S.A. as part of the JOnAS application server code released in
+ *    July 1999 (www.bull.com)
+ *
+ * --------------------------------------------------------------------------
+ *  The original code and portions created by Bull SA are
+ *  Copyright (c) 1999 BULL SA
+ *  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * -Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * -Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * --------------------------------------------------------------------------
+ * $Id$
+ * --------------------------------------------------------------------------
+ */
+package org.objectweb.jotm;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Publish the transaction metrics as a MBean of the platform MBeanServer,
+ * under the name org.objectweb.jotm:type=TransactionMetrics
+ */
+public class JmxMetricsRegistry implements MetricsRegistry {
+
+    /**
+     * name of the MBean
+     */
+    public static final String OBJECT_NAME = "org.objectweb.jotm:type=TransactionMetrics";
+
+    public void register(TransactionMetrics metrics) throws Exception {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(OBJECT_NAME);
+        if (server.isRegistered(name)) {
+            server.unregisterMBean(name);
+        }
+        server.registerMBean(metrics, name);
+        if (TraceTm.jotm.isDebugEnabled()) {
+            TraceTm.jotm.debug("TransactionMetrics registered as " + OBJECT_NAME);
+        }
+    }
+
+    public void unregister(TransactionMetrics metrics) throws Exception {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(OBJECT_NAME);
+        if (server.isRegistered(name)) {
+            server.unregisterMBean(name);
+        }
+    }
+}
@@ -223,6 +223,9 @@ public class Jotm {
             log.warn("cannot stop Recovery", e);
         }
 
+        TransactionMetrics.stop();
+        ResourceFanOut.stop();
+
         // unexport remote objects
         if (local) {
             if (bound && !boundFailed) {
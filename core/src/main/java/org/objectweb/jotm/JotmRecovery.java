@@ -44,10 +44,25 @@
 package org.objectweb.jotm;
 
 import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Vector;
 import java.util.List;
 import java.util.Iterator;
-
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.transaction.Status;
 import javax.transaction.xa.XAResource;
 import javax.transaction.xa.Xid;
 
@@ -61,18 +76,24 @@ import javax.transaction.xa.XAException;
  */
 
 /**
- * Thread class used to manage Resource Manager Registration.
+ * Task used to recover the Xids of a registered Resource Manager.
+ * When the Resource Manager cannot be used, the task is retried
+ * after a backoff (doubled at each retry).
  */
-class processResourceManager extends Thread {
-    private ThreadGroup xaResourceThreadGroup = null;
+class processResourceManager implements Callable<Boolean> {
+    private static final long RETRY_BACKOFF = 500L;  // ms
+
     Vector txrecovered = null;
     Vector rminfo = null;
     Vector rmreg = null;
     int rmsize = 0;
     int rmindex = 0;
+    int retries = 0;
 
-    processResourceManager (ThreadGroup prmThreadGroup, Vector pvtxrecovered, Vector prminfo, Vector prmreg, int prmsize, int prmindex) {
-        xaResourceThreadGroup = new ThreadGroup(prmThreadGroup, "XAResourceTG");
+    // time (ms) at which the task started, 0 while it is queued
+    volatile long started = 0L;
+
+    processResourceManager (Vector pvtxrecovered, Vector prminfo, Vector prmreg, int prmsize, int prmindex, int pretries) {
         if (TraceTm.recovery.isDebugEnabled()) {
             TraceTm.recovery.debug("new processResourceManager");
         }
@@ -81,10 +102,37 @@ class processResourceManager extends Thread {
         rminfo = prminfo;
         rmreg = prmreg;
         rmsize = prmsize;
-        rmindex = prmindex;;
+        rmindex = prmindex;
+        retries = pretries;
     }
 
-    public void run() {
+    RmRegistration getRmRegistration() {
+        return (RmRegistration) rmreg.elementAt(rmindex);
+    }
+
+    public Boolean call() throws XAException, InterruptedException {
+        started = System.currentTimeMillis();
+
+        long backoff = RETRY_BACKOFF;
+        for (int attempt = 0; ; attempt++) {
+            try {
+                recoverResourceManager();
+                return Boolean.TRUE;
+            } catch (XAException e) {
+                if (attempt >= retries) {
+                    TraceTm.recovery.error("Cannot recover Resource Manager " + getRmRegistration().rmGetName()
+                                           + ": " + e.getMessage());
+                    throw e;
+                }
+                TraceTm.recovery.warn("Recovery of Resource Manager " + getRmRegistration().rmGetName()
+                                      + " failed (" + e.getMessage() + "), retry in " + backoff + " ms");
+                Thread.sleep(backoff);
+                backoff *= 2;
+            }
+        }
+    }
+
+    private void recoverResourceManager() throws XAException {
         if (TraceTm.recovery.isDebugEnabled()) {
             TraceTm.recovery.debug("thread for processResourceManager");
         }
@@ -105,27 +153,40 @@ class processResourceManager extends Thread {
 
             if (myregrm.equals(myrm)){
                 // checkout the XAResource, this will "lock" the XAResource
-                // we can only "unlock" the XAResource after all the threads
-                // used to resolve (commit/rollback) the XAResource's XIDs
-                // have successfully completed
+                // we can only "unlock" the XAResource after all the
+                // XAResource's XIDs have been resolved (commit/rollback)
+
+                myregxares = myrmreg.rmCheckoutXARes();
 
                 try {
-                    myregxares = myrmreg.rmCheckoutXARes();
-                } catch (XAException e) {
-                    if (TraceTm.recovery.isDebugEnabled()) {
-                        TraceTm.recovery.debug("rmCheckoutXARes call failed during recovery " + e.getMessage());
-                    }
-                    myrmreg.rmCheckinXARes();
-                    break;
-                }
+                    // Scan the Xids page by page: each page is resolved
+                    // (commit or rollback) before the next one is read.
 
-                List recoveredXidList = new java.util.LinkedList();
+                    int flags = XAResource.TMSTARTRSCAN;
+                    int total = 0;
+                    XidImpl firstOfScan = null;
+                    XidImpl firstOfPage = null;
+
+                    while (true) {
+                        javax.transaction.xa.Xid[] javaxids = myregxares.recover(flags);
+                        if (javaxids == null || javaxids.length == 0) {
+                            break;
+                        }
+
+                        // Some Resource Managers ignore the flags and return
+                        // all their Xids on each call: the scan ends when a
+                        // page starts as a previous one.
+                        XidImpl first = new XidImpl(javaxids[0]);
+                        if (first.equals(firstOfScan) || first.equals(firstOfPage)) {
+                            break;
+                        }
+                        if (firstOfScan == null) {
+                            firstOfScan = first;
+                        }
+                        firstOfPage = first;
+                        flags = XAResource.TMNOFLAGS;
+                        total += javaxids.length;
 
-                try {
-                    boolean first = true;
-                    javax.transaction.xa.Xid[] javaxids;
-                    javaxids = myregxares.recover(first ? XAResource.TMSTARTRSCAN : XAResource.TMNOFLAGS);
-                    if (javaxids != null && javaxids.length != 0) {
                         if (TraceTm.recovery.isDebugEnabled()) {
                             TraceTm.recovery.debug("Registered Resource Manager " + myregrm);
                             TraceTm.recovery.debug("Registered XAResource " + myregxares);
@@ -137,77 +198,36 @@ class processResourceManager extends Thread {
                                 TraceTm.recovery.debug("  XID-R= " + javaxids[ix]);
                             }
                         }
-                        recoveredXidList.addAll(java.util.Arrays.asList(javaxids));
-                    }
-                } catch (XAException e) {
-                    if (TraceTm.recovery.isDebugEnabled()) {
-                        TraceTm.recovery.debug("xaResource.recover call failed during recovery " + e.getMessage());
-                    }
-                    myrmreg.rmCheckinXARes();
-                    break;
-                }
 
+                        // set the action required for the XIDs located in our
+                        // txxidRecovered (array), pointed to by TxRecovered (vector)
 
-                if (TraceTm.recovery.isDebugEnabled()) {
-                    TraceTm.recovery.debug("recoveredXidList size= " + recoveredXidList.size());
-                }
+                        List commitList = settxxidrecoveraction(myregxares, java.util.Arrays.asList(javaxids));
 
-                if (recoveredXidList.size() == 0) {
-                    if (TraceTm.recovery.isDebugEnabled()) {
-                        TraceTm.recovery.debug("No XIDs to recover for Xares= "+ myregxares);
-                    }
-                    myrmreg.rmCheckinXARes();
-                    break;
-                }
-
-                // set the action required for the XIDs located in our
-                // txxidRecovered (array), pointed to by TxRecovered (vector)
-
-                settxxidrecoveraction(myregxares, recoveredXidList);
-
-                // We can now walk through TxRecovered and perform the action on
-                // each of the Xids stored in TxxidRecovered.
+                        // We can now perform the commit action on each of the Xids
+                        // of this page stored in TxxidRecovered.
 
-                doActionXidRecover ();
-
-                for (int w = 0; w < 10; w++) {  // only do it 10 times)
-                    boolean xaresinthread = false;
-                    int numthreads = xaResourceThreadGroup.activeCount();
-
-                    if (TraceTm.recovery.isDebugEnabled()) {
-                        TraceTm.recovery.debug("xaResource active count= "+ numthreads);
+                        doActionXidRecover (commitList);
                     }
 
-                    if (numthreads == 0) {
-                        break;
-                    }
-
-                    Thread[] listOfThreads = new Thread[numthreads];
-                    xaResourceThreadGroup.enumerate(listOfThreads);
-
-                    for (int i = 0; i < numthreads; i++) {
-                        if (listOfThreads[i] != null) {
+                    if (flags == XAResource.TMNOFLAGS) {
+                        try {
+                            myregxares.recover(XAResource.TMENDRSCAN);
+                        } catch (XAException e) {
+                            // the scan is over anyway
                             if (TraceTm.recovery.isDebugEnabled()) {
-                                TraceTm.recovery.debug("xaResource in thread= "+ listOfThreads[i].getName());
+                                TraceTm.recovery.debug("recover(TMENDRSCAN) failed " + e.getMessage());
                             }
-
-                            try {
-                                Thread.sleep(100);  // 100 millisecond
-                            } catch (InterruptedException e) {
-                                ;
-                            }
-                            xaresinthread = true;
-                            break;
                         }
                     }
 
-                    if (!xaresinthread) {
-                        break;
+                    if (TraceTm.recovery.isDebugEnabled()) {
+                        TraceTm.recovery.debug("recovered XIDs= " + total + " for Xares= " + myregxares);
                     }
+                } finally {
+                    // checkin the XAResource, this will "unlock" the XAResource
+                    myrmreg.rmCheckinXARes();
                 }
-
-                // checkin the XAResource, this will "unlock" the XAResource
-                myrmreg.rmCheckinXARes();
                 break;
             }
         }
@@ -217,128 +237,83 @@ class processResourceManager extends Thread {
         }
     }
 
-    private void settxxidrecoveraction(XAResource actxares, List actionxid) {
+    private List settxxidrecoveraction(XAResource actxares, List actionxid) {
         if (TraceTm.recovery.isDebugEnabled()) {
             TraceTm.recovery.debug("settxxidrecoveraction");
         }
 
-        TxxidRecovered mytxxidRecovered = null;
-        TxRecovered mytxRecovered = null;
-
         // for each XID (actionxid) returned for a specific XAResource
         // determine if the XID needs to be marked for commit (1)
 
+        boolean logged = JotmRecovery.hasRecoveredXids();
+        List commitList = new java.util.ArrayList();
+
         Iterator iter = actionxid.iterator();
         while (iter.hasNext()) {
-            boolean xidfound = false;
             Xid myjavaxid = (Xid) iter.next();
-            org.objectweb.jotm.Xid myxid = new XidImpl(myjavaxid);
-            byte [] mybrqu = myxid.getBranchQualifier();
+            XidImpl myxid = new XidImpl(myjavaxid);
 
-            if (TraceTm.recovery.isDebugEnabled()) {
-            	TraceTm.recovery.debug("txrecovered.size()= " + txrecovered.size());
+            if (logged && !myxid.isThisOneOfOurs(myxid.bqual())) {
+                // we found an XID but it was not ours, we ignore it
+                if (TraceTm.recovery.isDebugEnabled()) {
+                    TraceTm.recovery.debug("Xid is not one of ours");
+                }
+                continue;
             }
 
-            for (int j = 0; j < txrecovered.size(); j++){
-                mytxRecovered = (TxRecovered) txrecovered.elementAt(j);
-
-                if (mytxRecovered != null) {
-                    // We will set every XID found to rollback, if we find
-                    // the XID in our tables we will reset the XID to commit
-                    // or not one of ours
-
-                    if (TraceTm.recovery.isDebugEnabled()) {
-                    	TraceTm.recovery.debug("mytxRecovered.getxidcount()= " + mytxRecovered.getxidcount());
-                    }
-
-                    for (int k = 0; k < mytxRecovered.getxidcount(); k++){
-                        mytxxidRecovered = mytxRecovered.getRecoverTxXidInfo(k);
+            // We will set every XID found to rollback, if we find
+            // the XID in our tables we will reset the XID to commit
+            TxxidRecovered mytxxidRecovered = logged ? JotmRecovery.getRecoveredXid(myxid) : null;
 
-                        if (mytxxidRecovered != null) {
-                            byte [] mytxxid = mytxxidRecovered.getRecoverxid();
-                            if (TraceTm.recovery.isDebugEnabled()) {
-                                TraceTm.recovery.debug("before cast mytxxid= " + new String(mytxxid));
-                                TraceTm.recovery.debug("before cast myxid  = " + myxid.toString(true));
-                            }
-
-                            org.objectweb.jotm.Xid mymytxxid = new XidImpl(mytxxid);
-
-                            if (mymytxxid.isThisOneOfOurs(mybrqu)) {
-
-                                if (TraceTm.recovery.isDebugEnabled()) {
-                                    TraceTm.recovery.debug("mymytxxid= " + mymytxxid.toString(true));
-                                    TraceTm.recovery.debug("myxid  = " + myxid.toString(true));
-                                }
-
-                                if (mymytxxid.toString(true).equals(myxid.toString(true))) {
-                                    // reset the RecoveryTxXidInfo entry with the registered
-                                    // XAResource and the commit action
-                                    xidfound = true;
-                                    int myaction = 1;    // Commit
-                                    if (TraceTm.recovery.isDebugEnabled()) {
-                                    	TraceTm.recovery.debug("Commit Action");
-                                    }
-
-                                    mytxxidRecovered.setRecoveraction(myaction);
-                                    mytxxidRecovered.setCommitxares(actxares);
-                                    mytxxidRecovered.setCommitxid(myjavaxid);
-                                    mytxRecovered.setRecoverTxXidInfo(mytxxidRecovered,k);
-                                    break;
-                                }
-                            } else {
-                            	// we found an XID but it was not ours, we ignore it
-                            	// by not creating a mytxxidRecovered record
-                            	xidfound = true;
-                                if (TraceTm.recovery.isDebugEnabled()) {
-                                    TraceTm.recovery.debug("Xid is not one of ours");
-                                }
-                            }
-                        }
-                    }
-                }
-
-                if (xidfound) {    // xid found in a TxxidRecovered of the TxRecovered vector
-                    break;
-                }
+            if (mytxxidRecovered == null) {    // xid NOT found in a TxxidRecovered of the TxRecovered vector
+                abortimmediate (actxares, myjavaxid);
+                continue;
             }
 
-            if (!xidfound) {    // xid NOT found in a TxxidRecovered of the TxRecovered vector
+            // The logged status of the branch decides: a branch rolled back
+            // in phase 2 is rolled back again, a branch in doubt (heuristic,
+            // or a last resource commit of unknown outcome) is left to the
+            // administrator, the others are committed.
+            switch (mytxxidRecovered.getRecoverstatus()) {
+            case Status.STATUS_ROLLEDBACK :
                 abortimmediate (actxares, myjavaxid);
+                mytxxidRecovered.setRecoveraction(0);
+                continue;
+            case Status.STATUS_UNKNOWN :
+                TraceTm.recovery.warn("Xid " + myxid.toString(true) + " in doubt, left to the administrator");
+                mytxxidRecovered.setRecoveraction(2);    // Heuristic
+                continue;
+            default :
+                break;
+            }
+
+            // reset the RecoveryTxXidInfo entry with the registered
+            // XAResource and the commit action
+            if (TraceTm.recovery.isDebugEnabled()) {
+                TraceTm.recovery.debug("myxid  = " + myxid.toString(true));
+                TraceTm.recovery.debug("Commit Action");
             }
+
+            mytxxidRecovered.setRecoveraction(1);    // Commit
+            mytxxidRecovered.setCommitxares(actxares);
+            mytxxidRecovered.setCommitxid(myjavaxid);
+            commitList.add(mytxxidRecovered);
         } // while
+        return commitList;
     }
 
-    private void doActionXidRecover () {
+    private void doActionXidRecover (List commitList) {
         if (TraceTm.recovery.isDebugEnabled()) {
             TraceTm.recovery.debug("doActionXidRecover");
         }
 
-        TxxidRecovered mytxxidRecovered = null;
-        TxRecovered mytxRecovered = null;
-
-        for (int i = 0; i < txrecovered.size(); i++) {
-            mytxRecovered = (TxRecovered) txrecovered.elementAt(i);
-
-            for (int j = 0; j < mytxRecovered.getxidcount(); j++) {
-                mytxxidRecovered = mytxRecovered.getRecoverTxXidInfo(j);
-
-                if (mytxxidRecovered != null) {
-
-                    // If action = 0; XAResource is known but the XID associated
-                    // to is was not returned in the xares.recover call. This implies
-                    // that the XID was already committed, just ignore.
-                    // If action = 1; XAResource is known and the xares.recover call
-                    // returned the specifed XID. This implies that we should attempt
-                    // to commit the XID (if possible).
+        // The XAResource is known and the xares.recover call returned
+        // these XIDs. This implies that we should attempt to commit them
+        // (if possible). The XIDs which were not returned are left with
+        // action = 0: they were already committed.
 
-                    if (mytxxidRecovered.getRecoveraction() == 1) {  // Commit
-
-                        commitXAResourceXid committhread = new commitXAResourceXid (mytxxidRecovered);
-                        Thread commitxa = new Thread (xaResourceThreadGroup, committhread, "commitxid" + "-" + i + "-" + j);
-                        commitxa.start();
-                    }
-                }
-            }
+        for (int i = 0; i < commitList.size(); i++) {
+            new commitXAResourceXid ((TxxidRecovered) commitList.get(i)).run();
         }
     }
 
@@ -347,17 +322,15 @@ class processResourceManager extends Thread {
             TraceTm.recovery.debug("abortimmediate");
         }
 
-        abortXAResourceXid abortthread = new abortXAResourceXid (abortxares, abortxid);
-        Thread abortxa = new Thread (xaResourceThreadGroup, abortthread, "abortxid");
-        abortxa.start();
+        new abortXAResourceXid (abortxares, abortxid).run();
     }
 }
 
 /**
- * Thread class used to commit an Xid of an XAResource,
+ * Class used to commit an Xid of an XAResource,
  * XAResource.commit(Xid).
  */
-class commitXAResourceXid extends Thread {
+class commitXAResourceXid implements Runnable {
     XAResource commitxares = null;
     Xid commitxid = null;
     TxxidRecovered committxxidrecovered = null;
@@ -422,11 +395,11 @@ class commitXAResourceXid extends Thread {
 }
 
 /**
- * Thread class used to abort an Xid of an XAResource,
+ * Class used to abort an Xid of an XAResource,
  * XAResource.rollback(Xid).
  */
 
-class abortXAResourceXid extends Thread {
+class abortXAResourceXid implements Runnable {
     XAResource abortxares = null;
     Xid abortxid = null;
 
@@ -560,6 +533,7 @@ class TxxidRecovered {
                                     // 2-Heuristics condition, administrator action required
     private XAResource commitxares = null;
     private Xid commitxid = null;
+    private XidImpl txxidKey = null;
 
     public void addXidInfo (int pindex, byte[] pxares, String pxaresname, byte[] pxid, int pstatus) {
 
@@ -598,6 +572,14 @@ class TxxidRecovered {
         return txxidXaresname;
     }
 
+    XidImpl getRecoverxidkey () {
+        return txxidKey;
+    }
+
+    void setRecoverxidkey (XidImpl pkey) {
+        txxidKey = pkey;
+    }
+
     public byte[] getRecoverxid () {
         if (TraceTm.recovery.isDebugEnabled()) {
             TraceTm.recovery.debug("txxidXid= " + new String(txxidXid));
@@ -656,6 +638,8 @@ class TxRecovered {
     private String txdatetime = null;
     private int xidcount = 0;
     private XACommittingTx xacommittingtx = null;
+    // older records of the same transaction, done with this one
+    private Vector superseded = null;
 
     private TxxidRecovered [] xidinfo;
 
@@ -715,14 +699,48 @@ class TxRecovered {
         }
         return xacommittingtx;
     }
+
+    /**
+     * The transaction was logged again: the older record (and the
+     * records it superseded) must be done with this one.
+     */
+    void addSuperseded (TxRecovered polder) {
+        if (superseded == null) {
+            superseded = new Vector();
+        }
+        superseded.add(polder.getXACommittingTx());
+        if (polder.superseded != null) {
+            superseded.addAll(polder.superseded);
+        }
+    }
+
+    /**
+     * @return the XACommittingTx of the older records of this transaction,
+     * or null
+     */
+    Vector getSupersededTx () {
+        return superseded;
+    }
 }
 
 public class JotmRecovery {
 
+    private static final String THREADS_PROPERTY = "jotm.recovery.Threads";
+    private static final String TIMEOUT_PROPERTY = "jotm.recovery.ResourceTimeout";
+    private static final String RETRIES_PROPERTY = "jotm.recovery.Retries";
+    private static final int DEFAULT_THREADS = 8;
+    private static final int DEFAULT_TIMEOUT = 60000;
+    private static final int DEFAULT_RETRIES = 2;
+
     private static JotmRecovery unique = null;
     private static Vector vTxRecovered = new Vector ();
     private static Vector vRecoverRmInfo = new Vector ();
+    // logged branches of the replayed transactions, by Xid
+    private static Map<XidImpl, TxxidRecovered> xidIndex = new HashMap<XidImpl, TxxidRecovered>();
     private Vector userRecoveryRecords = new Vector ();
+    // replayed transactions by Xid string, to keep their newest record
+    private Map<String, TxRecovered> replayedTx = new HashMap<String, TxRecovered>();
+    private int supersededCount = 0;
 
     /**
      * Constructor.
@@ -901,150 +919,253 @@ public class JotmRecovery {
                     vRecoverRmInfo.addElement(myrecoverRmInfo);
                 }
             }
-        } else if (trt.equals("RR1")) {
-
-            rcdatetime = rr.getLong();
-            int intmfi = rr.getInt();
-            int gtilen = rr.getInt();
-            byte [] mgti = new byte[gtilen];
-            rr.get(mgti, 0, gtilen);
-            int bqlen = rr.getInt();
-            byte [] mbq = new byte[bqlen];
-            rr.get(mbq, 0, bqlen);
+        } else if (trt.equals("RR1") || trt.startsWith("RC")) {
+            // A group commit logs several transactions in the same record.
+            // In the former format, each RR1 field is followed by its RR2
+            // fields. In the compact format, a transaction is one RC field.
+            byte [][] fields = lr.getFields();
+            int first = 0;
+            int groups = 0;
+
+            while (true) {
+                if (trt.equals("RR1")) {
+                    rcdatetime = rr.getLong();
+                    int intmfi = rr.getInt();
+                    int gtilen = rr.getInt();
+                    byte [] mgti = new byte[gtilen];
+                    rr.get(mgti, 0, gtilen);
+                    int bqlen = rr.getInt();
+                    byte [] mbq = new byte[bqlen];
+                    rr.get(mbq, 0, bqlen);
+
+                    txXid = xidString(intmfi, mgti, mbq).getBytes();
+
+                    txdatelength = rr.getInt();
+                    txdatetime = new byte[txdatelength];
+                    rr.get(txdatetime, 0, txdatelength);
+                    xarescount = rr.getInt();
 
-            byte[] gtrid_local = new byte[64];
-            byte[] bqual_local = new byte[64];
+                    if (TraceTm.recovery.isDebugEnabled()) {
+                        TraceTm.recovery.debug("Rebuilt tx prdt= " + rcdatetime);
+                        TraceTm.recovery.debug("Rebuilt tx ptxxid= " + new String(txXid));
+                        TraceTm.recovery.debug("Rebuilt tx ptdt= " + new String(txdatetime));
+                    }
 
-            // Buffers need two hex characters per byte
-            StringBuffer str_buff_gtrid = new StringBuffer(64 * 2);
-            StringBuffer str_buff_bqual = new StringBuffer(64 * 2);
+                    String mytxXid = new String(txXid);
+                    String mytxdatetime = new String(txdatetime);
 
-            ByteBuffer aa = ByteBuffer.wrap(gtrid_local);
-            System.arraycopy(mgti, 0, gtrid_local, 0, gtilen);
+                    mytxRecovered = new TxRecovered();
 
-            for (int i=0; i < gtilen; i++) {
-                byteToHex(aa.get(), str_buff_gtrid );
-            }
+                    if (TraceTm.recovery.isDebugEnabled()) {
+                        TraceTm.recovery.debug("MyTxXid= " + mytxXid);
+                        TraceTm.recovery.debug("XAResource count= " + xarescount);
+                    }
 
-            if (bqlen != 0) {
-                bqual_local = new byte[64];
-                ByteBuffer bb = ByteBuffer.wrap(bqual_local);
-                System.arraycopy(mbq, 0, bqual_local, 0, bqlen);
+                    mytxRecovered.addtxrecovered (rcdatetime, txXid, mytxdatetime, xarescount, myxacommittx);
+
+                    for (int i=1; i <= xarescount; i++) {
+                        myrecoverTxInfo = new TxxidRecovered();
+                        recov2 = fields[first + i];
+
+                        ByteBuffer rr2 = ByteBuffer.wrap(recov2);
+                        rr2.get(rt2, 0, 3);
+                        trt = new String (rt2);
+
+                        if (trt.equals("RR2")) {
+                            xaresindex = rr2.getInt();
+                            xareslength = rr2.getInt();
+                            xares = new byte[xareslength];
+                            rr2.get(xares, 0, xareslength);
+                            xaresnamelength = rr2.getInt();
+                            xaresname = new byte[xaresnamelength];
+                            rr2.get(xaresname, 0, xaresnamelength);
+                            int intmfi2 = rr2.getInt();
+                            int gtilen2 = rr2.getInt();
+                            byte [] mgti2 = new byte[gtilen2];
+                            rr2.get(mgti2, 0, gtilen2);
+                            int bqlen2 = rr2.getInt();
+                            byte [] mbq2 = new byte[bqlen2];
+                            rr2.get(mbq2, 0, bqlen2);
+                            xidstatus = rr2.getInt();
+
+                            recoveryxid = xidString(intmfi2, mgti2, mbq2).getBytes();
+
+                            String myxaresname = new String(xaresname);
+
+                            myrecoverTxInfo.addXidInfo (xaresindex, xares, myxaresname, recoveryxid, xidstatus);
+                            myrecoverTxInfo.setRecoverxidkey(new XidImpl(intmfi2, mgti2, mbq2));
+                            mytxRecovered.setRecoverTxXidInfo (myrecoverTxInfo, i-1);
+                        }
+                    }
+                    addRecovered(mytxRecovered);
+                    first += xarescount + 1;
+                } else {
+                    rebuildCompactTransaction(trt, rr, myxacommittx);
+                    first++;
+                }
+                groups++;
 
-                for (int i=0; i < bqlen; i++) {
-                    byteToHex(bb.get(), str_buff_bqual);
+                if (first >= fields.length) {
+                    break;
+                }
+                rr = ByteBuffer.wrap(fields[first]);
+                rr.get(rt, 0, 3);
+                trt = new String(rt);
+                if (!trt.equals("RR1") && !trt.startsWith("RC")) {
+                    break;
                 }
             }
 
-            byte[] bc = ":".getBytes();
-            int bclen = bc.length;
-            String sxid = Long.toHexString(intmfi) + ":" +
-                Long.toHexString(gtilen) + ":" +
-                Long.toHexString(bqlen) + ":" +
-                str_buff_gtrid.toString() + ":" +
-                str_buff_bqual.toString();
-            txXid = new byte[4+bclen+4+bclen+4+gtilen+bclen+bqlen];
-            txXid = sxid.getBytes();
-
-            txdatelength = rr.getInt();
-            txdatetime = new byte[txdatelength];
-            rr.get(txdatetime, 0, txdatelength);
-            xarescount = rr.getInt();
-
+            if (groups > 1) {
+                TransactionRecoveryImpl.getTransactionRecovery().howlExpectDone(myxacommittx, groups);
+            }
+        } else if (trt.equals("RU1")) {
+            XidImpl.setUuids( rr.getLong(), rr.getLong());
+        } else {
             if (TraceTm.recovery.isDebugEnabled()) {
-                TraceTm.recovery.debug("Rebuilt tx prdt= " + rcdatetime);
-                TraceTm.recovery.debug("Rebuilt tx ptxxid= " + new String(txXid));
-                TraceTm.recovery.debug("Rebuilt tx ptdt= " + new String(txdatetime));
+                TraceTm.recovery.debug("Unknown record type during replay = " + trt);
             }
+            // add this byteBuffer of this record to a vector for user recovery
+            rr.rewind();
+            userRecoveryRecords.add( rr );
+            userRecoveryRecords.add( myxacommittx );
+        }
+    }
 
-            String mytxXid = new String(txXid);
-            String mytxdatetime = new String(txdatetime);
+    /**
+     * Rebuild a transaction logged in the compact format (see RecoveryRecord).
+     * @param trt record type and version
+     * @param rr the record, positioned after its type
+     * @param myxacommittx XACommittingTx of the replayed record
+     */
+    private void rebuildCompactTransaction(String trt, ByteBuffer rr, XACommittingTx myxacommittx) {
 
-            mytxRecovered = new TxRecovered();
+        RecoveryRecord.Tx rtx;
+        try {
+            rtx = RecoveryRecord.decode(trt.charAt(2) - '0', rr);
+        } catch (IllegalArgumentException e) {
+            TraceTm.recovery.error("Unknown recovery record version " + trt);
+            return;
+        }
 
-            if (TraceTm.recovery.isDebugEnabled()) {
-                TraceTm.recovery.debug("MyTxXid= " + mytxXid);
-                TraceTm.recovery.debug("XAResource count= " + xarescount);
-            }
+        int xarescount = rtx.branches.size();
+        byte [] txXid = xidString(rtx.formatId, rtx.gtrid, rtx.bqual).getBytes();
+        String mytxdatetime = new Date(rtx.txDate).toString();
 
-            mytxRecovered.addtxrecovered (rcdatetime, txXid, mytxdatetime, xarescount, myxacommittx);
+        if (TraceTm.recovery.isDebugEnabled()) {
+            TraceTm.recovery.debug("Rebuilt tx prdt= " + rtx.storedDate);
+            TraceTm.recovery.debug("Rebuilt tx ptxxid= " + new String(txXid));
+            TraceTm.recovery.debug("Rebuilt tx ptdt= " + mytxdatetime);
+            TraceTm.recovery.debug("XAResource count= " + xarescount);
+        }
 
-            for (int i=1; i <= xarescount; i++) {
-                myrecoverTxInfo = new TxxidRecovered();
-                recov2 = lr.getFields()[i];
+        TxRecovered mytxRecovered = new TxRecovered();
+        mytxRecovered.addtxrecovered (rtx.storedDate, txXid, mytxdatetime, xarescount, myxacommittx);
 
-                ByteBuffer rr2 = ByteBuffer.wrap(recov2);
-                rr2.get(rt2, 0, 3);
-                trt = new String (rt2);
+        for (int i = 0; i < xarescount; i++) {
+            RecoveryRecord.Branch br = rtx.branches.get(i);
+            TxxidRecovered myrecoverTxInfo = new TxxidRecovered();
+            myrecoverTxInfo.addXidInfo (99, br.resName, br.className,
+                                        xidString(br.formatId, br.gtrid, br.bqual).getBytes(), br.status);
+            myrecoverTxInfo.setRecoverxidkey(new XidImpl(br.formatId, br.gtrid, br.bqual));
+            mytxRecovered.setRecoverTxXidInfo (myrecoverTxInfo, i);
+        }
+        addRecovered(mytxRecovered);
+    }
 
-                if (trt.equals("RR2")) {
-                    xaresindex = rr2.getInt();
-                    xareslength = rr2.getInt();
-                    xares = new byte[xareslength];
-                    rr2.get(xares, 0, xareslength);
-                    xaresnamelength = rr2.getInt();
-                    xaresname = new byte[xaresnamelength];
-                    rr2.get(xaresname, 0, xaresnamelength);
-                    int intmfi2 = rr2.getInt();
-                    int gtilen2 = rr2.getInt();
-                    byte [] mgti2 = new byte[gtilen2];
-                    rr2.get(mgti2, 0, gtilen2);
-                    int bqlen2 = rr2.getInt();
-                    byte [] mbq2 = new byte[bqlen2];
-                    rr2.get(mbq2, 0, bqlen2);
-                    xidstatus = rr2.getInt();
-
-                    byte[] gtrid_local2 = new byte[64];
-                    byte[] bqual_local2 = new byte[64];
-
-                    // Buffers need two hex characters per byte
-                    StringBuffer str_buff_gtrid2 = new StringBuffer(64 * 2);
-                    StringBuffer str_buff_bqual2 = new StringBuffer(64 * 2);
-
-                    ByteBuffer aa2 = ByteBuffer.wrap(gtrid_local2);
-                    System.arraycopy(mgti2, 0, gtrid_local2, 0, gtilen2);
-
-                    for (int i2=0; i2 < gtilen2; i2++) {
-                        byteToHex(aa2.get(), str_buff_gtrid2 );
-                    }
+    /**
+     * Add a replayed transaction. A transaction whose commit failed is
+     * logged again with the status of its branches: only its newest
+     * record is kept, the older ones will be done with it.
+     */
+    private void addRecovered(TxRecovered mytxRecovered) {
+        String key = new String(mytxRecovered.gettxxid());
+        TxRecovered other = replayedTx.get(key);
+
+        // the records are not replayed in the order they were written
+        if (other != null && other.getrecoverdatetime() != mytxRecovered.getrecoverdatetime()) {
+            supersededCount++;
+            if (other.getrecoverdatetime() > mytxRecovered.getrecoverdatetime()) {
+                other.addSuperseded(mytxRecovered);
+            } else {
+                mytxRecovered.addSuperseded(other);
+                vTxRecovered.set(vTxRecovered.indexOf(other), mytxRecovered);
+                replayedTx.put(key, mytxRecovered);
+            }
+            return;
+        }
+        replayedTx.put(key, mytxRecovered);
+        vTxRecovered.addElement(mytxRecovered);
+    }
 
-                    if (bqlen2 != 0) {
-                        bqual_local2 = new byte[64];
-                        ByteBuffer bb2 = ByteBuffer.wrap(bqual_local2);
+    /**
+     * Called when all the records have been replayed.
+     */
+    public void endReplay() {
+        replayedTx.clear();
+        if (supersededCount > 0) {
+            TraceTm.recovery.info("Dropped " + supersededCount + " superseded transaction records");
+            supersededCount = 0;
+        }
 
-                        System.arraycopy(mbq2, 0, bqual_local2, 0, bqlen2);
+        // the branches of the kept records can now be matched by Xid
+        for (int i = 0; i < vTxRecovered.size(); i++) {
+            TxRecovered mytxRecovered = (TxRecovered) vTxRecovered.elementAt(i);
+            for (int j = 0; j < mytxRecovered.getxidcount(); j++) {
+                TxxidRecovered info = mytxRecovered.getRecoverTxXidInfo(j);
+                if (info != null && info.getRecoverxidkey() != null) {
+                    indexXid(info);
+                }
+            }
+        }
+    }
 
-                        for (int i2=0; i2 < bqlen2; i2++) {
-                            byteToHex(bb2.get(), str_buff_bqual2);
-                        }
-                    }
+    /**
+     * Index a logged branch by its Xid. As when the log was searched in
+     * replay order, the first transaction logging an Xid keeps it.
+     */
+    private static void indexXid(TxxidRecovered info) {
+        XidImpl xid = info.getRecoverxidkey();
+        if (!xidIndex.containsKey(xid)) {
+            xidIndex.put(xid, info);
+        }
+    }
 
-                    String sxid2 = Long.toHexString(intmfi2) + ":" +
-                        Long.toHexString(gtilen2) + ":" +
-                        Long.toHexString(bqlen2) + ":" +
-                        str_buff_gtrid2.toString() + ":" +
-                        str_buff_bqual2.toString();
-                    recoveryxid = new byte[4+bclen+4+bclen+4+gtilen2+bclen+bqlen2];
-                    recoveryxid = sxid2.getBytes();
+    /**
+     * Returns the logged branch of an Xid returned by XAResource.recover().
+     *
+     * @return the branch or <code>null</code> if this Xid was not logged
+     */
+    static TxxidRecovered getRecoveredXid(XidImpl xid) {
+        return xidIndex.get(xid);
+    }
 
-                    String myxaresname = new String(xaresname);
+    /**
+     * @return true if a branch of a replayed transaction is waiting for recovery
+     */
+    static boolean hasRecoveredXids() {
+        return !xidIndex.isEmpty();
+    }
 
-                    myrecoverTxInfo.addXidInfo (xaresindex, xares, myxaresname, recoveryxid, xidstatus);
-                    mytxRecovered.setRecoverTxXidInfo (myrecoverTxInfo, i-1);
-                }
-            }
-            vTxRecovered.addElement(mytxRecovered);
-        } else if (trt.equals("RU1")) {
-            XidImpl.setUuids( rr.getLong(), rr.getLong());
-        } else {
-            if (TraceTm.recovery.isDebugEnabled()) {
-                TraceTm.recovery.debug("Unknown record type during replay = " + trt);
-            }
-            // add this byteBuffer of this record to a vector for user recovery
-            rr.rewind();
-            userRecoveryRecords.add( rr );
-            userRecoveryRecords.add( myxacommittx );
+    /**
+     * @return the Xid string written by toString(true)
+     */
+    private static String xidString(int fi, byte [] gtrid, byte [] bqual) {
+        StringBuffer str_buff_gtrid = new StringBuffer(gtrid.length * 2);
+        StringBuffer str_buff_bqual = new StringBuffer(bqual.length * 2);
+
+        for (int i = 0; i < gtrid.length; i++) {
+            byteToHex(gtrid[i], str_buff_gtrid);
         }
+        for (int i = 0; i < bqual.length; i++) {
+            byteToHex(bqual[i], str_buff_bqual);
+        }
+
+        return Long.toHexString(fi) + ":" +
+            Long.toHexString(gtrid.length) + ":" +
+            Long.toHexString(bqual.length) + ":" +
+            str_buff_gtrid.toString() + ":" +
+            str_buff_bqual.toString();
     }
 
     public void recoverTransactions (Vector rmreg) throws XAException {
@@ -1071,52 +1192,71 @@ public class JotmRecovery {
         }
 
         // we can only recover Resource Managers that are in our log
-        // (RecoverRmInfo) and have been registered (RmRegistered)
+        // (RecoverRmInfo) and have been registered (RmRegistered).
+        // Each one is recovered by a task of a bounded executor.
 
-        ThreadGroup resourceManagerThreadGroup = new ThreadGroup("ResourceManagerTG");
-
-        for (int i = 0; i < rmregsize; i++) {
-            RmRegistration myrmreg = (RmRegistration) rmreg.elementAt(i);
-            String myregrm = myrmreg.rmGetName();
-            processResourceManager rmthread = new processResourceManager(resourceManagerThreadGroup, vTxRecovered, vRecoverRmInfo, rmreg, rmsize, i);
-            Thread processrm = new Thread (resourceManagerThreadGroup, rmthread, myregrm + "-" + i);
-            processrm.start();
+        int threads = Math.max(Math.min(rmregsize, JotmProperties.intProperty(THREADS_PROPERTY, DEFAULT_THREADS)), 1);
+        long timeout = JotmProperties.intProperty(TIMEOUT_PROPERTY, DEFAULT_TIMEOUT);
+        if (timeout <= 0) {
+            timeout = DEFAULT_TIMEOUT;
         }
+        int retries = Math.max(JotmProperties.intProperty(RETRIES_PROPERTY, DEFAULT_RETRIES), 0);
 
-        for (int w = 0; w < 10; w++) {  // only do it 10 times)
-            boolean rmsinthread = false;
-            int numThreads = resourceManagerThreadGroup.activeCount();
-
-            if (TraceTm.recovery.isDebugEnabled()) {
-                TraceTm.recovery.debug("resourceManager active count= "+ numThreads);
-            }
-
-            if (numThreads == 0) {
-                break;
-            }
+        ExecutorService executor = Executors.newFixedThreadPool(threads, new RecoveryThreadFactory());
+        CompletionService<Boolean> completion = new ExecutorCompletionService<Boolean>(executor);
+        Map<Future<Boolean>, processResourceManager> pending = new HashMap<Future<Boolean>, processResourceManager>();
 
-            Thread[] listOfThreads = new Thread[numThreads];
-            resourceManagerThreadGroup.enumerate(listOfThreads);
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < rmregsize; i++) {
+            processResourceManager rmtask = new processResourceManager(vTxRecovered, vRecoverRmInfo, rmreg, rmsize, i, retries);
+            pending.put(completion.submit(rmtask), rmtask);
+        }
+        executor.shutdown();
 
-            for (int i = 0; i < numThreads; i++) {
-                if (listOfThreads[i] != null) {
-                    if (TraceTm.recovery.isDebugEnabled()) {
-                        TraceTm.recovery.debug("resourceManager in thread= "+ listOfThreads[i].getName());
-                    }
+        // Wait until the last Resource Manager has replied, or until all
+        // those still running have exceeded their timeout.
 
-                    try {
-                        Thread.sleep(1000);  // 1 second
-                    } catch (InterruptedException e) {
-                        ;
-                    }
-                    rmsinthread = true;
+        boolean complete = true;
+        try {
+            while (!pending.isEmpty()) {
+                long wait = waitTime(pending.values(), threads, timeout);
+                if (wait <= 0) {
                     break;
                 }
+                Future<Boolean> done = completion.poll(wait, TimeUnit.MILLISECONDS);
+                if (done == null) {
+                    continue;
+                }
+                processResourceManager rmtask = pending.remove(done);
+                try {
+                    done.get();
+                } catch (ExecutionException e) {
+                    // already reported by the task
+                    complete = false;
+                }
+                rmtask.getRmRegistration().rmSetRmRecovered(true);
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
 
-            if (!rmsinthread) {
-                break;
+        if (!pending.isEmpty()) {
+            complete = false;
+            StringBuffer names = new StringBuffer();
+            for (Map.Entry<Future<Boolean>, processResourceManager> entry : pending.entrySet()) {
+                processResourceManager rmtask = entry.getValue();
+                entry.getKey().cancel(true);
+                rmtask.getRmRegistration().rmSetRmRecovered(false);
+                names.append(' ').append(rmtask.getRmRegistration().rmGetName());
+                if (rmtask.started == 0L) {
+                    names.append("(not started)");
+                }
             }
+            TraceTm.recovery.error("Resource Managers not recovered within " + timeout + " ms:" + names);
+        }
+
+        if (TraceTm.recovery.isDebugEnabled()) {
+            TraceTm.recovery.debug("Resource Managers recovered in " + (System.currentTimeMillis() - start) + " ms");
         }
 
         // We can now walk through TxRecovered and delete (howl done) any TxRecovered
@@ -1124,13 +1264,40 @@ public class JotmRecovery {
         // back successfully.
         // If any Xids have not been committed or rolledback, create a new TxRecovered
         // entry (howl commit) with the Xids (TxxidRecovered) that are still pending.
+        // When a Resource Manager has not been recovered, its Xids are not known:
+        // the transactions are kept until the next recovery.
 
-        doCleanupXidRecover ();
+        if (complete) {
+            doCleanupXidRecover ();
+        } else {
+            TraceTm.recovery.warn("Recovery incomplete, the recovered transactions are kept in the log");
+        }
+    }
 
-        for (int i = 0; i < rmregsize; i++) {
-            RmRegistration myrmreg = (RmRegistration) rmreg.elementAt(i);
-            myrmreg.rmSetRmRecovered(true);
+    /**
+     * @return how long (ms) to wait for the next reply of a Resource Manager,
+     * 0 when the tasks still running have all exceeded their timeout.
+     */
+    private static long waitTime(Collection<processResourceManager> tasks, int threads, long timeout) {
+        long now = System.currentTimeMillis();
+        long wait = 0L;
+        int running = 0;
+        boolean queued = false;
+
+        for (processResourceManager rmtask : tasks) {
+            long started = rmtask.started;
+            if (started == 0L) {
+                queued = true;
+            } else {
+                running++;
+                wait = Math.max(wait, started + timeout - now);
+            }
+        }
+        if (queued && running < threads) {
+            // a thread is free: a queued task is starting
+            wait = Math.max(wait, 10L);
         }
+        return wait;
     }
 
     private void doCleanupXidRecover () {
@@ -1192,6 +1359,10 @@ public class JotmRecovery {
                 try {
                     rmDoneRecord [0] = rmDone;
                     TransactionRecoveryImpl.getTransactionRecovery().howlDoneLog (rmDoneRecord, myxacommittingtx);
+                    Vector older = mytxRecovered.getSupersededTx();
+                    for (int j = 0; older != null && j < older.size(); j++) {
+                        TransactionRecoveryImpl.getTransactionRecovery().howlDoneLog (rmDoneRecord, (XACommittingTx) older.get(j));
+                    }
                 } catch (Exception f) {
                     String howlerror =
                         "Cannot howlDoneLog:"
@@ -1207,6 +1378,13 @@ public class JotmRecovery {
                     TraceTm.recovery.debug("remove txRecovered entry");
                 }
 
+                for (int j = 0; j < mytxRecovered.getxidcount(); j++) {
+                    myTxxidRecovered = mytxRecovered.getRecoverTxXidInfo(j);
+                    if (myTxxidRecovered != null
+                        && xidIndex.get(myTxxidRecovered.getRecoverxidkey()) == myTxxidRecovered) {
+                        xidIndex.remove(myTxxidRecovered.getRecoverxidkey());
+                    }
+                }
                 vTxRecovered.remove(i);
             }
         }
@@ -1258,4 +1436,15 @@ public class JotmRecovery {
         return;
     }
 
+
+    private static class RecoveryThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger count = new AtomicInteger();
+
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "JotmRecovery-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
 }
@@ -0,0 +1,69 @@
+/*
+ * @(#) LastResource.java
+ *
+ * JOTM: Java Open Transaction Manager
+ *
+ *
+ * This module was originally developed by
+ *
+ *  - Bull S.A. as part of the JOnAS application server code released in
+ *    July 1999 (www.bull.com)
+ *
+ * --------------------------------------------------------------------------
+ *  The original code and portions created by Bull SA are
+ *  Copyright (c) 1999 BULL SA
+ *  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * -Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * -Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * --------------------------------------------------------------------------
+ * $Id$
+ * --------------------------------------------------------------------------
+ */
+package org.objectweb.jotm;
+
+import javax.transaction.xa.XAResource;
+
+/**
+ * Marker for an XAResource that should not be prepared, typically a
+ * wrapper around a local (non XA) connection, or a resource whose prepare
+ * is expensive.
+ * <p>
+ * When a transaction is committed, all the other resources are prepared,
+ * then this one is committed in one phase: its outcome decides whether
+ * the others are committed or rolled back. The commit decision is logged
+ * before the other resources are committed. Only one last resource is
+ * allowed per transaction; the next ones are prepared as usual.
+ * <p>
+ * If the last resource rolls back, the other resources are rolled back.
+ * If its outcome is unknown (XAER_RMFAIL, XAER_RMERR...), the other
+ * resources are left prepared: the decision stays in the log with all the
+ * branches in doubt, the commit reports a heuristic hazard, and the
+ * recovery leaves these branches to the administrator.
+ * <p>
+ * The gamble is that the process must not stop during the one phase commit
+ * of the last resource: the recovery then finds the decision logged, and
+ * commits the other resources whatever the outcome of the last one.
+ */
+public interface LastResource extends XAResource {
+}
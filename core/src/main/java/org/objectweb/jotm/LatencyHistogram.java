@@ -0,0 +1,233 @@
+/*
+ * @(#) LatencyHistogram.java
+ *
+ * JOTM: Java Open Transaction Manager
+ *
+ *
+ * This module was originally developed by
+ *
+ *  - Bull S.A. as part of the JOnAS application server code released in
+ *    July 1999 (www.bull.com)
+ *
+ * --------------------------------------------------------------------------
+ *  The original code and portions created by Bull SA are
+ *  Copyright (c) 1999 BULL SA
+ *  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * -Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * -Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * --------------------------------------------------------------------------
+ * $Id$
+ * --------------------------------------------------------------------------
+ */
+package org.objectweb.jotm;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of latencies, with one bucket per power of 2 of microseconds:
+ * bucket 0 counts the latencies under 1us, bucket i the latencies between
+ * 2^(i-1) and 2^i us. Recording a value takes no lock.
+ */
+public class LatencyHistogram {
+
+    /**
+     * number of buckets. The last one counts everything above 2^38 us.
+     */
+    public static final int BUCKETS = 40;
+
+    private final String name;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+    private final StripedCounter count = new StripedCounter();
+
+    private final StripedCounter sum = new StripedCounter();
+
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Constructor
+     * @param name name of the measured operation
+     */
+    public LatencyHistogram(String name) {
+        this.name = name;
+    }
+
+    /**
+     * @return name of the measured operation
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Record a latency
+     * @param nanos latency in nanoseconds
+     */
+    public void record(long nanos) {
+        long micros = nanos / 1000;
+        if (micros < 0) {
+            micros = 0;
+        }
+        buckets.incrementAndGet(bucketOf(micros));
+        count.increment();
+        sum.add(micros);
+        long m = max.get();
+        while (micros > m && !max.compareAndSet(m, micros)) {
+            m = max.get();
+        }
+    }
+
+    /**
+     * Record the latency of an operation started at a given time
+     * @param startNanos value of System.nanoTime() when the operation started
+     */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * @return a copy of the current values
+     */
+    public Snapshot snapshot() {
+        long[] copy = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            copy[i] = buckets.get(i);
+        }
+        return new Snapshot(name, copy, count.sum(), sum.sum(), max.get());
+    }
+
+    /**
+     * Reset all values to 0
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets.set(i, 0);
+        }
+        count.reset();
+        sum.reset();
+        max.set(0);
+    }
+
+    /**
+     * @param micros latency in microseconds
+     * @return the index of the bucket
+     */
+    static int bucketOf(long micros) {
+        int bucket = 64 - Long.numberOfLeadingZeros(micros);
+        return bucket < BUCKETS ? bucket : BUCKETS - 1;
+    }
+
+    /**
+     * Values of a histogram at a given time
+     */
+    public static class Snapshot {
+
+        private final String name;
+        private final long[] buckets;
+        private final long count;
+        private final long sum;
+        private final long max;
+
+        Snapshot(String name, long[] buckets, long count, long sum, long max) {
+            this.name = name;
+            this.buckets = buckets;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        /**
+         * @return name of the measured operation
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return number of recorded latencies
+         */
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * @return sum of the recorded latencies in microseconds
+         */
+        public long getSum() {
+            return sum;
+        }
+
+        /**
+         * @return highest recorded latency in microseconds
+         */
+        public long getMax() {
+            return max;
+        }
+
+        /**
+         * @return mean latency in microseconds
+         */
+        public double getMean() {
+            return count == 0 ? 0 : (double) sum / count;
+        }
+
+        /**
+         * @return a copy of the buckets
+         */
+        public long[] getBuckets() {
+            return buckets.clone();
+        }
+
+        /**
+         * Upper bound of the bucket holding the given percentile.
+         * @param percentile between 0 and 100
+         * @return latency in microseconds
+         */
+        public long getPercentile(double percentile) {
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                total += buckets[i];
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(total * percentile / 100.0);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += buckets[i];
+                if (seen >= rank && buckets[i] > 0) {
+                    return Math.min(i == 0 ? 0 : (1L << i) - 1, max);
+                }
+            }
+            return max;
+        }
+
+        public String toString() {
+            return name + "[count=" + count + ", mean=" + (long) getMean() + "us, p99="
+                + getPercentile(99) + "us, max=" + max + "us]";
+        }
+    }
+}
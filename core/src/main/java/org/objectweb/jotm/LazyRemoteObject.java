@@ -0,0 +1,105 @@
+/*
+ * @(#) LazyRemoteObject.java
+ *
+ * JOTM: Java Open Transaction Manager
+ *
+ *
+ * This module was originally developed by
+ *
+ *  - Bull S.A. as part of the JOnAS application server code released in
+ *    July 1999 (www.bull.com)
+ *
+ * --------------------------------------------------------------------------
+ *  The original code and portions created by Bull SA are
+ *  Copyright (c) 1999 BULL SA
+ *  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * -Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * -Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * --------------------------------------------------------------------------
+ * $Id$
+ * --------------------------------------------------------------------------
+ */
+package org.objectweb.jotm;
+
+import java.rmi.NoSuchObjectException;
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+
+import javax.rmi.PortableRemoteObject;
+
+/**
+ * Base class of the remote objects of a transaction that are exported
+ * only once they may be called from another JVM.
+ * A transaction that stays local never registers them in the RMI runtime.
+ */
+public abstract class LazyRemoteObject implements Remote {
+
+    private volatile boolean exported = false;
+
+    // not this: subclasses hold their own monitor during remote calls
+    private final Object exportLock = new Object();
+
+    /**
+     * Export this object, if not done yet.
+     * Must be called before the object is passed to, or returned to, another JVM.
+     * @throws RemoteException the object could not be exported
+     */
+    public void export() throws RemoteException {
+        if (!exported) {
+            synchronized (exportLock) {
+                if (!exported) {
+                    PortableRemoteObject.exportObject(this);
+                    exported = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * Unexport this object, if it was exported.
+     */
+    public void unexport() {
+        if (exported) {
+            synchronized (exportLock) {
+                if (exported) {
+                    exported = false;
+                    try {
+                        PortableRemoteObject.unexportObject(this);
+                    } catch (NoSuchObjectException e) {
+                        if (TraceTm.jotm.isDebugEnabled()) {
+                            TraceTm.jotm.debug("Cannot unexport " + this + ": " + e);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return true if this object has been exported
+     */
+    public boolean isExported() {
+        return exported;
+    }
+}
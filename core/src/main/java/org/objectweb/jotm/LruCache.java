@@ -0,0 +1,121 @@
+/*
+ * @(#) LruCache.java
+ *
+ * JOTM: Java Open Transaction Manager
+ *
+ *
+ * This module was originally developed by
+ *
+ *  - Bull S.A. as part of the JOnAS application server code released in
+ *    July 1999 (www.bull.com)
+ *
+ * --------------------------------------------------------------------------
+ *  The original code and portions created by Bull SA are
+ *  Copyright (c) 1999 BULL SA
+ *  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * -Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * -Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * --------------------------------------------------------------------------
+ * $Id$
+ * --------------------------------------------------------------------------
+ */
+package org.objectweb.jotm;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cache bounded in size: when full, the least recently used entry is
+ * removed. Used by the interceptors to keep the propagation contexts
+ * already decoded, with the received bytes as key (see {@link BytesKey}).
+ * All the methods are synchronized.
+ */
+public final class LruCache<K, V> {
+
+    private final Map<K, V> map;
+
+    /**
+     * @param max max number of entries
+     */
+    public LruCache(final int max) {
+        map = new LinkedHashMap<K, V>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+                return size() > max;
+            }
+        };
+    }
+
+    /**
+     * @return the value of the key, or null
+     */
+    public synchronized V get(K key) {
+        return map.get(key);
+    }
+
+    /**
+     * Add an entry, removing the least recently used one if full.
+     */
+    public synchronized void put(K key, V value) {
+        map.put(key, value);
+    }
+
+    /**
+     * @return the value removed, or null
+     */
+    public synchronized V remove(K key) {
+        return map.remove(key);
+    }
+
+    /**
+     * @return number of entries
+     */
+    public synchronized int size() {
+        return map.size();
+    }
+
+    /**
+     * Byte array used as a key, compared by content.
+     * The array must not be modified once used as a key.
+     */
+    public static final class BytesKey {
+        private final byte[] bytes;
+        private final int hash;
+
+        public BytesKey(byte[] bytes) {
+            this.bytes = bytes;
+            this.hash = Arrays.hashCode(bytes);
+        }
+
+        public int hashCode() {
+            return hash;
+        }
+
+        public boolean equals(Object o) {
+            return o instanceof BytesKey && Arrays.equals(bytes, ((BytesKey) o).bytes);
+        }
+    }
+}
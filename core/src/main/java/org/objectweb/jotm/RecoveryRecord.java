@@ -0,0 +1,325 @@
+/*
+ * @(#) RecoveryRecord.java
+ *
+ * JOTM: Java Open Transaction Manager
+ *
+ *
+ * This module was originally developed by
+ *
+ *  - Bull S.A. as part of the JOnAS application server code released in
+ *    July 1999 (www.bull.com)
+ *
+ * --------------------------------------------------------------------------
+ *  The original code and portions created by Bull SA are
+ *  Copyright (c) 1999 BULL SA
+ *  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * -Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * -Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * --------------------------------------------------------------------------
+ * $Id$
+ * --------------------------------------------------------------------------
+ */
+package org.objectweb.jotm;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.transaction.xa.XAResource;
+
+/**
+ * Compact encoding of the recovery record of a transaction.
+ * <p>
+ * The whole transaction is written in a single field (the former format
+ * used one RR1 field plus one RR2 field per resource):
+ * <pre>
+ *     record type and version (byte[3]) - 'RC1'
+ *     recovery record stored date-time (long) - epoch millis
+ *     transaction created date-time (long) - epoch millis
+ *     format id (int)
+ *     gtrid length (varint), gtrid (byte[])
+ *     bqual length (varint), bqual (byte[])
+ *     count of XA resource classes (varint)
+ *     for each XA resource class:
+ *         length of class name (varint), class name (byte[])
+ *     count of XA resources (varint)
+ *     for each XA resource:
+ *         XA resource class index in the list above (varint)
+ *         length of XA resource name (varint), XA resource name (byte[])
+ *         flags (byte) - SAME_GTRID if format id and gtrid are the transaction ones,
+ *                        otherwise format id (int), gtrid length (varint), gtrid (byte[])
+ *         bqual prefix shared with the previous bqual (varint)
+ *         length of the rest of bqual (varint), rest of bqual (byte[])
+ *         XID status-state (varint)
+ * </pre>
+ * The first bqual of the list is encoded against the transaction bqual.
+ * A record only depends on itself: it is done with its transaction.
+ * <p>
+ * Records are serialized in a buffer reused by each thread, and copied
+ * once in a byte array of the exact size. A thread only keeps a buffer
+ * of at most MAX_CACHED_BUFFER bytes: the rare larger records are
+ * serialized in a buffer allocated for them.
+ */
+final class RecoveryRecord {
+
+    static final byte [] RC1 = "RC1".getBytes();
+
+    /**
+     * version of the records written by this class
+     */
+    static final int VERSION = 1;
+
+    static final int SAME_GTRID = 1;
+
+    /**
+     * largest buffer kept by a thread between two records
+     */
+    static final int MAX_CACHED_BUFFER = 8192;
+
+    private static final ThreadLocal<ByteBuffer> buffers = new ThreadLocal<ByteBuffer>() {
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocate(512);
+        }
+    };
+
+    private RecoveryRecord() {
+    }
+
+    // ------------------------------------------------------------------
+    // Writing
+    // ------------------------------------------------------------------
+
+    /**
+     * Encode the recovery record of a transaction.
+     * @param txxid Xid of the transaction
+     * @param txdate creation date of the transaction (epoch millis)
+     * @param resources logged XAResources
+     * @param resnames names (toString) of the logged XAResources
+     * @param xids Xids of the logged XAResources
+     * @param status status of each XAResource
+     * @return the record
+     */
+    static byte [] encode(Xid txxid, long txdate, List resources, List resnames, List xids,
+                          int [] status) {
+        int count = resources.size();
+        byte [] txgtrid = gtrid(txxid);
+        byte [] txbqual = bqual(txxid);
+        int txfi = txxid.getFormatId();
+
+        // classes used by this transaction, usually one or two
+        List<String> classes = new ArrayList<String>(2);
+        int [] classIndex = new int[count];
+        for (int i = 0; i < count; i++) {
+            String name = ((XAResource) resources.get(i)).getClass().getName();
+            int index = classes.indexOf(name);
+            if (index < 0) {
+                index = classes.size();
+                classes.add(name);
+            }
+            classIndex[i] = index;
+        }
+
+        ByteBuffer bb = buffers.get();
+        bb.clear();
+        bb = ensure(bb, 3 + 8 + 8 + 4 + 5 + txgtrid.length + 5 + txbqual.length + 5);
+        bb.put(RC1);
+        bb.putLong(System.currentTimeMillis());
+        bb.putLong(txdate);
+        bb.putInt(txfi);
+        putBytes(bb, txgtrid);
+        putBytes(bb, txbqual);
+        putVarint(bb, classes.size());
+        for (String name : classes) {
+            byte [] bname = name.getBytes();
+            bb = ensure(bb, 5 + bname.length + 5);
+            putBytes(bb, bname);
+        }
+        putVarint(bb, count);
+
+        byte [] previous = txbqual;
+        for (int i = 0; i < count; i++) {
+            byte [] resname = (byte []) resnames.get(i);
+            Xid xid = (Xid) xids.get(i);
+            byte [] gtrid = gtrid(xid);
+            byte [] bqual = bqual(xid);
+
+            bb = ensure(bb, 5 + 5 + resname.length + 1 + 4 + 5 + gtrid.length + 5 + 5 + bqual.length + 5);
+            putVarint(bb, classIndex[i]);
+            putBytes(bb, resname);
+            if (xid.getFormatId() == txfi && Arrays.equals(gtrid, txgtrid)) {
+                bb.put((byte) SAME_GTRID);
+            } else {
+                bb.put((byte) 0);
+                bb.putInt(xid.getFormatId());
+                putBytes(bb, gtrid);
+            }
+            int prefix = 0;
+            int max = Math.min(previous.length, bqual.length);
+            while (prefix < max && previous[prefix] == bqual[prefix]) {
+                prefix++;
+            }
+            putVarint(bb, prefix);
+            putVarint(bb, bqual.length - prefix);
+            bb.put(bqual, prefix, bqual.length - prefix);
+            putVarint(bb, status[i]);
+            previous = bqual;
+        }
+        if (bb.capacity() <= MAX_CACHED_BUFFER) {
+            buffers.set(bb);
+        }
+
+        byte [] record = new byte[bb.position()];
+        System.arraycopy(bb.array(), 0, record, 0, record.length);
+        return record;
+    }
+
+    // ------------------------------------------------------------------
+    // Reading
+    // ------------------------------------------------------------------
+
+    /**
+     * Decode a RC1 record.
+     * @param version version of the record
+     * @param bb the record, positioned after its type
+     * @return the transaction
+     * @throws IllegalArgumentException unknown version
+     */
+    static Tx decode(int version, ByteBuffer bb) {
+        if (version != VERSION) {
+            throw new IllegalArgumentException("Unknown recovery record version " + version);
+        }
+        Tx tx = new Tx();
+        tx.storedDate = bb.getLong();
+        tx.txDate = bb.getLong();
+        tx.formatId = bb.getInt();
+        tx.gtrid = getBytes(bb);
+        tx.bqual = getBytes(bb);
+
+        String [] classes = new String[getVarint(bb)];
+        for (int i = 0; i < classes.length; i++) {
+            classes[i] = new String(getBytes(bb));
+        }
+
+        int count = getVarint(bb);
+        tx.branches = new ArrayList<Branch>(count);
+        byte [] previous = tx.bqual;
+        for (int i = 0; i < count; i++) {
+            Branch br = new Branch();
+            br.className = classes[getVarint(bb)];
+            br.resName = getBytes(bb);
+            br.formatId = tx.formatId;
+            br.gtrid = tx.gtrid;
+            if ((bb.get() & SAME_GTRID) == 0) {
+                br.formatId = bb.getInt();
+                br.gtrid = getBytes(bb);
+            }
+            int prefix = getVarint(bb);
+            int rest = getVarint(bb);
+            br.bqual = new byte[prefix + rest];
+            System.arraycopy(previous, 0, br.bqual, 0, prefix);
+            bb.get(br.bqual, prefix, rest);
+            br.status = getVarint(bb);
+            previous = br.bqual;
+            tx.branches.add(br);
+        }
+        return tx;
+    }
+
+    /**
+     * A decoded transaction
+     */
+    static final class Tx {
+        long storedDate;
+        long txDate;
+        int formatId;
+        byte [] gtrid;
+        byte [] bqual;
+        List<Branch> branches;
+    }
+
+    /**
+     * A decoded XA resource branch
+     */
+    static final class Branch {
+        String className;
+        byte [] resName;
+        int formatId;
+        byte [] gtrid;
+        byte [] bqual;
+        int status;
+    }
+
+    static void putVarint(ByteBuffer bb, int value) {
+        while ((value & ~0x7F) != 0) {
+            bb.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        bb.put((byte) value);
+    }
+
+    static int getVarint(ByteBuffer bb) {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = bb.get();
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    static byte [] getBytes(ByteBuffer bb) {
+        byte [] b = new byte[getVarint(bb)];
+        bb.get(b);
+        return b;
+    }
+
+    private static void putBytes(ByteBuffer bb, byte [] b) {
+        putVarint(bb, b.length);
+        bb.put(b);
+    }
+
+    /**
+     * Grow the buffer if less than size bytes remain.
+     */
+    private static ByteBuffer ensure(ByteBuffer bb, int size) {
+        if (bb.remaining() >= size) {
+            return bb;
+        }
+        ByteBuffer nb = ByteBuffer.allocate(Math.max(bb.capacity() * 2, bb.position() + size));
+        bb.flip();
+        nb.put(bb);
+        return nb;
+    }
+
+    private static byte [] gtrid(Xid xid) {
+        return XidImpl.gtridOf(xid);
+    }
+
+    private static byte [] bqual(Xid xid) {
+        return XidImpl.bqualOf(xid);
+    }
+}
@@ -0,0 +1,411 @@
+/*
+ * @(#) ResourceFanOut.java
+ *
+ * JOTM: Java Open Transaction Manager
+ *
+ *
+ * This module was originally developed by
+ *
+ *  - Bull S.A. as part of the JOnAS application server code released in
+ *    July 1999 (www.bull.com)
+ *
+ * --------------------------------------------------------------------------
+ *  The original code and portions created by Bull SA are
+ *  Copyright (c) 1999 BULL SA
+ *  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * -Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * -Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * --------------------------------------------------------------------------
+ * $Id$
+ * --------------------------------------------------------------------------
+ */
+package org.objectweb.jotm;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.transaction.xa.XAException;
+import javax.transaction.xa.XAResource;
+
+/**
+ * Sends prepare or commit to all the XAResources of a transaction
+ * concurrently, so that the 2PC latency is the one of the slowest resource
+ * instead of the sum of all of them.
+ * The Synchronizations registered on a ControlImpl (one per JVM involved in
+ * the transaction) are called the same way.
+ * <p>
+ * This is disabled unless jotm.twopc.ParallelThreads is positive.
+ * The executor is bounded: when all its threads are busy and its queue is
+ * full, the calls are made by the committing thread.
+ * A resource that does not reply within jotm.twopc.ResourceTimeout ms is
+ * considered failed (XAER_RMFAIL): a prepare is then voted rollback, and a
+ * commit is left to the recovery.
+ * The call is not interrupted, since an XA call may go on anyway. The
+ * coordinator must not roll back a branch whose prepare is still running
+ * (see inFlight): the branch is rolled back by the fan out thread once its
+ * prepare returns.
+ */
+final class ResourceFanOut {
+
+    private static final String THREADS_PROPERTY = "jotm.twopc.ParallelThreads";
+    private static final String TIMEOUT_PROPERTY = "jotm.twopc.ResourceTimeout";
+    private static final int DEFAULT_TIMEOUT = 30000;
+
+    private static final int PREPARE = 0;
+    private static final int COMMIT = 1;
+
+    private static ResourceFanOut unique = null;
+    private static boolean initialized = false;
+
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * max time (ms) to wait for a resource
+     */
+    private final long timeout;
+
+    private ResourceFanOut(int threads, long timeout) {
+        this.timeout = timeout;
+        executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+                                          new ArrayBlockingQueue<Runnable>(threads * 16),
+                                          new FanOutThreadFactory(),
+                                          new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    /**
+     * @return the fan out, or null if the resources are called sequentially
+     */
+    static synchronized ResourceFanOut getInstance() {
+        if (!initialized) {
+            initialized = true;
+            int threads = JotmProperties.intProperty(THREADS_PROPERTY, 0);
+            if (threads > 0) {
+                int timeout = JotmProperties.intProperty(TIMEOUT_PROPERTY, DEFAULT_TIMEOUT);
+                unique = new ResourceFanOut(threads, timeout > 0 ? timeout : DEFAULT_TIMEOUT);
+                if (TraceTm.jotm.isDebugEnabled()) {
+                    TraceTm.jotm.debug("parallel 2PC: threads= " + threads + ", timeout= " + timeout);
+                }
+            }
+        }
+        return unique;
+    }
+
+    /**
+     * Stop the threads. The resources are called sequentially afterwards,
+     * until the next getInstance() after a restart.
+     */
+    static synchronized void stop() {
+        if (unique != null) {
+            unique.executor.shutdown();
+            unique = null;
+        }
+        initialized = false;
+    }
+
+    /**
+     * Send prepare to each resource.
+     * @param resources the XAResources
+     * @param xids the Xid of each XAResource
+     * @return for each resource, the vote (Integer) or the XAException
+     */
+    Object[] prepare(List resources, List xids) {
+        return invoke(PREPARE, resources, xids);
+    }
+
+    /**
+     * Send 2 phase commit to each resource.
+     * @param resources the XAResources
+     * @param xids the Xid of each XAResource
+     * @return for each resource, XAResource.XA_OK (Integer) or the XAException
+     */
+    Object[] commit(List resources, List xids) {
+        return invoke(COMMIT, resources, xids);
+    }
+
+    /**
+     * Send before_completion to each synchronization.
+     * @param syncs the RemoteSynchros
+     * @param ctrl the Control of the transaction
+     * @return for each synchronization, null or the exception raised
+     */
+    Object[] beforeCompletion(List<RemoteSynchro> syncs, Control ctrl) {
+        List<Callable<Object>> calls = new ArrayList<Callable<Object>>(syncs.size());
+        for (RemoteSynchro sync : syncs) {
+            calls.add(new SynchroCall(sync, ctrl, true, 0));
+        }
+        return invokeAll(calls, syncs);
+    }
+
+    /**
+     * Send after_completion to each synchronization.
+     * @param syncs the RemoteSynchros
+     * @param ctrl the Control of the transaction
+     * @param status the status of the transaction
+     * @return for each synchronization, null or the exception raised
+     */
+    Object[] afterCompletion(List<RemoteSynchro> syncs, Control ctrl, int status) {
+        List<Callable<Object>> calls = new ArrayList<Callable<Object>>(syncs.size());
+        for (RemoteSynchro sync : syncs) {
+            calls.add(new SynchroCall(sync, ctrl, false, status));
+        }
+        return invokeAll(calls, syncs);
+    }
+
+    /**
+     * @param result an element of the array returned by prepare or commit
+     * @return true if the call timed out while the resource was processing
+     * it: the coordinator must not send anything else on this branch.
+     */
+    static boolean inFlight(Object result) {
+        return result instanceof NoReply;
+    }
+
+    /**
+     * Get the result of a resource.
+     * @param result an element of the array returned by prepare or commit
+     * @return the vote
+     * @throws XAException the exception of the resource
+     */
+    static int result(Object result) throws XAException {
+        if (result instanceof XAException) {
+            throw (XAException) result;
+        }
+        return ((Integer) result).intValue();
+    }
+
+    private Object[] invoke(int op, List resources, List xids) {
+        int size = resources.size();
+        List<Callable<Object>> calls = new ArrayList<Callable<Object>>(size);
+        for (int i = 0; i < size; i++) {
+            calls.add(new Call(op, (XAResource) resources.get(i),
+                               (javax.transaction.xa.Xid) xids.get(i)));
+        }
+
+        Object[] results = invokeAll(calls, resources);
+        for (int i = 0; i < size; i++) {
+            if (results[i] instanceof TimeoutException || results[i] instanceof InterruptedException) {
+                results[i] = ((Call) calls.get(i)).abandon((Throwable) results[i]);
+            }
+            if (results[i] instanceof Throwable) {
+                results[i] = error((Throwable) results[i]);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Run the calls concurrently, and wait for them until the deadline.
+     * @param calls the calls
+     * @param targets the object called by each call, for the traces
+     * @return for each call, its result or the Throwable it raised:
+     * TimeoutException if it did not reply in time, InterruptedException
+     * if the wait was interrupted. The calls are not cancelled.
+     */
+    private Object[] invokeAll(List<Callable<Object>> calls, List<?> targets) {
+        int size = calls.size();
+        Object[] results = new Object[size];
+        Future[] futures = new Future[size];
+
+        long deadline = System.currentTimeMillis() + timeout;
+        for (int i = 0; i < size; i++) {
+            futures[i] = executor.submit(calls.get(i));
+        }
+
+        for (int i = 0; i < size; i++) {
+            try {
+                long left = deadline - System.currentTimeMillis();
+                results[i] = futures[i].get(left > 0 ? left : 0, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                TraceTm.jotm.error("No reply from " + targets.get(i) + " after " + timeout + " ms");
+                results[i] = e;
+            } catch (ExecutionException e) {
+                results[i] = e.getCause();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                results[i] = e;
+            }
+        }
+        return results;
+    }
+
+    private static XAException error(Throwable t) {
+        if (t instanceof XAException) {
+            return (XAException) t;
+        }
+        XAException xe = new XAException(t.toString());
+        xe.errorCode = XAException.XAER_RMERR;
+        xe.initCause(t);
+        return xe;
+    }
+
+    /**
+     * Result of a call still running when the coordinator stopped waiting
+     */
+    private static final class NoReply extends XAException {
+
+        private static final long serialVersionUID = 1L;
+
+        NoReply(String msg) {
+            super(msg);
+            errorCode = XAException.XAER_RMFAIL;
+        }
+    }
+
+    /**
+     * prepare or commit on one resource
+     */
+    private static class Call implements Callable<Object> {
+
+        private static final int WAITING = 0;
+        private static final int RUNNING = 1;
+        private static final int DONE = 2;
+        private static final int ABANDONED = 3;
+
+        private final int op;
+        private final XAResource res;
+        private final javax.transaction.xa.Xid xid;
+
+        private int state = WAITING;
+        private Object result;
+
+        Call(int op, XAResource res, javax.transaction.xa.Xid xid) {
+            this.op = op;
+            this.res = res;
+            this.xid = xid;
+        }
+
+        public Object call() {
+            synchronized (this) {
+                if (state == ABANDONED) {
+                    // never started: the coordinator handles the branch
+                    return null;
+                }
+                state = RUNNING;
+            }
+            Object ret;
+            try {
+                if (op == PREPARE) {
+                    ret = Integer.valueOf(res.prepare(xid));
+                } else {
+                    res.commit(xid, false);
+                    ret = Integer.valueOf(XAResource.XA_OK);
+                }
+            } catch (Throwable t) {
+                ret = error(t);
+            }
+            boolean abandoned;
+            synchronized (this) {
+                abandoned = state == ABANDONED;
+                state = DONE;
+                result = ret;
+            }
+            if (abandoned && op == PREPARE && ret instanceof Integer
+                && ((Integer) ret).intValue() == XAResource.XA_OK) {
+                // the transaction was rolled back without this branch
+                TraceTm.jotm.info("Late prepare of " + res + ": rolled back");
+                try {
+                    res.rollback(xid);
+                } catch (XAException e) {
+                    TraceTm.jotm.error("Cannot roll back " + res + " after a late prepare (error code = "
+                                       + e.errorCode + "), left to the recovery");
+                }
+            }
+            return ret;
+        }
+
+        /**
+         * Stop waiting for the call.
+         * @param cause the TimeoutException or InterruptedException that
+         * stopped the wait
+         * @return the result if the call returned meanwhile, a NoReply if the
+         * resource is processing it, else an XAER_RMFAIL XAException.
+         */
+        synchronized Object abandon(Throwable cause) {
+            String msg = cause instanceof TimeoutException ? "No reply" : "Interrupted";
+            switch (state) {
+            case DONE:
+                return result;
+            case RUNNING:
+                state = ABANDONED;
+                return new NoReply(msg + " from " + res);
+            default:
+                state = ABANDONED;
+                XAException xe = new XAException(msg + " before the call to " + res);
+                xe.errorCode = XAException.XAER_RMFAIL;
+                return xe;
+            }
+        }
+    }
+
+    /**
+     * before_completion or after_completion on one synchronization
+     */
+    private static class SynchroCall implements Callable<Object> {
+
+        private final RemoteSynchro sync;
+        private final Control ctrl;
+        private final boolean before;
+        private final int status;
+
+        SynchroCall(RemoteSynchro sync, Control ctrl, boolean before, int status) {
+            this.sync = sync;
+            this.ctrl = ctrl;
+            this.before = before;
+            this.status = status;
+        }
+
+        public Object call() {
+            try {
+                if (before) {
+                    sync.before_completion(ctrl);
+                } else {
+                    sync.after_completion(ctrl, status);
+                }
+                return null;
+            } catch (Throwable t) {
+                return t;
+            }
+        }
+    }
+
+    private static class FanOutThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger count = new AtomicInteger();
+
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "JotmFanOut-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
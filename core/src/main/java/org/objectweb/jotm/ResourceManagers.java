@@ -0,0 +1,183 @@
+/*
+ * @(#) ResourceManagers.java
+ *
+ * JOTM: Java Open Transaction Manager
+ *
+ *
+ * This module was originally developed by
+ *
+ *  - Bull S.A. as part of the JOnAS application server code released in
+ *    July 1999 (www.bull.com)
+ *
+ * --------------------------------------------------------------------------
+ *  The original code and portions created by Bull SA are
+ *  Copyright (c) 1999 BULL SA
+ *  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * -Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * -Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * --------------------------------------------------------------------------
+ * $Id$
+ * --------------------------------------------------------------------------
+ */
+package org.objectweb.jotm;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.transaction.xa.XAResource;
+
+/**
+ * Cache of the Resource Manager of the XAResources, shared by all the
+ * transactions. XAResources found to be the same RM by isSameRM are
+ * given the same key: the name of the Resource Manager when one of them
+ * was registered for recovery, an anonymous key otherwise.
+ * <p>
+ * Only positive answers of isSameRM are cached: a resource whose key is
+ * not the one of a branch is still checked with isSameRM.
+ * XAResources are weakly referenced and compared by identity, so pooled
+ * connections can be collected, and an XAResource overriding equals is
+ * not mistaken for another one.
+ */
+final class ResourceManagers {
+
+    private static final ConcurrentMap<Object, Object> keys = new ConcurrentHashMap<Object, Object>();
+
+    /**
+     * Weak keys of the collected XAResources
+     */
+    private static final ReferenceQueue<XAResource> collected = new ReferenceQueue<XAResource>();
+
+    private ResourceManagers() {
+    }
+
+    /**
+     * @return the key of the Resource Manager of this XAResource,
+     * or null if unknown
+     */
+    static Object getKey(XAResource xares) {
+        return keys.get(new Lookup(xares));
+    }
+
+    /**
+     * @return the key of the Resource Manager of this XAResource,
+     * a new one if unknown
+     */
+    static Object key(XAResource xares) {
+        Object key = keys.get(new Lookup(xares));
+        if (key == null) {
+            expunge();
+            Object created = new Object();
+            key = keys.putIfAbsent(new WeakKey(xares), created);
+            if (key == null) {
+                key = created;
+            }
+        }
+        return key;
+    }
+
+    /**
+     * res.isSameRM(xares) returned true
+     */
+    static void sameRM(XAResource res, XAResource xares) {
+        Object key = key(res);
+        keys.put(new WeakKey(xares), key);
+    }
+
+    /**
+     * The XAResource has been registered for recovery with this name.
+     */
+    static void register(String rmName, XAResource xares) {
+        expunge();
+        keys.putIfAbsent(new WeakKey(xares), rmName);
+    }
+
+    /**
+     * Remove the entries of the collected XAResources
+     */
+    private static void expunge() {
+        Reference<? extends XAResource> ref;
+        while ((ref = collected.poll()) != null) {
+            keys.remove(ref);
+        }
+    }
+
+    /**
+     * Weak reference to an XAResource, equal to the keys of the same
+     * XAResource. Once collected, it is only equal to itself.
+     */
+    private static final class WeakKey extends WeakReference<XAResource> {
+
+        private final int hash;
+
+        WeakKey(XAResource xares) {
+            super(xares, collected);
+            hash = System.identityHashCode(xares);
+        }
+
+        public int hashCode() {
+            return hash;
+        }
+
+        public boolean equals(Object o) {
+            if (o == this) {
+                return true;
+            }
+            XAResource xares = get();
+            if (xares == null) {
+                return false;
+            }
+            if (o instanceof WeakKey) {
+                return ((WeakKey) o).get() == xares;
+            }
+            return o instanceof Lookup && ((Lookup) o).xares == xares;
+        }
+    }
+
+    /**
+     * Strong key used to look up an XAResource without registering
+     * a reference.
+     */
+    private static final class Lookup {
+
+        private final XAResource xares;
+
+        Lookup(XAResource xares) {
+            this.xares = xares;
+        }
+
+        public int hashCode() {
+            return System.identityHashCode(xares);
+        }
+
+        public boolean equals(Object o) {
+            if (o instanceof WeakKey) {
+                return ((WeakKey) o).get() == xares;
+            }
+            return o instanceof Lookup && ((Lookup) o).xares == xares;
+        }
+    }
+}
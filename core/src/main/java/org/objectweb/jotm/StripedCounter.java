@@ -0,0 +1,118 @@
+/*
+ * @(#) StripedCounter.java
+ *
+ * JOTM: Java Open Transaction Manager
+ *
+ *
+ * This module was originally developed by
+ *
+ *  - Bull S.A. as part of the JOnAS application server code released in
+ *    July 1999 (www.bull.com)
+ *
+ * --------------------------------------------------------------------------
+ *  The original code and portions created by Bull SA are
+ *  Copyright (c) 1999 BULL SA
+ *  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * -Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * -Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * --------------------------------------------------------------------------
+ * $Id$
+ * --------------------------------------------------------------------------
+ */
+package org.objectweb.jotm;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counter spread over several cells, so that threads incrementing it
+ * concurrently do not fight for the same cache line.
+ * The value is the sum of the cells: it is exact when nobody is
+ * updating the counter, weakly consistent otherwise.
+ */
+class StripedCounter {
+
+    /**
+     * distance (in longs) between two cells, to keep them in
+     * different cache lines
+     */
+    private static final int PADDING = 8;
+
+    private static final int STRIPES;
+
+    static {
+        int n = 1;
+        int cpus = Runtime.getRuntime().availableProcessors() * 2;
+        while (n < cpus) {
+            n <<= 1;
+        }
+        STRIPES = n;
+    }
+
+    private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+    /**
+     * @return the cell used by the current thread
+     */
+    private static int index() {
+        long id = Thread.currentThread().getId();
+        int h = (int) (id ^ (id >>> 32));
+        h ^= (h >>> 16);
+        return (h & (STRIPES - 1)) * PADDING;
+    }
+
+    /**
+     * Add one to the counter
+     */
+    void increment() {
+        cells.incrementAndGet(index());
+    }
+
+    /**
+     * Add a value to the counter
+     * @param delta value to add
+     */
+    void add(long delta) {
+        cells.addAndGet(index(), delta);
+    }
+
+    /**
+     * @return the value of the counter
+     */
+    long sum() {
+        long sum = 0;
+        for (int i = 0; i < STRIPES; i++) {
+            sum += cells.get(i * PADDING);
+        }
+        return sum;
+    }
+
+    /**
+     * Reset the counter to 0
+     */
+    void reset() {
+        for (int i = 0; i < STRIPES; i++) {
+            cells.set(i * PADDING, 0);
+        }
+    }
+}
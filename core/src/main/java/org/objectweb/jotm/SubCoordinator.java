@@ -56,9 +56,13 @@ package org.objectweb.jotm;
 
 import java.rmi.RemoteException;
 
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Vector;
-import java.nio.ByteBuffer;
 
 import javax.transaction.Status;
 import javax.transaction.Synchronization;
@@ -70,7 +74,6 @@ import javax.transaction.SystemException;
 import javax.transaction.TransactionRolledbackException;
 import javax.transaction.xa.XAException;
 import javax.transaction.xa.XAResource;
-import javax.rmi.PortableRemoteObject;
 
 import org.objectweb.howl.log.xa.XACommittingTx;
 
@@ -147,9 +150,12 @@ class SLog {
 /**
  * This object is the local coordinator. It may be registered as
  * sub-coordinator in case of distributed transaction, so it must
- * be callable remotely and implement Resource
+ * be callable remotely and implement Resource.
+ * It is exported only when registered to a remote coordinator.
+ * When it has Synchronizations, it is also registered once as a
+ * RemoteSynchro, calling all of them in a single remote call.
  */
-public class SubCoordinator extends PortableRemoteObject implements Resource {
+public class SubCoordinator extends LazyRemoteObject implements Resource, RemoteSynchro {
 
     // ------------------------------------------------------------------
     // Object state
@@ -173,6 +179,32 @@ public class SubCoordinator extends PortableRemoteObject implements Resource {
     private Vector resourceList = new Vector();
     private Vector javaxxidList = new Vector();
 
+    /**
+     * index in resourceList of the branch of each enlisted XAResource
+     * @serial
+     */
+    private Map<XAResource, Integer> branchByResource = new IdentityHashMap<XAResource, Integer>(4);
+
+    /**
+     * index in resourceList of the branch of each Resource Manager key
+     * (see ResourceManagers)
+     * @serial
+     */
+    private Map<Object, Integer> branchByRm = new HashMap<Object, Integer>(4);
+
+    /**
+     * index in resourceList of the LastResource, or -1
+     * @serial
+     */
+    private int lastResource = -1;
+
+    /**
+     * indexes in resourceList of the branches whose parallel prepare did not
+     * reply in time and may still be running: they are not rolled back here
+     * (see ResourceFanOut), or null
+     */
+    private transient BitSet inFlight = null;
+
     /**
      * Keep a reference on TransactionManager
      * @serial
@@ -215,8 +247,6 @@ public class SubCoordinator extends PortableRemoteObject implements Resource {
 
     static final String JOTM_RD_ONLY = "JOTM_RD_ONLY";
 
-    static final byte [] RT1 = "RR1".getBytes();
-    static final byte [] RT2 = "RR2".getBytes();
     static final byte [] JOTMDONE = "RR3JOTMDONE".getBytes();
 
     // ------------------------------------------------------------------
@@ -254,6 +284,13 @@ public class SubCoordinator extends PortableRemoteObject implements Resource {
             TraceTm.jta.debug("status="+ StatusHelper.getStatusName(status));
         }
 
+        // As in commit_one_phase, the synchronizations are called before
+        // the XAResources are ended: what they do is part of the branches.
+        boolean active = status != Status.STATUS_MARKED_ROLLBACK && status != Status.STATUS_COMMITTED;
+        if (active) {
+            doBeforeCompletion(true);
+        }
+
         try {
             tx.doDetach(XAResource.TMSUCCESS);
         } catch (SystemException e) {
@@ -268,19 +305,16 @@ public class SubCoordinator extends PortableRemoteObject implements Resource {
             }
         }
 
-        switch (status) {
-        case Status.STATUS_MARKED_ROLLBACK :
+        if (!active) {
+            if (status == Status.STATUS_COMMITTED) {
+                return Resource.VOTE_COMMIT;
+            }
             // Doing rollback now may be an issue, because the following rollback
             // will not work (this object do not exist any longer)
             //doBeforeCompletion(false);
             //doRollback();
             status = Status.STATUS_ROLLING_BACK;
             return Resource.VOTE_ROLLBACK;
-        case Status.STATUS_COMMITTED :
-            return Resource.VOTE_COMMIT;
-        default :
-            doBeforeCompletion(true);
-            break;
         }
 
         // Recheck Status after doBeforeCompletion
@@ -293,7 +327,9 @@ public class SubCoordinator extends PortableRemoteObject implements Resource {
             return Resource.VOTE_ROLLBACK;
         }
 
-        int ret = doPrepare();
+        long start = System.nanoTime();
+        int ret = doPrepare(-1);
+        TransactionMetrics.getInstance().getPrepareLatency().recordSince(start);
 
         if (ret == Resource.VOTE_READONLY) {
             // Transaction completed for this Resource
@@ -376,7 +412,9 @@ public class SubCoordinator extends PortableRemoteObject implements Resource {
                                + StatusHelper.getStatusName(status));
             return;
         }
-        doCommit();
+        long start = System.nanoTime();
+        doCommit(true);
+        TransactionMetrics.getInstance().getCommitLatency().recordSince(start);
     }
 
     /**
@@ -471,16 +509,31 @@ public class SubCoordinator extends PortableRemoteObject implements Resource {
         }
 
         // only 1 Resource => 1 phase commit
+        TransactionMetrics metrics = TransactionMetrics.getInstance();
         if (resourceList.size() == 1) {
+            metrics.onePhaseFastPath();
+            long start = System.nanoTime();
             doOnePhaseCommit();
+            metrics.getCommitLatency().recordSince(start);
+            return;
+        }
+
+        // last resource: the others are prepared, and the one phase
+        // commit of the last resource decides the outcome
+        if (lastResource >= 0) {
+            doLastResourceCommit();
             return;
         }
 
         // 2 phase commit
-        int vote = doPrepare();
+        long start = System.nanoTime();
+        int vote = doPrepare(-1);
+        metrics.getPrepareLatency().recordSince(start);
         switch (vote) {
         case Resource.VOTE_COMMIT :
-            doCommit();
+            start = System.nanoTime();
+            doCommit(false);
+            metrics.getCommitLatency().recordSince(start);
             break;
         case Resource.VOTE_READONLY :
             doAfterCompletion();
@@ -501,10 +554,56 @@ public class SubCoordinator extends PortableRemoteObject implements Resource {
         doForget();
     }
 
+    // ------------------------------------------------------------------
+    // RemoteSynchro interface
+    // ------------------------------------------------------------------
+
+    /**
+     * The superior coordinator is about to prepare: send beforeCompletion
+     * to all the local synchronizations. prepare will not send it again.
+     * @param ctrl the Control of the transaction
+     * @throws TransactionRolledbackException a synchronization failed
+     */
+    public void before_completion(Control ctrl) throws RemoteException {
+        if (TraceTm.jta.isDebugEnabled()) {
+            TraceTm.jta.debug("status="+ StatusHelper.getStatusName(status));
+        }
+
+        if (status != Status.STATUS_ACTIVE) {
+            // prepare or rollback will do it
+            return;
+        }
+        doBeforeCompletion(true);
+
+        if (status == Status.STATUS_MARKED_ROLLBACK) {
+            TraceTm.jotm.info("Rollback during beforeCompletion in SubCoordinator.before_completion");
+            throw new TransactionRolledbackException();
+        }
+    }
+
+    /**
+     * Nothing to do: the local synchronizations get afterCompletion when
+     * this branch completes.
+     * @param ctrl the Control of the transaction
+     * @param s the status of the transaction
+     */
+    public void after_completion(Control ctrl, int s) throws RemoteException {
+        if (TraceTm.jta.isDebugEnabled()) {
+            TraceTm.jta.debug("status="+ StatusHelper.getStatusName(s));
+        }
+    }
+
     // ------------------------------------------------------------------
     // Other public methods (interface exposed to Transaction object)
     // ------------------------------------------------------------------
 
+    /**
+     * @return true if a Synchronization has been added
+     */
+    boolean hasSynchronizations() {
+        return synchroList.size() > 0;
+    }
+
     /**
      * add a Synchronization to the list
      *
@@ -598,27 +697,12 @@ public class SubCoordinator extends PortableRemoteObject implements Resource {
         // Check if this DataSource is already known
         // -> we must register only ONE resource per DataSource.
 
-        boolean found = false;
+        Integer branch = branchByResource.get(xares);
+        boolean found = branch != null;
 
-        for (int i = 0; i < resourceList.size(); i++) {
-            XAResource res = (XAResource) resourceList.elementAt(i);
-
-            try {
-                if (res.isSameRM(xares)) {
-                    found = true;
-                    break;
-                }
-            } catch (XAException e) {
-                String error =
-                    "Cannot send res.isSameRM:"
-                    + e
-                    + " (error code = "
-                    + e.errorCode
-                    + ") --"
-                    + e.getMessage();
-                TraceTm.jotm.error(
-                                   "Exception on resource.isSameRM: "+ error);
-            }
+        if (!found) {
+            branch = findBranch(xares);
+            found = branch != null;
         }
 
         // add this XAResource to the list
@@ -628,7 +712,18 @@ public class SubCoordinator extends PortableRemoteObject implements Resource {
                 TraceTm.jta.debug("new XAResource added to the list");
             }
             resourceList.addElement(xares);
+            branch = Integer.valueOf(resourceList.size() - 1);
+            branchByRm.put(ResourceManagers.key(xares), branch);
+
+            if (xares instanceof LastResource) {
+                if (lastResource < 0) {
+                    lastResource = resourceList.size() - 1;
+                } else {
+                    TraceTm.jotm.warn("Only one LastResource per transaction: " + xares + " will be prepared");
+                }
+            }
         }
+        branchByResource.put(xares, branch);
 
         // If transaction marked rollback only, we enlist resource but we throw
         // the correct exception. It is important to enlist the Resource because
@@ -642,6 +737,43 @@ public class SubCoordinator extends PortableRemoteObject implements Resource {
         return found;
     }
 
+    /**
+     * Find the branch of the Resource Manager of a new XAResource: from
+     * the known Resource Managers, else by calling isSameRM on each branch.
+     * @return index in resourceList of the branch, or null
+     */
+    private Integer findBranch(XAResource xares) {
+        Object rm = ResourceManagers.getKey(xares);
+        if (rm != null) {
+            Integer branch = branchByRm.get(rm);
+            if (branch != null) {
+                return branch;
+            }
+        }
+
+        for (int i = 0; i < resourceList.size(); i++) {
+            XAResource res = (XAResource) resourceList.elementAt(i);
+
+            try {
+                if (res.isSameRM(xares)) {
+                    ResourceManagers.sameRM(res, xares);
+                    return Integer.valueOf(i);
+                }
+            } catch (XAException e) {
+                String error =
+                    "Cannot send res.isSameRM:"
+                    + e
+                    + " (error code = "
+                    + e.errorCode
+                    + ") --"
+                    + e.getMessage();
+                TraceTm.jotm.error(
+                                   "Exception on resource.isSameRM: "+ error);
+            }
+        }
+        return null;
+    }
+
     /**
      * add this javaxxid to the List
      * @param javaxxid
@@ -753,15 +885,16 @@ public class SubCoordinator extends PortableRemoteObject implements Resource {
             throw new RemoteException("XAException on forget");
         }
 
-        unexportObject(this);
+        unexport();
     }
 
     /**
      * 2PC phase 1 (prepare)
      * Basically, send prepare on each XAResource and
      * collect the results.
+     * @param skip index of a resource not to prepare (the last resource), or -1
      */
-    private synchronized int doPrepare() throws RemoteException {
+    private synchronized int doPrepare(int skip) throws RemoteException {
         if (TraceTm.jta.isDebugEnabled()) {
             TraceTm.jta.debug("SubCoordinator.doPrepare()");
         }
@@ -789,14 +922,48 @@ public class SubCoordinator extends PortableRemoteObject implements Resource {
 
         status = Status.STATUS_PREPARING;
 
+        // In parallel mode, all the resources are prepared at once,
+        // and the votes are processed below as in sequential mode.
+        Object[] votes = null;
+        ResourceFanOut fanout = ResourceFanOut.getInstance();
+        if (fanout != null && skip < 0 && resourceList.size() > 1) {
+            votes = fanout.prepare(resourceList, javaxxidList);
+        } else if (fanout != null && skip >= 0 && resourceList.size() > 2) {
+            List resources = new ArrayList(resourceList);
+            List xids = new ArrayList(javaxxidList);
+            resources.remove(skip);
+            xids.remove(skip);
+            Object[] others = fanout.prepare(resources, xids);
+            votes = new Object[resourceList.size()];
+            System.arraycopy(others, 0, votes, 0, skip);
+            System.arraycopy(others, skip, votes, skip + 1, others.length - skip);
+        }
+        if (votes != null) {
+            for (int i = 0; i < votes.length; i++) {
+                if (ResourceFanOut.inFlight(votes[i])) {
+                    if (inFlight == null) {
+                        inFlight = new BitSet(votes.length);
+                    }
+                    inFlight.set(i);
+                }
+            }
+        }
+
         for (int i = 0; i < resourceList.size(); i++) {
+            if (i == skip) {
+                continue;
+            }
             XAResource res = (XAResource) resourceList.elementAt(i);
             javax.transaction.xa.Xid myjavaxxid = (javax.transaction.xa.Xid) javaxxidList.elementAt(i);
 
-            Xid xid = new XidImpl( this.xid, i );
+            Xid xid = branchXid(i, myjavaxxid);
 
             if (errors > 0) {
 
+                if (inFlight != null && inFlight.get(i)) {
+                    continue;
+                }
+
                 if (TraceTm.jta.isDebugEnabled()) {
                     TraceTm.jta.debug("xid=        " + xid);
                     TraceTm.jta.debug("myjavaxxid= " + myjavaxxid);
@@ -826,7 +993,8 @@ public class SubCoordinator extends PortableRemoteObject implements Resource {
                 }
 
                 try {
-                    switch (res.prepare(myjavaxxid)) {
+                    int vote = votes == null ? res.prepare(myjavaxxid) : ResourceFanOut.result(votes[i]);
+                    switch (vote) {
                         // switch (res.prepare(xid)) {
                     case XAResource.XA_OK :
                         log.addResource(res, xid, myjavaxxid);
@@ -862,8 +1030,14 @@ public class SubCoordinator extends PortableRemoteObject implements Resource {
 
         switch (ret) {
         case VOTE_READONLY :
+            if (skip >= 0) {
+                // the last resource is not committed yet
+                status = Status.STATUS_PREPARED;
+                break;
+            }
             // increment counter for management
             Current.getCurrent().incrementCommitCounter();
+            TransactionMetrics.getInstance().readOnlyFastPath();
             status = Status.STATUS_COMMITTED;
             if (TraceTm.jta.isDebugEnabled()) {
                 TraceTm.jta.debug("VOTE_READONLY");
@@ -887,11 +1061,39 @@ public class SubCoordinator extends PortableRemoteObject implements Resource {
         return ret;
     }
 
+    /**
+     * @return the Xid of a branch, the one its javax Xid was built from
+     * when known
+     */
+    private Xid branchXid(int index, javax.transaction.xa.Xid javaxxid) {
+        if (javaxxid instanceof JavaXidImpl) {
+            XidImpl branchxid = ((JavaXidImpl) javaxxid).xid();
+            if (branchxid != null) {
+                return branchxid;
+            }
+        }
+        return new XidImpl(this.xid, index);
+    }
+
     /**
      * 2PC - phase 2 (commit)
      * See JTM for heuristics management
+     * @param mustLog false if this coordinator decides alone: a single
+     * prepared resource is then committed without logging the transaction.
      */
-    private synchronized int doCommit() throws RemoteException {
+    private synchronized int doCommit(boolean mustLog) throws RemoteException {
+        return doCommit(mustLog, null);
+    }
+
+    /**
+     * 2PC - phase 2 (commit)
+     * @param mustLog false if this coordinator decides alone
+     * @param forced commit record already forced by the last resource
+     * commit, or null if the decision has to be logged here.
+     * @throws HeuristicMixed some resources committed, others failed
+     * @throws HeuristicHazard no resource committed
+     */
+    private synchronized int doCommit(boolean mustLog, XACommittingTx forced) throws RemoteException {
         if (TraceTm.jta.isDebugEnabled()) {
             TraceTm.jta.debug("SubCoordinator.doCommit()");
         }
@@ -899,35 +1101,11 @@ public class SubCoordinator extends PortableRemoteObject implements Resource {
         // We build the Recovery Record in doCommit just in case of a system crash
         // Store the Recovery Record using HOWL so it can manage for us.
         //
-        // The Recovery Record consists of two record types:
-        //     1. XA Transaction recovery record
-        //     2. XA Resource recovery record
-        //
-        // The XA Transaction recovery record format:
-        //     recovery record type1 (byte[3]) - 'RR1'
-        //     recovery record stored date-time (long) - 8 bytes
-        //     format id (int) - 4 bytes
-        //     length of transaction's gtrid (int) - 4 bytes
-        //     global transaction id (byte []) - txxidgti.length bytes
-        //     length of transaction's bqual (int) - 4 bytes
-        //     bqual (byte []) - txxidbq.length bytes
-        //     length of transactions store date-time (int) - 4 bytes
-        //     transactions created date-time (byte []) - Date.length bytes
-        //     count of XA resources assigned to the transaction (int) - 4 bytes
-        //
-        // The XA Resource recovery record format:
-        //     recovery record type2 (byte[3]) = 'RR2'
-        //     resource index (int)
-        //     length of XA resource (int) - 4 bytes
-        //     XA resource (byte []) - xares.length bytes
-        //     length of XA resource class name (int) - 4 bytes
-        //     XA resource class name (byte []) - resclassname.length bytes
-        //     XID.formatid (int) - 4 bytes
-        //     length of XID.gtrid assigned to XA resource (int) - 4 bytes
-        //     XID.gtrid assigned to XA resource (byte []) - xidgti.length bytes
-        //     length of XID.bqual assigned to XA resource (int) - 4 bytes
-        //     XID.bqual assigned to XA resource (byte []) - xidbq.length bytes
-        //     XID status-state (int) = 4 bytes
+        // The Recovery Record is written in the compact format described
+        // in RecoveryRecord: one 'RC1' field for the transaction and all its
+        // XA resources. Records written in the former format (one 'RR1'
+        // field followed by one 'RR2' field per XA resource) are still read
+        // at recovery.
         //
         // The JOTM Done recovery record format:
         //      recovery record type3 (byte[3]) = 'RR3'
@@ -942,105 +1120,48 @@ public class SubCoordinator extends PortableRemoteObject implements Resource {
 
         boolean successfulcommit = true;
         int commitnb = 0;
-        int heuristicnb = 0;
 
         List loggedResources = log.getLoggedResources();
         List byteloggedResources = log.getByteLoggedResources();
         List loggedXids = log.getLoggedXids();
         List loggedJavaxXids = log.getLoggedJavaxXids();
 
-        XACommittingTx xaCommitTx = null;
-        XACommittingTx xaCommitTxRewrite = null;
-
-        byte [] [] recoveryBuffer = new byte [loggedResources.size() + 1] [];    // loggedResources + 1 (recoveryRecord1)
+        XACommittingTx xaCommitTx = forced;
 
-        byte [] recoveryRecord1 = null;
-        byte [] recoveryRecord2 = null;
-        ByteBuffer rr1 = null;
-        ByteBuffer rr2 = null;
+        byte [] [] recoveryBuffer = new byte [1] [];
+        int [] recoveryStatus = null;
+        long txdate = 0;
 
         byte [] [] jotmDoneRecord = new byte [1] [11];
 
-        if (Current.getDefaultRecovery()) {
-            Xid txxid = tx.getXid();
-
-            int txxidfi = txxid.getFormatId();
-            byte [] txxidgti = txxid.getGlobalTransactionId();
-            byte [] txxidbq = txxid.getBranchQualifier();
-            int txxidlength = 4 + txxidgti.length + txxidbq.length;
-
-            // formatid(int) + gridlen(int) + grid + bqlen(int) + bqual
-            int gridlen = txxidgti.length;
-            int bqlen = txxidbq.length;
-
-            String txdate = tx.getTxDate().toString();
-            int txdatelength= txdate.length();
-            long rcdate = System.currentTimeMillis();
-
-            recoveryRecord1 = new byte[3+8+4+4+gridlen+4+bqlen+4+txdatelength+4];
-
-            rr1 = ByteBuffer.wrap(recoveryRecord1);
-            rr1.put(RT1);
-            rr1.putLong(rcdate);
-            rr1.putInt(txxidfi);
-            rr1.putInt(txxidgti.length);
-            rr1.put(txxidgti);
-            rr1.putInt(txxidbq.length);
-            rr1.put(txxidbq);
-            rr1.putInt(txdatelength);
-            rr1.put(txdate.getBytes());
-            rr1.putInt(loggedResources.size());
-
-            recoveryBuffer [0] = rr1.array();
-
-            for (int i = 0; i < loggedResources.size(); i++) {
-                XAResource res = (XAResource) loggedResources.get(i);
-                byte [] resname = (byte []) byteloggedResources.get(i);
-
-                Xid xid = (Xid)loggedXids.get(i);
-                int rmindex = 99;    // Store 99, at recovery we will store the correct index
-
-                if (TraceTm.recovery.isDebugEnabled()) {
-                    TraceTm.recovery.debug("recovery xid= " + xid);
-                    TraceTm.recovery.debug("recovery resource= " + res);
-                }
+        // With a single prepared resource (the others were read-only),
+        // nothing needs to be forced when this coordinator decides alone:
+        // if it stops before the commit, the branch is rolled back at
+        // recovery, which is consistent. The record is written only if
+        // the commit fails.
+        boolean singleBranch = !mustLog && loggedResources.size() == 1;
+        if (singleBranch) {
+            TransactionMetrics.getInstance().singleBranchFastPath();
+        }
 
-                int resnamelength = resname.length;
-                String resclassname = res.getClass().getName();
-                int resclassnamelength = resclassname.length();
-
-                int xidfi = xid.getFormatId();
-                byte [] xidgti = xid.getGlobalTransactionId();
-                byte [] xidbq = xid.getBranchQualifier();
-                int rr2gtilen = xidgti.length;
-                int rr2bqlen = xidbq.length;
-
-                // formatid + : + gridlen + : + bqlen + : + xidgti + : + xidbq
-
-                recoveryRecord2 = new byte[3+4+4+resnamelength+4+resclassnamelength+4+4+rr2gtilen+4+rr2bqlen+4];
-
-                rr2 = ByteBuffer.wrap(recoveryRecord2);
-                rr2.put(RT2);
-                rr2.putInt(rmindex);
-                rr2.putInt(resnamelength);
-                rr2.put(resname);
-                rr2.putInt(resclassnamelength);
-                rr2.put(resclassname.getBytes());
-                rr2.putInt(xidfi);
-                rr2.putInt(xidgti.length);
-                rr2.put(xidgti);
-                rr2.putInt(xidbq.length);
-                rr2.put(xidbq);
-                rr2.putInt(status);
+        if (Current.getDefaultRecovery()) {
+            recoveryStatus = new int [loggedResources.size()];
+            for (int i = 0; i < recoveryStatus.length; i++) {
+                recoveryStatus [i] = status;
+            }
+            txdate = tx.getTxDate().getTime();
+        }
 
-                if (TraceTm.recovery.isDebugEnabled()) {
-                    TraceTm.recovery.debug("Prepare Init RR2 to Recovery Buffer");
-                }
-                recoveryBuffer [i+1] = rr2.array();    // First record (0) is always rr1
+        if (Current.getDefaultRecovery() && !singleBranch && forced == null) {
+            if (TraceTm.recovery.isDebugEnabled()) {
+                TraceTm.recovery.debug("recovery xids= " + loggedXids);
+                TraceTm.recovery.debug("recovery resources= " + loggedResources);
             }
 
             try {
-                xaCommitTx = TransactionRecoveryImpl.getTransactionRecovery().howlCommitLog(recoveryBuffer);
+                recoveryBuffer [0] = RecoveryRecord.encode(tx.getXid(), txdate, loggedResources,
+                                                           byteloggedResources, loggedXids, recoveryStatus);
+                xaCommitTx = TransactionRecoveryImpl.getTransactionRecovery().howlGroupCommitLog(recoveryBuffer);
             } catch (Exception e) {
                 // If we cannot write the Log, we cannot perform recovery, rollback transaction
                 status = Status.STATUS_ROLLEDBACK;
@@ -1067,6 +1188,15 @@ public class SubCoordinator extends PortableRemoteObject implements Resource {
         }
 
         // Send commit to each resource prepared
+        // In parallel mode, all the resources are committed at once,
+        // and the results are processed below as in sequential mode.
+
+        Object[] results = null;
+        ResourceFanOut fanout = ResourceFanOut.getInstance();
+        if (fanout != null && loggedResources.size() > 1) {
+            results = fanout.commit(loggedResources, loggedJavaxXids);
+        }
+        int failednb = 0;
 
         for (int i = 0; i < loggedResources.size(); i++) {
             XAResource res = (XAResource) loggedResources.get(i);
@@ -1085,46 +1215,18 @@ public class SubCoordinator extends PortableRemoteObject implements Resource {
                 TraceTm.jta.debug("attempting commit with resource= " + res);
             }
 
-            if (Current.getDefaultRecovery()) {
-                int rmindex = 99;    // Store 99, at recovery we will store the correct index
-                byte [] resname = (byte []) byteloggedResources.get(i);
-                int resnamelength = resname.length;
-
-                String resclassname = res.getClass().getName();
-                int resclassnamelength = resclassname.length();
-                int xidfi = xid.getFormatId();
-                byte [] xidgti = xid.getGlobalTransactionId();
-                byte [] xidbq = xid.getBranchQualifier();
-                int rr2gtilen = xidgti.length;
-                int rr2bqlen = xidbq.length;
-
-                // formatid + : + gridlen + : + bqlen + : + xidgti + : + xidbq
-
-                recoveryRecord2 = new byte[3+4+4+resnamelength+4+resclassnamelength+4+4+rr2gtilen+4+rr2bqlen+4];
-
-                rr2 = ByteBuffer.wrap(recoveryRecord2);
-
-                rr2.put(RT2);
-                rr2.putInt(rmindex);
-                rr2.putInt(resnamelength);
-                rr2.put(resname);
-                rr2.putInt(resclassnamelength);
-                rr2.put(resclassname.getBytes());
-                rr2.putInt(xidfi);
-                rr2.putInt(xidgti.length);
-                rr2.put(xidgti);
-                rr2.putInt(xidbq.length);
-                rr2.put(xidbq);
-            }
-
             // commit resource
 
             try {
-                res.commit(myjavaxxid, false);
-                // res.commit(xid, false);
+                if (results == null) {
+                    res.commit(myjavaxxid, false);
+                    // res.commit(xid, false);
+                } else {
+                    ResourceFanOut.result(results[i]);
+                }
 
                 if (Current.getDefaultRecovery()) {
-                    rr2.putInt(Status.STATUS_COMMITTED);
+                    recoveryStatus [i] = Status.STATUS_COMMITTED;
                     if (TraceTm.recovery.isDebugEnabled()) {
                     	TraceTm.recovery.debug("Status Committed");
                     }
@@ -1142,7 +1244,7 @@ public class SubCoordinator extends PortableRemoteObject implements Resource {
                     }
 
                     if (Current.getDefaultRecovery()) {
-                        rr2.putInt(Status.STATUS_UNKNOWN);
+                        recoveryStatus [i] = Status.STATUS_UNKNOWN;
                         if (TraceTm.recovery.isDebugEnabled()) {
                             TraceTm.recovery.debug("Status Unknown");
                         }
@@ -1158,7 +1260,7 @@ public class SubCoordinator extends PortableRemoteObject implements Resource {
                     }
 
                     if (Current.getDefaultRecovery()) {
-                        rr2.putInt(Status.STATUS_COMMITTING);
+                        recoveryStatus [i] = Status.STATUS_COMMITTING;
                         if (TraceTm.recovery.isDebugEnabled()) {
                             TraceTm.recovery.debug("Status Committing");
                         }
@@ -1170,7 +1272,7 @@ public class SubCoordinator extends PortableRemoteObject implements Resource {
                     }
 
                     if (Current.getDefaultRecovery()) {
-                        rr2.putInt(Status.STATUS_ROLLEDBACK);
+                        recoveryStatus [i] = Status.STATUS_ROLLEDBACK;
                         if (TraceTm.recovery.isDebugEnabled()) {
                             TraceTm.recovery.debug("Status Rolledback");
                         }
@@ -1188,16 +1290,16 @@ public class SubCoordinator extends PortableRemoteObject implements Resource {
                                    "Got XAException from res.commit: "+ error);
 
                 successfulcommit = false;
-                if (commitnb > 0)
-                    heuristicnb++;
+                failednb++;
             }
+        }
 
-            if (Current.getDefaultRecovery()) {
-                if (TraceTm.recovery.isDebugEnabled()) {
-                    TraceTm.recovery.debug("Prepare New RR2 to Recovery Buffer");
-                }
-                recoveryBuffer [i+1] = rr2.array();    // First record (0) is always rr1
-            }
+        // Some resources committed and others did not: the outcome is mixed,
+        // whatever the order in which the resources replied.
+        boolean mixed = commitnb > 0 && failednb > 0;
+        if (mixed) {
+            TraceTm.jotm.error("Heuristic mixed: " + commitnb + " resource(s) committed, "
+                               + failednb + " failed");
         }
 
         if (successfulcommit) {
@@ -1210,7 +1312,7 @@ public class SubCoordinator extends PortableRemoteObject implements Resource {
             	TraceTm.recovery.debug("Status Committed");
             }
 
-            if (Current.getDefaultRecovery()) {
+            if (xaCommitTx != null) {
                 try {
                     if (TraceTm.recovery.isDebugEnabled()) {
                         TraceTm.recovery.debug("Done howl log, all okay");
@@ -1244,6 +1346,8 @@ public class SubCoordinator extends PortableRemoteObject implements Resource {
                     TraceTm.recovery.debug("Rewrite HowlCommitLog");
                 }
                 // write the Commit record to the Howl Log
+                recoveryBuffer [0] = RecoveryRecord.encode(tx.getXid(), txdate, loggedResources,
+                                                           byteloggedResources, loggedXids, recoveryStatus);
                 TransactionRecoveryImpl.getTransactionRecovery().howlCommitLog(recoveryBuffer);
             } catch (Exception e) {
                 // If we cannot write the Log, we cannot perform recovery, rollback transaction
@@ -1269,16 +1373,18 @@ public class SubCoordinator extends PortableRemoteObject implements Resource {
             // Transaction state is unknown, now job for administrator
             // status = Status.STATUS_UNKNOWN;
 
-            try {
-                jotmDoneRecord [0] = JOTMDONE;
-                TransactionRecoveryImpl.getTransactionRecovery().howlDoneLog(jotmDoneRecord, xaCommitTx);
-            } catch (Exception f) {
-                String howlerror =
-                    "Cannot howlDoneLog"
-                    + f
-                    + "--"
-                    + f.getMessage();
-                TraceTm.jotm.error("Got LogException from howlDoneLog: "+ howlerror);
+            if (xaCommitTx != null) {
+                try {
+                    jotmDoneRecord [0] = JOTMDONE;
+                    TransactionRecoveryImpl.getTransactionRecovery().howlDoneLog(jotmDoneRecord, xaCommitTx);
+                } catch (Exception f) {
+                    String howlerror =
+                        "Cannot howlDoneLog"
+                        + f
+                        + "--"
+                        + f.getMessage();
+                    TraceTm.jotm.error("Got LogException from howlDoneLog: "+ howlerror);
+                }
             }
         }
         // }
@@ -1292,10 +1398,14 @@ public class SubCoordinator extends PortableRemoteObject implements Resource {
         doAfterCompletion();
 
         if (TraceTm.jta.isDebugEnabled()) {
-            TraceTm.jta.debug("SubCoordinator.doCommit(): Exit -1");
+            TraceTm.jta.debug("SubCoordinator.doCommit(): heuristic");
         }
 
-        return -1;
+        // The failed resources are left to the recovery
+        if (mixed) {
+            throw new HeuristicMixed(commitnb + " resource(s) committed, " + failednb + " failed");
+        }
+        throw new HeuristicHazard(failednb + " resource(s) failed to commit");
     }
 
     /**
@@ -1345,11 +1455,196 @@ public class SubCoordinator extends PortableRemoteObject implements Resource {
         }
     }
 
+    /**
+     * Last resource commit: prepare the other resources, force the commit
+     * decision, then commit the last resource in one phase. If it commits,
+     * commit the others. If it rolls back, roll them back. If its outcome is
+     * unknown, leave them in doubt to the recovery and the administrator.
+     */
+    private synchronized void doLastResourceCommit() throws RemoteException {
+        if (TraceTm.jta.isDebugEnabled()) {
+            TraceTm.jta.debug("SubCoordinator.doLastResourceCommit()");
+        }
+
+        TransactionMetrics metrics = TransactionMetrics.getInstance();
+        long start = System.nanoTime();
+        int vote = doPrepare(lastResource);
+        metrics.getPrepareLatency().recordSince(start);
+
+        if (vote == Resource.VOTE_ROLLBACK) {
+            doRollback();
+            throw new TransactionRolledbackException();
+        }
+
+        XAResource res = (XAResource) resourceList.elementAt(lastResource);
+        javax.transaction.xa.Xid myjavaxxid = (javax.transaction.xa.Xid) javaxxidList.elementAt(lastResource);
+
+        // The outcome of the prepared resources depends on the last resource:
+        // the commit decision must be on disk before it commits, otherwise a
+        // crash in between would let recovery roll them back.
+        XACommittingTx xaCommitTx = null;
+        if (vote == Resource.VOTE_COMMIT && Current.getDefaultRecovery()) {
+            xaCommitTx = logLastResourceDecision(res, myjavaxxid);
+        }
+
+        if (TraceTm.jta.isDebugEnabled()) {
+            TraceTm.jta.debug("myjavaxxid= " + myjavaxxid);
+            TraceTm.jta.debug("one phase commit with last resource= " + res);
+        }
+
+        start = System.nanoTime();
+        status = Status.STATUS_COMMITTING;
+        try {
+            res.commit(myjavaxxid, true);
+        } catch (XAException e) {
+            String error =
+                "Cannot send res.commit:"
+                + e
+                + " (error code = "
+                + e.errorCode
+                + ") --"
+                + e.getMessage();
+            TraceTm.jotm.error(
+                               "Got XAException from last resource commit: "+ error);
+
+            if ((e.errorCode >= XAException.XA_RBBASE && e.errorCode <= XAException.XA_RBEND)
+                || e.errorCode == XAException.XA_HEURRB) {
+                // Not committed: the other resources are rolled back, and
+                // the logged decision is done.
+                try {
+                    doRollback(lastResource);
+                } finally {
+                    if (xaCommitTx != null) {
+                        try {
+                            byte [] [] jotmDoneRecord = new byte [] [] {JOTMDONE};
+                            TransactionRecoveryImpl.getTransactionRecovery().howlDoneLog(jotmDoneRecord, xaCommitTx);
+                        } catch (Exception f) {
+                            String howlerror =
+                                "Cannot howlDoneLog:"
+                                + f
+                                + "--"
+                                + f.getMessage();
+                            TraceTm.jotm.error("Got LogException from howlDoneLog: "+ howlerror);
+                        }
+                    }
+                }
+                throw new TransactionRolledbackException("XAException:"+ error);
+            }
+            if (e.errorCode != XAException.XA_HEURCOM) {
+                // Outcome unknown: neither commit nor roll back the other
+                // resources. The decision stays in the log, with all the
+                // branches in doubt, and no done record.
+                status = Status.STATUS_UNKNOWN;
+                if (xaCommitTx != null) {
+                    try {
+                        byte [] [] recoveryBuffer = lastResourceRecord(res, myjavaxxid,
+                                                                       Status.STATUS_UNKNOWN,
+                                                                       Status.STATUS_UNKNOWN);
+                        TransactionRecoveryImpl.getTransactionRecovery().howlCommitLog(recoveryBuffer);
+                    } catch (Exception f) {
+                        String howlerror =
+                            "Cannot howlCommitLog:"
+                            + f
+                            + " --"
+                            + f.getMessage();
+                        TraceTm.jotm.error("Got LogException from howlCommitLog: "+ howlerror);
+                    }
+                }
+                TraceTm.jotm.error("Outcome of last resource " + res
+                                   + " unknown, other resources left to the recovery");
+                doAfterCompletion();
+                throw new HeuristicHazard("XAException:"+ error);
+            }
+        }
+
+        if (vote == Resource.VOTE_COMMIT) {
+            // commit the prepared resources, and log the outcome
+            try {
+                doCommit(true, xaCommitTx);
+            } catch (HeuristicHazard e) {
+                // the last resource is committed
+                throw new HeuristicMixed(e.getMessage());
+            }
+        } else {
+            // increment counter for management
+            Current.getCurrent().incrementCommitCounter();
+            status = Status.STATUS_COMMITTED;
+            doAfterCompletion();
+        }
+        metrics.getCommitLatency().recordSince(start);
+    }
+
+    /**
+     * Force the commit record of a last resource commit: the prepared
+     * resources, and the last resource as committing.
+     * If the record cannot be written, the transaction is rolled back.
+     * @param res the last resource
+     * @param javaxxid Xid of the last resource
+     * @return the commit record
+     */
+    private XACommittingTx logLastResourceDecision(XAResource res, javax.transaction.xa.Xid javaxxid)
+        throws RemoteException {
+
+        try {
+            byte [] [] recoveryBuffer = lastResourceRecord(res, javaxxid, Status.STATUS_PREPARED,
+                                                           Status.STATUS_COMMITTING);
+            return TransactionRecoveryImpl.getTransactionRecovery().howlGroupCommitLog(recoveryBuffer);
+        } catch (Exception e) {
+            // If we cannot write the Log, we cannot perform recovery, rollback transaction
+            String howlerror =
+                "Cannot howlCommitLog:"
+                + e
+                + " --"
+                + e.getMessage();
+            TraceTm.jotm.error("Got LogException from howlCommitLog: "+ howlerror);
+            doRollback();
+            throw new TransactionRolledbackException();
+        }
+    }
+
+    /**
+     * Build the commit record of a last resource commit.
+     * @param res the last resource
+     * @param javaxxid Xid of the last resource
+     * @param prepared status logged for the prepared resources
+     * @param last status logged for the last resource
+     * @return the record
+     */
+    private byte [] [] lastResourceRecord(XAResource res, javax.transaction.xa.Xid javaxxid,
+                                          int prepared, int last) {
+        List resources = new ArrayList(log.getLoggedResources());
+        List resnames = new ArrayList(log.getByteLoggedResources());
+        List xids = new ArrayList(log.getLoggedXids());
+        resources.add(res);
+        resnames.add(res.toString().getBytes());
+        xids.add(branchXid(lastResource, javaxxid));
+
+        int [] recoveryStatus = new int [resources.size()];
+        for (int i = 0; i < recoveryStatus.length - 1; i++) {
+            recoveryStatus [i] = prepared;
+        }
+        recoveryStatus [recoveryStatus.length - 1] = last;
+
+        return new byte [] [] {
+            RecoveryRecord.encode(tx.getXid(), tx.getTxDate().getTime(), resources,
+                                  resnames, xids, recoveryStatus)
+        };
+    }
+
     /**
      * Rollback every resource involved
      */
 
     private synchronized void doRollback() throws RemoteException {
+        doRollback(-1);
+    }
+
+    /**
+     * Rollback every resource involved
+     * @param skip index of a resource not to roll back (the last resource
+     * whose one phase commit failed), or -1
+     */
+    private synchronized void doRollback(int skip) throws RemoteException {
         if (TraceTm.jta.isDebugEnabled()) {
             TraceTm.jta.debug("SubCoordinator.doRollback()");
         }
@@ -1360,6 +1655,14 @@ public class SubCoordinator extends PortableRemoteObject implements Resource {
 
         // roll back each resource
         for (int i = 0; i < resourceList.size(); i++) {
+            if (i == skip) {
+                continue;
+            }
+            if (inFlight != null && inFlight.get(i)) {
+                TraceTm.jotm.info("Prepare of " + resourceList.elementAt(i)
+                                  + " still running: rolled back when it returns");
+                continue;
+            }
 
             XAResource res = (XAResource) resourceList.elementAt(i);
             javax.transaction.xa.Xid myjavaxxid = (javax.transaction.xa.Xid) javaxxidList.elementAt(i);
@@ -1647,6 +1950,14 @@ public class SubCoordinator extends PortableRemoteObject implements Resource {
             TraceTm.jta.debug("resourceList.size= " + resourceList.size());
         }
 
+        // enlisted XAResource
+        synchronized (this) {
+            Integer branch = branchByResource.get(xares);
+            if (branch != null) {
+                return branch.intValue();
+            }
+        }
+
         int xaresIndex = -1;
 
         // first, search for an XAResource with the same object reference
@@ -44,12 +44,24 @@ package org.objectweb.jotm;
 
 public class TimerEvent {
 
-    private TimerEventListener listener = null;
-    private Object arg = null;
-    private long reminding = 0;
-    private long startvalue;
-    private boolean permanent = false;
-    private boolean stopped = false;
+    private volatile TimerEventListener listener = null;
+    private volatile Object arg = null;
+    private volatile long deadline;
+    private volatile long startvalue;
+    private volatile boolean permanent = false;
+    private volatile boolean stopped = false;
+
+    /**
+     * TimerManager in charge of this timer, null if not registered.
+     */
+    private TimerManager manager = null;
+
+    // links in the timing wheel, only used by the clock thread.
+    TimerEvent wheelPrev = null;
+    TimerEvent wheelNext = null;
+    int wheelLevel;
+    int wheelSlot;
+    boolean inWheel = false;
 
     /**
      * Constructor
@@ -59,24 +71,38 @@ public class TimerEvent {
      * @param p true if the timer is permanent.
      */
     public TimerEvent(TimerEventListener l, long timeout, Object a, boolean p) {
+        this(l, timeout * 1000L, a, p, null);
+    }
+
+    /**
+     * Constructor used by the TimerManager
+     * @param l Object that will be notified when the timer expire.
+     * @param millis nb of milliseconds before the timer expires.
+     * @param a info passed with the timer
+     * @param p true if the timer is permanent.
+     * @param mgr TimerManager that will run this timer
+     */
+    TimerEvent(TimerEventListener l, long millis, Object a, boolean p, TimerManager mgr) {
         if (TraceTm.jta.isDebugEnabled()) {
-            TraceTm.jta.debug("TimerEvent.new("+l+","+timeout+","+a+","+p+")");
+            TraceTm.jta.debug("TimerEvent.new("+l+","+millis+"ms,"+a+","+p+")");
         }
-        
+
         listener = l;
-        reminding = timeout;
-        startvalue = timeout;
+        startvalue = millis;
+        deadline = System.currentTimeMillis() + millis;
         arg = a;
         permanent = p;
+        manager = mgr;
     }
 
-
     /**
-     * Update timer every second. Used by clock.
-     * - this must be called with the timerList monitor.
+     * Get the number of seconds before the timer expires.
+     * The clock does not decrement timers any longer: this is kept
+     * for compatibility only.
      */
     public long update() {
-        return --reminding;
+        long remaining = deadline - System.currentTimeMillis();
+        return remaining <= 0 ? 0 : (remaining + 999) / 1000;
     }
 
     /**
@@ -88,19 +114,21 @@ public class TimerEvent {
         }
 
         stopped = false;
-        reminding = startvalue;
+        deadline = System.currentTimeMillis() + startvalue;
+        reschedule();
     }
 
     /**
      * Process the Timer
      */
     public void process() {
-        if (listener != null) {
+        TimerEventListener l = listener;
+        if (l != null) {
             if (TraceTm.jta.isDebugEnabled()) {
-                TraceTm.jta.debug("TimerEvent.new("+listener+".process");
+                TraceTm.jta.debug("TimerEvent.new("+l+".process");
             }
 
-            listener.timeoutExpired(arg);
+            l.timeoutExpired(arg);
         }
     }
 
@@ -110,9 +138,10 @@ public class TimerEvent {
         }
 
         stopped = false;
-        startvalue = timeout;
-        reminding = startvalue;
+        startvalue = timeout * 1000L;
+        deadline = System.currentTimeMillis() + startvalue;
         arg = a;
+        reschedule();
     }
 
     /**
@@ -123,12 +152,11 @@ public class TimerEvent {
             TraceTm.jta.debug("TimerEvent("+listener+").unset");
         }
 
-        // the timerlist is not locked.
-        reminding = 1;
         arg = null;
         listener = null;
         permanent = false;
         stopped = false;
+        reschedule();
     }
 
     /**
@@ -139,9 +167,8 @@ public class TimerEvent {
             TraceTm.jta.debug("TimerEvent("+listener+").stop");
         }
 
-        // the timerlist is not locked.
-        reminding = 1000000;
         stopped = true;
+        reschedule();
     }
 
     /**
@@ -164,5 +191,27 @@ public class TimerEvent {
     public boolean isStopped() {
         return stopped;
     }
-}
 
+    /**
+     * @return the date (in ms) when this timer expires
+     */
+    long getDeadline() {
+        return deadline;
+    }
+
+    /**
+     * Restart a permanent timer. Used by the clock thread.
+     */
+    void rearm() {
+        deadline = System.currentTimeMillis() + startvalue;
+    }
+
+    /**
+     * Tell the timer manager that this timer has been modified.
+     */
+    private void reschedule() {
+        if (manager != null) {
+            manager.reschedule(this);
+        }
+    }
+}
@@ -42,11 +42,25 @@
  */
 package org.objectweb.jotm;
 
-import java.util.Vector;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * Clock thread for a TimerManager
- * Every second, decrement timers and launch action if expired
+ * Every tick, advance the timing wheel and launch action if expired
  */
 class Clock extends Thread {
 
@@ -68,7 +82,7 @@ class Clock extends Thread {
 
 /**
  * Batch thread for a TimerManager
- * pocess all expired timers
+ * dispatch all expired timers to the expiry executor
  */
 class Batch extends Thread {
 
@@ -89,29 +103,116 @@ class Batch extends Thread {
 }
 
 /**
- * A timer manager manages 2 lists of timers with 2 threads
- * One thread is a clock which decrements timers every second
- * and passes them when expired in a list of expired timers.
- * The other thread looks in the list of expired timers to process
- * them.
+ * A timer manager manages timers with 2 threads.
+ * One thread is a clock which keeps the timers in a hierarchical timing
+ * wheel (see TimerWheel) and passes them when expired in a list of
+ * expired timers. The other thread looks in the list of expired timers
+ * to process them.
+ * Timers are added, changed or removed without locking: the requests are
+ * queued and applied by the clock thread at the next tick.
+ * While no timer is armed, the clock thread sleeps until one is added.
+ * The tick duration can be set in ms with the jotm.timer.Resolution property.
+ * <p>
+ * Expired timers are processed by an executor, so that a slow rollback
+ * does not hold up the other ones:
+ * <ul>
+ * <li>jotm.timer.ExpiryThreads: size of the thread pool (default 4).
+ * 0 means the timers are processed by the batch thread itself.</li>
+ * <li>jotm.timer.ExpiryQueueSize: max number of expired timers waiting
+ * for a thread (default 1000). When the queue is full, the batch thread
+ * waits: the time spent is reported by getExpiryThrottledTime().</li>
+ * <li>jotm.timer.VirtualThreads: true to process each timer in its own
+ * virtual thread, when the JVM supports them.</li>
+ * </ul>
+ * Another executor can be set with setExpiryExecutor().
  */
 public class TimerManager {
 
+    /**
+     * property giving the tick duration in milliseconds
+     */
+    private static final String RESOLUTION_PROPERTY = "jotm.timer.Resolution";
+
+    private static final long DEFAULT_RESOLUTION = 100;
+
+    private static final String THREADS_PROPERTY = "jotm.timer.ExpiryThreads";
+    private static final String QUEUE_PROPERTY = "jotm.timer.ExpiryQueueSize";
+    private static final String VIRTUAL_PROPERTY = "jotm.timer.VirtualThreads";
+
+    private static final int DEFAULT_THREADS = 4;
+    private static final int DEFAULT_QUEUE_SIZE = 1000;
+
     // threads managing the service.
     private static Batch batchThread;
     private static Clock clockThread;
 
-    // lists
-    private Vector timerList = new Vector();
-    private Vector expiredList = new Vector();
+    // timing wheel, only used by the clock thread
+    private TimerWheel wheel;
+    private long resolution;
+
+    // timers added or modified since the last tick
+    private ConcurrentLinkedQueue<TimerEvent> pendingList = new ConcurrentLinkedQueue<TimerEvent>();
+
+    // true while the clock thread is parked, waiting for a timer
+    private volatile boolean idle = false;
+
+    // expired timers, waiting for the batch thread
+    private LinkedList<TimerEvent> expiredList = new LinkedList<TimerEvent>();
+
+    // executor processing the expired timers. null = batch thread.
+    private volatile Executor expiryExecutor = null;
+    // executor created by the TimerManager, to be shut down on stop
+    private ExecutorService ownExecutor = null;
+
+    // limits the number of timers submitted and not yet processed
+    private Semaphore expiryPermits;
+    private int expiryPermitCount;
+
+    // expiry statistics
+    private final AtomicLong expiryProcessed = new AtomicLong();
+    private final AtomicLong expiryThrottled = new AtomicLong();
+    private final AtomicLong expiryThrottledTime = new AtomicLong();
+    private final AtomicInteger expiryBacklogMax = new AtomicInteger();
 
     private static TimerManager unique = null;
-    private static boolean shuttingdown = false;
+    private static volatile boolean shuttingdown = false;
 
     /**
      * Constructor
      */
     private TimerManager() {
+        resolution = DEFAULT_RESOLUTION;
+        String res = System.getProperty(RESOLUTION_PROPERTY);
+        if (res != null) {
+            try {
+                resolution = Long.parseLong(res.trim());
+            } catch (NumberFormatException e) {
+                TraceTm.jotm.error("Bad value for " + RESOLUTION_PROPERTY + ": " + res);
+            }
+            if (resolution <= 0) {
+                resolution = DEFAULT_RESOLUTION;
+            }
+        }
+        if (TraceTm.jta.isDebugEnabled()) {
+            TraceTm.jta.debug("TimerManager resolution= " + resolution + "ms");
+        }
+        wheel = new TimerWheel(resolution, System.currentTimeMillis());
+
+        int threads = Math.max(JotmProperties.intProperty(THREADS_PROPERTY, DEFAULT_THREADS), 0);
+        int queueSize = JotmProperties.intProperty(QUEUE_PROPERTY, DEFAULT_QUEUE_SIZE);
+        if (queueSize <= 0) {
+            queueSize = DEFAULT_QUEUE_SIZE;
+        }
+        if (Boolean.valueOf(System.getProperty(VIRTUAL_PROPERTY, "false").trim()).booleanValue()) {
+            ownExecutor = newVirtualThreadExecutor();
+        }
+        if (ownExecutor == null && threads > 0) {
+            ownExecutor = Executors.newFixedThreadPool(threads, new ExpiryThreadFactory());
+        }
+        expiryExecutor = ownExecutor;
+        expiryPermitCount = queueSize + threads;
+        expiryPermits = new Semaphore(expiryPermitCount);
+
         // launch threads for timers
         batchThread = new Batch(this);
         batchThread.setDaemon(true);
@@ -142,6 +243,7 @@ public class TimerManager {
         }
 
         shuttingdown = true;
+        LockSupport.unpark(clockThread);
         while (clockThread.isAlive() || batchThread.isAlive()) {
             try {
                 Thread.sleep(100);
@@ -149,6 +251,17 @@ public class TimerManager {
                 break;
             }
         }
+        ExecutorService executor = unique.ownExecutor;
+        if (executor != null) {
+            executor.shutdown();
+            if (!force) {
+                try {
+                    executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    TraceTm.jta.error("Interrupted while waiting for the expired timers");
+                }
+            }
+        }
         if (TraceTm.jta.isDebugEnabled()) {
             TraceTm.jta.debug("TimerManager has stopped");
         }
@@ -159,77 +272,190 @@ public class TimerManager {
     }
 
     /**
-     * cney speed up the clock x1000 when shutting down
-     * update all timers in the list
-     * each timer expired is put in a special list of expired timers
+     * Every tick, apply the pending requests and advance the timing wheel.
+     * Each timer expired is put in a special list of expired timers
      * they will be processed then by the Batch Thread.
+     * When shutting down, all running timers expire at once, in the
+     * order of their deadlines.
+     * When no timer is armed, the thread is parked until one is added.
      */
     public void clock() {
+        List<TimerEvent> found = new ArrayList<TimerEvent>();
         while (true) {
             try {
-                Thread.sleep(shuttingdown?1:1000);  // 1 second or 1ms shen shuttingdown
-                // Thread.currentThread().sleep(shuttingdown?1:1000);	// 1 second or 1ms shen shuttingdown
-                synchronized(timerList) {
-                    int found = 0;
-                    boolean empty = true;
-                    for (int i = 0; i < timerList.size(); i++) {
-                        TimerEvent t = (TimerEvent) timerList.elementAt(i);
-                        if (!t.isStopped()) {
-                            empty = false;
-                        }
-                        if (t.update() <= 0) {
-                            timerList.removeElementAt(i--);
-                            if (t.valid()) {
-                                expiredList.addElement(t);
-                                found++;
-                                if (t.ispermanent() && !shuttingdown) {
-                                    t.restart();
-                                    timerList.addElement(t);
-                                }
-                            }
-                        }
-                        // Be sure there is no more ref on bean in this local variable.
-                        t = null;
+                if (!shuttingdown && wheel.size() == 0 && pendingList.isEmpty()) {
+                    idle = true;
+                    // check again: a timer may have been added before idle was set
+                    if (pendingList.isEmpty() && !shuttingdown) {
+                        LockSupport.park(this);
                     }
-                    if (found > 0) {
-                        timerList.notify();
-                    } else {
-                        if (empty && shuttingdown) {
-                            break;
-                        }
+                    idle = false;
+                    // skip the ticks elapsed while parked
+                    wheel.advance(System.currentTimeMillis(), found);
+                    continue;
+                }
+                long wait = shuttingdown ? 1 : wheel.nextTickDate() - System.currentTimeMillis();
+                if (wait > 0) {
+                    Thread.sleep(wait);
+                }
+                applyPending();
+                if (shuttingdown) {
+                    if (wheel.size() == 0 && pendingList.isEmpty()) {
+                        break;
                     }
+                    wheel.drainTo(found);
+                    Collections.sort(found, new Comparator<TimerEvent>() {
+                        public int compare(TimerEvent t1, TimerEvent t2) {
+                            long d1 = t1.getDeadline();
+                            long d2 = t2.getDeadline();
+                            return d1 < d2 ? -1 : (d1 == d2 ? 0 : 1);
+                        }
+                    });
+                } else {
+                    wheel.advance(System.currentTimeMillis(), found);
+                }
+                if (!found.isEmpty()) {
+                    expire(found);
+                    found.clear();
                 }
             } catch (InterruptedException e) {
                 TraceTm.jta.error("Timer interrupted");
             }
         }
-        synchronized(timerList) { // notify batch so that function can return.
-            timerList.notify();
+        synchronized(expiredList) { // notify batch so that function can return.
+            expiredList.notify();
         }
     }
 
     /**
-     * process all expired timers
+     * dispatch all expired timers to the expiry executor
      */
     public void batch() {
 
-        while (!(shuttingdown && timerList.isEmpty() && expiredList.isEmpty())) {
+        while (true) {
             TimerEvent t;
-            synchronized(timerList) {
+            synchronized(expiredList) {
                 while (expiredList.isEmpty()) {
-                    if (shuttingdown) return;
+                    if (shuttingdown && !clockThread.isAlive()) return;
                     try {
-                        timerList.wait();
+                        expiredList.wait(shuttingdown ? 10 : 0);
                     } catch (Exception e) {
                         TraceTm.jta.error("Exception in Batch: ", e);
                     }
                 }
-                t = (TimerEvent) expiredList.elementAt(0);
-                expiredList.removeElementAt(0);
+                t = expiredList.removeFirst();
             }
             // Do not keep the lock during the processing of the timer
+            dispatch(t);
+        }
+    }
+
+    /**
+     * Pass an expired timer to the expiry executor. When too many timers
+     * are waiting, block until one of them has been processed.
+     * @param t expired timer
+     */
+    private void dispatch(final TimerEvent t) {
+        Executor executor = expiryExecutor;
+        if (executor == null) {
+            processExpired(t);
+            return;
+        }
+        if (!expiryPermits.tryAcquire()) {
+            expiryThrottled.incrementAndGet();
+            long start = System.currentTimeMillis();
+            expiryPermits.acquireUninterruptibly();
+            expiryThrottledTime.addAndGet(System.currentTimeMillis() - start);
+        }
+        int backlog = getExpiryBacklog();
+        int max = expiryBacklogMax.get();
+        while (backlog > max && !expiryBacklogMax.compareAndSet(max, backlog)) {
+            max = expiryBacklogMax.get();
+        }
+        try {
+            executor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        processExpired(t);
+                    } finally {
+                        expiryPermits.release();
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            // executor rejected the task (shut down, or full)
+            expiryPermits.release();
+            TraceTm.jta.warn("Expiry executor rejected a timer, processed by the batch thread: " + e);
+            processExpired(t);
+        }
+    }
+
+    /**
+     * process one expired timer
+     * @param t expired timer
+     */
+    private void processExpired(TimerEvent t) {
+        try {
             t.process();
+        } catch (Throwable e) {
+            TraceTm.jta.error("Exception while processing an expired timer: ", e);
         }
+        expiryProcessed.incrementAndGet();
+    }
+
+    /**
+     * Set the executor used to process the expired timers.
+     * The executor created by the TimerManager, if any, is shut down.
+     * @param executor the executor, or null to process the timers in the
+     * batch thread
+     */
+    public void setExpiryExecutor(Executor executor) {
+        ExecutorService old;
+        synchronized(this) {
+            old = ownExecutor;
+            ownExecutor = null;
+            expiryExecutor = executor;
+        }
+        if (old != null) {
+            old.shutdown();
+        }
+    }
+
+    /**
+     * @return the number of expired timers submitted and not processed yet
+     */
+    public int getExpiryBacklog() {
+        return expiryPermitCount - expiryPermits.availablePermits();
+    }
+
+    /**
+     * @return the highest backlog seen so far
+     */
+    public int getExpiryBacklogMax() {
+        return expiryBacklogMax.get();
+    }
+
+    /**
+     * @return the number of expired timers processed
+     */
+    public long getExpiryProcessedCount() {
+        return expiryProcessed.get();
+    }
+
+    /**
+     * @return the number of times the batch thread had to wait for the
+     * expiry executor
+     */
+    public long getExpiryThrottledCount() {
+        return expiryThrottled.get();
+    }
+
+    /**
+     * @return the total time (in ms) the batch thread waited for the
+     * expiry executor
+     */
+    public long getExpiryThrottledTime() {
+        return expiryThrottledTime.get();
     }
 
     /**
@@ -240,21 +466,120 @@ public class TimerManager {
      * @param permanent true if the timer is permanent.
      */
     public TimerEvent addTimer(TimerEventListener tel, long timeout, Object arg, boolean permanent) {
-        TimerEvent te = new TimerEvent(tel, timeout, arg, permanent);
-        synchronized(timerList) {
-            timerList.addElement(te);
-        }
+        return addTimerMillis(tel, timeout * 1000L, arg, permanent);
+    }
+
+    /**
+     * add a new timer in the list
+     * @param tel Object that will be notified when the timer expire.
+     * @param millis nb of milliseconds before the timer expires.
+     * @param arg info passed with the timer
+     * @param permanent true if the timer is permanent.
+     */
+    public TimerEvent addTimerMillis(TimerEventListener tel, long millis, Object arg, boolean permanent) {
+        TimerEvent te = new TimerEvent(tel, millis, arg, permanent, this);
+        pendingList.add(te);
+        wakeClock();
         return te;
     }
 
     /**
-     * remove a timer from the list. this is not very efficient.
-     * A better way to do this is TimerEvent.unset()
+     * remove a timer from the list.
+     * Same as TimerEvent.unset()
      * @deprecated
      */
     public void removeTimer(TimerEvent te) {
-        synchronized(timerList) {
-            timerList.removeElement(te);
+        te.unset();
+    }
+
+    /**
+     * A timer has been modified: it will be moved in the wheel at the
+     * next tick.
+     * @param te the timer
+     */
+    void reschedule(TimerEvent te) {
+        pendingList.add(te);
+        wakeClock();
+    }
+
+    /**
+     * Wake the clock thread up if it is parked with no timer.
+     */
+    private void wakeClock() {
+        if (idle) {
+            LockSupport.unpark(clockThread);
+        }
+    }
+
+    /**
+     * Create an executor starting a virtual thread per task.
+     * Virtual threads are looked up by reflection, since they are not
+     * available on all the JVMs supported by JOTM.
+     * @return the executor, or null if virtual threads are not available
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (Exception e) {
+            TraceTm.jotm.warn("Virtual threads are not available, using a thread pool");
+            return null;
+        }
+    }
+
+    /**
+     * Creates the daemon threads of the expiry pool
+     */
+    private static class ExpiryThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger count = new AtomicInteger();
+
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "JotmExpiry-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+
+    /**
+     * Apply the requests queued since the last tick.
+     * Only called by the clock thread.
+     */
+    private void applyPending() {
+        TimerEvent te;
+        while ((te = pendingList.poll()) != null) {
+            wheel.remove(te);
+            if (te.valid() && !te.isStopped()) {
+                wheel.insert(te);
+            }
+        }
+    }
+
+    /**
+     * Pass the expired timers to the batch thread,
+     * and restart the permanent ones.
+     * Only called by the clock thread.
+     * @param found the timers whose deadline has been reached
+     */
+    private void expire(List<TimerEvent> found) {
+        int count = 0;
+        synchronized(expiredList) {
+            for (TimerEvent t : found) {
+                if (t.valid() && !t.isStopped()) {
+                    expiredList.addLast(t);
+                    count++;
+                }
+            }
+            if (count > 0) {
+                expiredList.notify();
+            }
+        }
+        if (!shuttingdown) {
+            for (TimerEvent t : found) {
+                if (t.valid() && t.ispermanent() && !t.isStopped()) {
+                    t.rearm();
+                    wheel.insert(t);
+                }
+            }
         }
     }
 }
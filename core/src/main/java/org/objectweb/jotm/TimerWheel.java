@@ -0,0 +1,293 @@
+/*
+ * @(#) TimerWheel.java
+ *
+ * JOTM: Java Open Transaction Manager
+ *
+ *
+ * This module was originally developed by
+ *
+ *  - Bull S.A. as part of the JOnAS application server code released in
+ *    July 1999 (www.bull.com)
+ *
+ * --------------------------------------------------------------------------
+ *  The original code and portions created by Bull SA are
+ *  Copyright (c) 1999 BULL SA
+ *  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * -Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * -Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * --------------------------------------------------------------------------
+ * $Id$
+ * --------------------------------------------------------------------------
+ */
+package org.objectweb.jotm;
+
+import java.util.List;
+
+/**
+ * Hierarchical timing wheel used by the TimerManager.
+ * Time is cut in ticks of <code>resolution</code> milliseconds. The wheel
+ * is made of {@link #LEVELS} levels of {@link #SLOTS} slots each: a slot of
+ * level 0 holds the timers expiring during one tick, a slot of level n holds
+ * the timers expiring during SLOTS^n ticks. When the lower levels wrap
+ * around, the matching slot of the upper level is cascaded down.
+ * Adding or removing a timer is O(1), and each tick only looks at the
+ * timers of one slot.
+ * <p>
+ * This class is not thread safe: it must only be used by the clock thread.
+ */
+class TimerWheel {
+
+    /**
+     * number of bits used to index the slots of a level
+     */
+    private static final int SLOT_BITS = 6;
+
+    /**
+     * number of slots per level
+     */
+    static final int SLOTS = 1 << SLOT_BITS;
+
+    /**
+     * number of levels. With 100ms ticks the wheel covers 19 days,
+     * longer timers are re-inserted when they reach the last level.
+     */
+    static final int LEVELS = 4;
+
+    private static final int SLOT_MASK = SLOTS - 1;
+
+    /**
+     * max number of ticks that can be represented in the wheel
+     */
+    private static final long MAX_TICKS = (1L << (SLOT_BITS * LEVELS)) - 1;
+
+    /**
+     * slots of the wheel, each one is the head of a doubly linked list.
+     */
+    private final TimerEvent[][] slots = new TimerEvent[LEVELS][SLOTS];
+
+    /**
+     * tick duration in milliseconds
+     */
+    private final long resolution;
+
+    /**
+     * date (in ms) of the tick 0
+     */
+    private final long origin;
+
+    /**
+     * last tick processed
+     */
+    private long currentTick = 0;
+
+    /**
+     * number of timers in the wheel
+     */
+    private int size = 0;
+
+    /**
+     * Constructor
+     * @param resolution tick duration in milliseconds
+     * @param now current date in milliseconds
+     */
+    TimerWheel(long resolution, long now) {
+        this.resolution = resolution;
+        this.origin = now;
+    }
+
+    /**
+     * @return the number of timers in the wheel
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return the date (in ms) of the next tick to process
+     */
+    long nextTickDate() {
+        return origin + (currentTick + 1) * resolution;
+    }
+
+    /**
+     * Convert a date into a tick number, rounding up so that a timer never
+     * expires before its date.
+     * @param date date in milliseconds
+     * @return the tick number
+     */
+    private long tickOf(long date) {
+        long elapsed = date - origin;
+        if (elapsed <= 0) {
+            return 0;
+        }
+        return (elapsed + resolution - 1) / resolution;
+    }
+
+    /**
+     * Insert a timer in the wheel according to its deadline.
+     * The timer must not be already in the wheel.
+     * @param te the timer
+     */
+    void insert(TimerEvent te) {
+        long expires = tickOf(te.getDeadline());
+        if (expires <= currentTick) {
+            // already expired: will be processed at the next tick.
+            expires = currentTick + 1;
+        }
+        long delta = expires - currentTick;
+        if (delta > MAX_TICKS) {
+            // too far: park it in the last level. It will be checked again
+            // when this slot is cascaded.
+            expires = currentTick + MAX_TICKS;
+            delta = MAX_TICKS;
+        }
+        int level = 0;
+        while (delta >= (1L << (SLOT_BITS * (level + 1)))) {
+            level++;
+        }
+        int slot = (int) ((expires >>> (SLOT_BITS * level)) & SLOT_MASK);
+
+        TimerEvent head = slots[level][slot];
+        te.wheelPrev = null;
+        te.wheelNext = head;
+        if (head != null) {
+            head.wheelPrev = te;
+        }
+        slots[level][slot] = te;
+        te.wheelLevel = level;
+        te.wheelSlot = slot;
+        te.inWheel = true;
+        size++;
+    }
+
+    /**
+     * Remove a timer from the wheel. Nothing is done if the timer is not in
+     * the wheel.
+     * @param te the timer
+     */
+    void remove(TimerEvent te) {
+        if (!te.inWheel) {
+            return;
+        }
+        if (te.wheelPrev != null) {
+            te.wheelPrev.wheelNext = te.wheelNext;
+        } else {
+            slots[te.wheelLevel][te.wheelSlot] = te.wheelNext;
+        }
+        if (te.wheelNext != null) {
+            te.wheelNext.wheelPrev = te.wheelPrev;
+        }
+        te.wheelPrev = null;
+        te.wheelNext = null;
+        te.inWheel = false;
+        size--;
+    }
+
+    /**
+     * Process all ticks elapsed until now.
+     * @param now current date in milliseconds
+     * @param expired list where the expired timers are added
+     */
+    void advance(long now, List<TimerEvent> expired) {
+        long target = (now - origin) / resolution;
+        if (size == 0 && currentTick < target) {
+            // nothing to expire or cascade: skip the idle ticks
+            currentTick = target;
+            return;
+        }
+        while (currentTick < target) {
+            tick(expired);
+        }
+    }
+
+    /**
+     * Remove all timers from the wheel.
+     * @param removed list where the timers are added
+     */
+    void drainTo(List<TimerEvent> removed) {
+        for (int level = 0; level < LEVELS; level++) {
+            for (int slot = 0; slot < SLOTS; slot++) {
+                TimerEvent te = slots[level][slot];
+                while (te != null) {
+                    TimerEvent next = te.wheelNext;
+                    remove(te);
+                    removed.add(te);
+                    te = next;
+                }
+            }
+        }
+    }
+
+    /**
+     * Process one tick: cascade upper levels if needed, then expire
+     * the timers of the current slot of level 0.
+     * @param expired list where the expired timers are added
+     */
+    private void tick(List<TimerEvent> expired) {
+        currentTick++;
+
+        for (int level = 1; level < LEVELS; level++) {
+            if ((currentTick & ((1L << (SLOT_BITS * level)) - 1)) != 0) {
+                break;
+            }
+            cascade(level, (int) ((currentTick >>> (SLOT_BITS * level)) & SLOT_MASK), expired);
+        }
+
+        int slot = (int) (currentTick & SLOT_MASK);
+        TimerEvent te = slots[0][slot];
+        while (te != null) {
+            TimerEvent next = te.wheelNext;
+            remove(te);
+            if (tickOf(te.getDeadline()) <= currentTick) {
+                expired.add(te);
+            } else {
+                // deadline has been moved meanwhile
+                insert(te);
+            }
+            te = next;
+        }
+    }
+
+    /**
+     * Move all timers of a slot into the lower levels. A timer expiring
+     * at the current tick expires now, since insert() never puts a timer
+     * in the slot of the current tick.
+     * @param level level of the slot
+     * @param slot index of the slot
+     * @param expired list where the expired timers are added
+     */
+    private void cascade(int level, int slot, List<TimerEvent> expired) {
+        TimerEvent te = slots[level][slot];
+        while (te != null) {
+            TimerEvent next = te.wheelNext;
+            remove(te);
+            if (tickOf(te.getDeadline()) <= currentTick) {
+                expired.add(te);
+            } else {
+                insert(te);
+            }
+            te = next;
+        }
+    }
+}
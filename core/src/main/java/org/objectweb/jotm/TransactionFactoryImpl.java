@@ -43,11 +43,11 @@
 package org.objectweb.jotm;
 
 import java.net.InetAddress;
-import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import javax.naming.InitialContext;
 import javax.rmi.PortableRemoteObject;
 import java.rmi.RemoteException;
-import javax.transaction.TransactionManager;
 
 
 public class TransactionFactoryImpl
@@ -59,7 +59,16 @@ public class TransactionFactoryImpl
      */
     int timeoutMax = 3600; // 1 hour
 
-    private Vector coordinatorList = new Vector();
+    // Controls of the transactions known by this factory, by Xid
+    private final ConcurrentMap<XidImpl, ControlImpl> coordinators =
+        new ConcurrentHashMap<XidImpl, ControlImpl>();
+
+    // A Control is recreated once per Xid, under one of these locks
+    private static final int LOCKS = 32;
+    private final Object[] locks = new Object[LOCKS];
+
+    // The local TransactionManager, looked up once
+    private volatile Current current = null;
 
     /**
      * Constructor of the Transaction Factory
@@ -68,6 +77,9 @@ public class TransactionFactoryImpl
         if (TraceTm.jotm.isDebugEnabled()) {
             TraceTm.jotm.debug("default constructor");
         }
+        for (int i = 0; i < LOCKS; i++) {
+            locks[i] = new Object();
+        }
     }
 
     /**
@@ -75,7 +87,7 @@ public class TransactionFactoryImpl
      *
      * @return		The Control object for the transaction
      */
-    public synchronized Control create(int timeout) throws RemoteException {
+    public Control create(int timeout) throws RemoteException {
         if (TraceTm.jotm.isDebugEnabled()) {
             TraceTm.jotm.debug("timeout=" + timeout);
         }
@@ -92,7 +104,9 @@ public class TransactionFactoryImpl
 
         // Creates a new ControlImpl
         try {
-            ctrl = new ControlImpl(timeout, xid, null);
+            ctrl = new ControlImpl(timeout, xid, null, this);
+            coordinators.put(xid, ctrl);
+            ctrl.export();
         } catch (Exception e) {
             TraceTm.jotm.error("Cannot create ControlImpl", e);
         }
@@ -104,7 +118,7 @@ public class TransactionFactoryImpl
      * See bug 314188
      * @return		The Control object for the transaction
      */
-    public synchronized Control create(int timeout, Xid xid) throws RemoteException {
+    public Control create(int timeout, Xid xid) throws RemoteException {
         if (TraceTm.jotm.isDebugEnabled()) {
             TraceTm.jotm.debug("xid=" + xid);
         }
@@ -118,10 +132,10 @@ public class TransactionFactoryImpl
 
         // Creates a new ControlImpl
         try {
-            ctrl = new ControlImpl(timeout, xid, null);
-            InitialContext ictx = new InitialContext();
-            TransactionManager tm = (TransactionManager) ictx.lookup("java:/TransactionManager");
-            TransactionImpl tx = ((Current) tm).getTxByXid(xid);
+            ctrl = new ControlImpl(timeout, xid, null, this);
+            coordinators.put(key(xid), ctrl);
+            ctrl.export();
+            TransactionImpl tx = getCurrent().getTxByXid(xid);
             if (tx != null) {
             	InternalTransactionContext ctx = new InternalTransactionContext(timeout, (Coordinator) ctrl, xid);
             	tx.updatePropagationContext(ctx);
@@ -139,44 +153,94 @@ public class TransactionFactoryImpl
      *
      * @return		The Control object for the transaction
      */
-    public synchronized Control recreate(TransactionContext ctx) throws RemoteException {
+    public Control recreate(TransactionContext ctx) throws RemoteException {
+        ControlImpl ctrl = recreateControl(ctx);
+        if (ctrl != null) {
+            // may be returned to another JVM
+            ctrl.export();
+        }
+        return ctrl;
+    }
+
+    /**
+     * Recreate a Control object for a caller of this JVM.
+     * The Control is not exported: this is done only if its context
+     * leaves the JVM.
+     *
+     * @return		The Control object for the transaction
+     */
+    ControlImpl recreateControl(TransactionContext ctx) {
         if (TraceTm.jotm.isDebugEnabled()) {
             TraceTm.jotm.debug("TransactionContext=" + ctx);
         }
 
-        // Check if Control already exists
-        ControlImpl ctrl = null;
+        // TODO: Build an xid with same gtrid and a new bqual
+        Xid xid = ctx.getXid();
+        XidImpl key = key(xid);
 
-        synchronized (coordinatorList) {
-            for (int i = 0; i < coordinatorList.size(); i++) {
-                Coordinator coord = (Coordinator) coordinatorList.elementAt(i);
-                if (coord.equals(ctx.getCoordinator())) {
-                    if (TraceTm.jotm.isDebugEnabled()) {
-                        TraceTm.jotm.debug("recreate: Control already in the list");
+        // Check if Control already exists
+        ControlImpl ctrl = coordinators.get(key);
+        if (ctrl == null) {
+            synchronized (lock(key)) {
+                ctrl = coordinators.get(key);
+                if (ctrl == null) {
+                    // Creates a new ControlImpl and register it to the sup-coord.
+                    // coordinator may be a JOnAS Coordinator or a org.omg.CosTransactions.Coordinator
+                    try {
+                        ctrl = new ControlImpl(ctx.getTimeout(), xid, ctx.getCoordinator(), this);
+                        coordinators.put(key, ctrl);
+                    } catch (Exception e) {
+                        TraceTm.jotm.error("Cannot create ControlImpl", e);
                     }
-                    ctrl = (ControlImpl) coord;
-                    break;
+                    return ctrl;
                 }
             }
         }
-        if (ctrl != null) {
-            if (TraceTm.jotm.isDebugEnabled()) {
-                TraceTm.jotm.debug("recreate twice");
-            }
-            return ctrl;
+        if (TraceTm.jotm.isDebugEnabled()) {
+            TraceTm.jotm.debug("recreate twice");
         }
+        return ctrl;
+    }
 
-        // TODO: Build an xid with same gtrid and a new bqual
-        javax.transaction.xa.Xid xid = ctx.getXid();
+    /**
+     * A Control is destroyed: forget it.
+     * @param ctrl the Control
+     * @param xid its Xid
+     */
+    void removeControl(ControlImpl ctrl, javax.transaction.xa.Xid xid) {
+        coordinators.remove(key(xid), ctrl);
+    }
 
-        // Creates a new ControlImpl and register it to the sup-coord.
-        // coordinator may be a JOnAS Coordinator or a org.omg.CosTransactions.Coordinator
-        try {
-            ctrl = new ControlImpl(ctx.getTimeout(), xid, ctx.getCoordinator());
-        } catch (Exception e) {
-            TraceTm.jotm.error("Cannot create ControlImpl", e);
+    /**
+     * @return number of Controls known by this factory
+     */
+    public int getControlCount() {
+        return coordinators.size();
+    }
+
+    private static XidImpl key(javax.transaction.xa.Xid xid) {
+        return (xid instanceof XidImpl) ? (XidImpl) xid : new XidImpl(xid);
+    }
+
+    private Object lock(XidImpl key) {
+        return locks[(key.hashCode() & 0x7fffffff) % LOCKS];
+    }
+
+    /**
+     * @return the local TransactionManager
+     * @throws Exception could not look it up
+     */
+    private Current getCurrent() throws Exception {
+        Current cur = current;
+        if (cur == null) {
+            cur = Current.getCurrent();
+            if (cur == null) {
+                InitialContext ictx = new InitialContext();
+                cur = (Current) ictx.lookup("java:/TransactionManager");
+            }
+            current = cur;
         }
-        return ctrl;
+        return cur;
     }
 
     /**
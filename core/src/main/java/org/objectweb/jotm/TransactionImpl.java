@@ -52,7 +52,6 @@
  */
 package org.objectweb.jotm;
 
-import java.rmi.NoSuchObjectException;
 import java.rmi.RemoteException;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -61,7 +60,6 @@ import java.util.List;
 import java.util.HashMap;
 import java.util.Map;
 
-import javax.rmi.PortableRemoteObject;
 import javax.transaction.Status;
 import javax.transaction.Synchronization;
 import javax.transaction.Transaction;
@@ -94,6 +92,12 @@ public class TransactionImpl implements Transaction, TimerEventListener {
     private TimerEvent timer = null; // keep this to unvalidate timer
     private RecoveryCoordinator recoveryCoord = null;
 
+    /**
+     * true when the SubCoordinator is registered as synchronization
+     * to the remote coordinator
+     */
+    private boolean synchroRegistered = false;
+
     /**
      * enlisted XAresources
      */
@@ -323,6 +327,16 @@ public class TransactionImpl implements Transaction, TimerEventListener {
                 Current.getCurrent().forgetTx(getXid());
                 localstatus = Status.STATUS_ROLLEDBACK;
                 throw new RollbackException();
+            } catch (HeuristicMixed e) {
+                TraceTm.jotm.info("Commit local transaction -> Heuristic mixed: " + e.getMessage());
+                Current.getCurrent().forgetTx(getXid());
+                localstatus = Status.STATUS_UNKNOWN;
+                throw new HeuristicMixedException(e.getMessage());
+            } catch (HeuristicHazard e) {
+                TraceTm.jotm.info("Commit local transaction -> Heuristic hazard: " + e.getMessage());
+                Current.getCurrent().forgetTx(getXid());
+                localstatus = Status.STATUS_UNKNOWN;
+                throw new HeuristicMixedException(e.getMessage());
             } catch (RemoteException e) {
                 TraceTm.jotm.error(
                                    "Unexpected Exception on commit_one_phase:",
@@ -492,18 +506,20 @@ public class TransactionImpl implements Transaction, TimerEventListener {
             flag = XAResource.TMRESUME;
         }
 
-        Xid resXid = new XidImpl( getXid(),subcoord.getXaresIndex(xares) );
-        javax.transaction.xa.Xid javaxxid = new JavaXidImpl(resXid);
+        // The Xid of a known branch is the one stored by the SubCoordinator
+        javax.transaction.xa.Xid javaxxid;
+        if (found) {
+            javaxxid = subcoord.getJavaxXid(subcoord.getXaresIndex(xares));
+        } else {
+            javaxxid = new XidImpl( getXid(),subcoord.getXaresIndex(xares) ).javaXid();
+            subcoord.addJavaxXid(javaxxid);
+        }
 
         if (TraceTm.jta.isDebugEnabled()) {
             TraceTm.jta.debug("enlisted with resource= " + xares);
             TraceTm.jta.debug("start javaxxid= " + javaxxid);
         }
 
-        if (!found) {
-            subcoord.addJavaxXid(javaxxid);
-        }
-
         try {
             xares.start (javaxxid, flag);
         } catch (XAException e) {
@@ -698,6 +714,8 @@ public class TransactionImpl implements Transaction, TimerEventListener {
         // Add Synchronization to the list.
         // may raise exceptions
         subcoord.addSynchronization(sync);
+
+        registerSubCoordSynchro();
     }
 
     /**
@@ -968,12 +986,41 @@ public class TransactionImpl implements Transaction, TimerEventListener {
      */
     public synchronized TransactionContext getPropagationContext(boolean hold) {
         if (propagateCtx) {
+            // The context may leave this JVM: a local coordinator must be callable.
+            exportCoordinator(myCtx.getCoordinator());
+            exportCoordinator(myCtx.getTerminator());
             return myCtx;
         } else {
             return null;
         }
     }
 
+    /**
+     * Export a coordinator created in this JVM, if not done yet.
+     * @param coord the Coordinator or Terminator of the context
+     */
+    private void exportCoordinator(Object coord) {
+        if (coord instanceof ControlImpl) {
+            try {
+                ((ControlImpl) coord).export();
+            } catch (RemoteException e) {
+                TraceTm.jotm.error("Cannot export the coordinator:", e);
+            }
+        }
+    }
+
+    /**
+     * Export the SubCoordinator before registering it to a coordinator
+     * of another JVM. A coordinator of this JVM is called directly.
+     * @param coord the coordinator to register to
+     * @throws RemoteException could not export the SubCoordinator
+     */
+    private void exportSubCoord(Coordinator coord) throws RemoteException {
+        if (!(coord instanceof ControlImpl)) {
+            subcoord.export();
+        }
+    }
+
     /**
      * set a timer for the transaction
      * @param timer  the timer event to set
@@ -1048,6 +1095,7 @@ public class TransactionImpl implements Transaction, TimerEventListener {
                 TraceTm.jta.debug("register the subCoordinator as a Resource");
                 try {
                     propagateCtx = false;
+                    exportSubCoord(remoteCoord);
                     recoveryCoord = remoteCoord.register_resource(subcoord);
                 } catch (RemoteException e) {
                     TraceTm.jotm.warn("Cannot make interposition :" + e.getCause());
@@ -1055,6 +1103,7 @@ public class TransactionImpl implements Transaction, TimerEventListener {
                 } finally {
                     propagateCtx = true;
                 }
+                registerSubCoordSynchro();
             }
         }
 
@@ -1071,6 +1120,30 @@ public class TransactionImpl implements Transaction, TimerEventListener {
         return myXid;
     }
 
+    /**
+     * Register the SubCoordinator as synchronization to the remote coordinator,
+     * once interposition is done and a Synchronization has been added.
+     * The coordinator then sends before_completion to all the JVMs at once,
+     * each one calling its own synchronizations.
+     * If this fails, the synchronizations are still called at prepare.
+     */
+    private synchronized void registerSubCoordSynchro() {
+        Coordinator remoteCoord = myCtx.getCoordinator();
+        if (synchroRegistered || remoteCoord == null || recoveryCoord == null
+            || !subcoord.hasSynchronizations()) {
+            return;
+        }
+        try {
+            propagateCtx = false;
+            remoteCoord.register_synchronization(subcoord);
+            synchroRegistered = true;
+        } catch (RemoteException e) {
+            TraceTm.jotm.warn("Cannot register synchronizations to coordinator: " + e);
+        } finally {
+            propagateCtx = true;
+        }
+    }
+
     /**
      * make a SubCoordinator for this Transaction object
      * @param interpose Make interposition if not already done.
@@ -1109,7 +1182,14 @@ public class TransactionImpl implements Transaction, TimerEventListener {
                 propagateCtx = false;
                 //Control coord = Current.getJTM().create(myCtx.getTimeout());
                 //Control coord = Current.getJTM().create(myCtx.getTimeout(), getXid());
-                Control coord = Current.getJTM().recreate(myCtx);
+                // A JTM of this JVM gives a Control not exported yet.
+                TransactionFactory jtm = Current.getJTM();
+                Control coord;
+                if (jtm instanceof TransactionFactoryImpl) {
+                    coord = ((TransactionFactoryImpl) jtm).recreateControl(myCtx);
+                } else {
+                    coord = jtm.recreate(myCtx);
+                }
                 remoteCoord =
                     (Coordinator) javax.rmi.PortableRemoteObject.narrow(coord, Coordinator.class);
 
@@ -1136,6 +1216,7 @@ public class TransactionImpl implements Transaction, TimerEventListener {
         if (remoteCoord != null && recoveryCoord == null) {
             try {
                 propagateCtx = false;
+                exportSubCoord(remoteCoord);
                 recoveryCoord = remoteCoord.register_resource(subcoord);
             } catch (RemoteException e) {
                 // If cannot be registered, destroy it.
@@ -1162,11 +1243,10 @@ public class TransactionImpl implements Transaction, TimerEventListener {
 
     public void cleanup() {
         if (subcoord != null) {
-            TraceTm.jta.debug("unexport SubCoordinator");
-            try {
-                PortableRemoteObject.unexportObject(subcoord);
-            } catch (NoSuchObjectException e) {
-                TraceTm.jta.debug("Cannot unexport subcoord:" + e);
+            // Only exported if the transaction went distributed
+            if (subcoord.isExported()) {
+                TraceTm.jta.debug("unexport SubCoordinator");
+                subcoord.unexport();
             }
             subcoord = null;
         }
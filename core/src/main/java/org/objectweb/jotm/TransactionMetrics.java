@@ -0,0 +1,537 @@
+/*
+ * @(#) TransactionMetrics.java
+ *
+ * JOTM: Java Open Transaction Manager
+ *
+ *
+ * This module was originally developed by
+ *
+ *  - Bull S.A. as part of the JOnAS application server code released in
+ *    July 1999 (www.bull.com)
+ *
+ * --------------------------------------------------------------------------
+ *  The original code and portions created by Bull SA are
+ *  Copyright (c) 1999 BULL SA
+ *  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * -Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * -Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * --------------------------------------------------------------------------
+ * $Id$
+ * --------------------------------------------------------------------------
+ */
+package org.objectweb.jotm;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.StringTokenizer;
+
+/**
+ * Transaction counters and latency histograms of this JOTM instance.
+ * Counters are striped, so that updating them never blocks a transaction.
+ * A copy of all values can be taken with snapshot(); the values
+ * are also published in the registries given by the
+ * jotm.metrics.Registries property (JMX by default, see MetricsRegistry).
+ */
+public class TransactionMetrics implements TransactionMetricsMBean {
+
+    /**
+     * property giving the registries where the metrics are published
+     */
+    private static final String REGISTRIES_PROPERTY = "jotm.metrics.Registries";
+
+    /**
+     * minimum duration (ms) of the interval used to compute the rates
+     */
+    private static final long RATE_WINDOW = 10000;
+
+    private static volatile TransactionMetrics unique = null;
+
+    private static volatile boolean published = false;
+
+    private final List<MetricsRegistry> registries = new ArrayList<MetricsRegistry>();
+
+    private final StripedCounter begun = new StripedCounter();
+    private final StripedCounter committed = new StripedCounter();
+    private final StripedCounter rolledback = new StripedCounter();
+    private final StripedCounter expired = new StripedCounter();
+
+    // commits that did not force the log
+    private final StripedCounter readOnly = new StripedCounter();
+    private final StripedCounter singleBranch = new StripedCounter();
+    private final StripedCounter onePhase = new StripedCounter();
+
+    private final LatencyHistogram prepareLatency = new LatencyHistogram("prepare");
+    private final LatencyHistogram commitLatency = new LatencyHistogram("commit");
+    private final LatencyHistogram logForceLatency = new LatencyHistogram("logForce");
+
+    // snapshots used to compute the rates
+    private volatile Snapshot rateBase;
+    private volatile Snapshot rateWindowStart;
+
+    /**
+     * Constructor
+     */
+    private TransactionMetrics() {
+        rateBase = snapshot();
+        rateWindowStart = rateBase;
+    }
+
+    /**
+     * Get the metrics, and publish them if they are not yet published.
+     * The counters are kept across a stop, only the publication stops.
+     * @return the unique instance
+     */
+    public static TransactionMetrics getInstance() {
+        TransactionMetrics metrics = unique;
+        if (metrics != null && published) {
+            return metrics;
+        }
+        return publish();
+    }
+
+    private static synchronized TransactionMetrics publish() {
+        if (unique == null) {
+            unique = new TransactionMetrics();
+        }
+        if (!published) {
+            published = true;
+            unique.start();
+        }
+        return unique;
+    }
+
+    /**
+     * Stop publishing the metrics.
+     */
+    public static synchronized void stop() {
+        if (!published) {
+            return;
+        }
+        published = false;
+        for (MetricsRegistry registry : unique.registries) {
+            try {
+                registry.unregister(unique);
+            } catch (Exception e) {
+                TraceTm.jotm.warn("Cannot unregister metrics from " + registry, e);
+            }
+        }
+        unique.registries.clear();
+    }
+
+    /**
+     * Publish the metrics in the configured registries.
+     */
+    private void start() {
+        String names = System.getProperty(REGISTRIES_PROPERTY, JmxMetricsRegistry.class.getName()).trim();
+        if (names.length() == 0 || names.equalsIgnoreCase("none")) {
+            return;
+        }
+        StringTokenizer st = new StringTokenizer(names, ", ");
+        while (st.hasMoreTokens()) {
+            String name = st.nextToken();
+            try {
+                Class<?> clazz = Thread.currentThread().getContextClassLoader() != null
+                    ? Class.forName(name, true, Thread.currentThread().getContextClassLoader())
+                    : Class.forName(name);
+                addRegistry((MetricsRegistry) clazz.newInstance());
+            } catch (Exception e) {
+                TraceTm.jotm.warn("Cannot create metrics registry " + name, e);
+            }
+        }
+    }
+
+    /**
+     * Publish the metrics in a registry.
+     * @param registry the registry
+     */
+    public synchronized void addRegistry(MetricsRegistry registry) {
+        try {
+            registry.register(this);
+            registries.add(registry);
+        } catch (Exception e) {
+            TraceTm.jotm.warn("Cannot register metrics in " + registry, e);
+        }
+    }
+
+    // ------------------------------------------------------------------
+    // Recording
+    // ------------------------------------------------------------------
+
+    void transactionBegun() {
+        begun.increment();
+    }
+
+    void transactionCommitted() {
+        committed.increment();
+    }
+
+    void transactionRolledback() {
+        rolledback.increment();
+    }
+
+    void transactionExpired() {
+        expired.increment();
+    }
+
+    /**
+     * All the resources voted read-only: nothing logged.
+     */
+    void readOnlyFastPath() {
+        readOnly.increment();
+    }
+
+    /**
+     * Only one resource voted commit: committed without logging.
+     */
+    void singleBranchFastPath() {
+        singleBranch.increment();
+    }
+
+    /**
+     * Only one resource enlisted: committed in one phase.
+     */
+    void onePhaseFastPath() {
+        onePhase.increment();
+    }
+
+    /**
+     * @return histogram of the prepare phase duration
+     */
+    public LatencyHistogram getPrepareLatency() {
+        return prepareLatency;
+    }
+
+    /**
+     * @return histogram of the commit phase duration
+     */
+    public LatencyHistogram getCommitLatency() {
+        return commitLatency;
+    }
+
+    /**
+     * @return histogram of the forced writes in the log
+     */
+    public LatencyHistogram getLogForceLatency() {
+        return logForceLatency;
+    }
+
+    /**
+     * The copy is weakly consistent: each counter is summed over its stripes
+     * one after the other, so transactions completing meanwhile may be
+     * counted in some values and not in others.
+     * @return a copy of all the values
+     */
+    public Snapshot snapshot() {
+        return new Snapshot(System.currentTimeMillis(),
+                            getCurrentTransactions(),
+                            begun.sum(),
+                            committed.sum(),
+                            rolledback.sum(),
+                            expired.sum(),
+                            readOnly.sum(),
+                            singleBranch.sum(),
+                            onePhase.sum(),
+                            prepareLatency.snapshot(),
+                            commitLatency.snapshot(),
+                            logForceLatency.snapshot());
+    }
+
+    /**
+     * Reset all counters and histograms.
+     */
+    public void reset() {
+        begun.reset();
+        committed.reset();
+        rolledback.reset();
+        expired.reset();
+        readOnly.reset();
+        singleBranch.reset();
+        onePhase.reset();
+        prepareLatency.reset();
+        commitLatency.reset();
+        logForceLatency.reset();
+        rateBase = snapshot();
+        rateWindowStart = rateBase;
+    }
+
+    // ------------------------------------------------------------------
+    // TransactionMetricsMBean implementation
+    // ------------------------------------------------------------------
+
+    public long getCurrentTransactions() {
+        Current current = Current.getCurrent();
+        return current == null ? 0 : current.getTotalCurrentTransactions();
+    }
+
+    public long getBegunTransactions() {
+        return begun.sum();
+    }
+
+    public long getCommittedTransactions() {
+        return committed.sum();
+    }
+
+    public long getRolledbackTransactions() {
+        return rolledback.sum();
+    }
+
+    public long getExpiredTransactions() {
+        return expired.sum();
+    }
+
+    public long getReadOnlyFastPaths() {
+        return readOnly.sum();
+    }
+
+    public long getSingleBranchFastPaths() {
+        return singleBranch.sum();
+    }
+
+    public long getOnePhaseFastPaths() {
+        return onePhase.sum();
+    }
+
+    public double getBeginRate() {
+        Snapshot now = snapshot();
+        Snapshot since = rateStart(now);
+        return now.getBeginRate(since);
+    }
+
+    public double getCommitRate() {
+        Snapshot now = snapshot();
+        Snapshot since = rateStart(now);
+        return now.getCommitRate(since);
+    }
+
+    public double getRollbackRate() {
+        Snapshot now = snapshot();
+        Snapshot since = rateStart(now);
+        return now.getRollbackRate(since);
+    }
+
+    public double getExpiredRate() {
+        Snapshot now = snapshot();
+        Snapshot since = rateStart(now);
+        return now.getExpiredRate(since);
+    }
+
+    public double getPrepareLatencyMean() {
+        return prepareLatency.snapshot().getMean();
+    }
+
+    public long getPrepareLatency99() {
+        return prepareLatency.snapshot().getPercentile(99);
+    }
+
+    public long getPrepareLatencyMax() {
+        return prepareLatency.snapshot().getMax();
+    }
+
+    public double getCommitLatencyMean() {
+        return commitLatency.snapshot().getMean();
+    }
+
+    public long getCommitLatency99() {
+        return commitLatency.snapshot().getPercentile(99);
+    }
+
+    public long getCommitLatencyMax() {
+        return commitLatency.snapshot().getMax();
+    }
+
+    public double getLogForceLatencyMean() {
+        return logForceLatency.snapshot().getMean();
+    }
+
+    public long getLogForceLatency99() {
+        return logForceLatency.snapshot().getPercentile(99);
+    }
+
+    public long getLogForceLatencyMax() {
+        return logForceLatency.snapshot().getMax();
+    }
+
+    /**
+     * Get the start of the interval used to compute the rates.
+     * The interval covers at least RATE_WINDOW ms, except just after
+     * a start or a reset.
+     * @param now current values
+     * @return the values at the start of the interval
+     */
+    private synchronized Snapshot rateStart(Snapshot now) {
+        if (now.getTime() - rateWindowStart.getTime() >= RATE_WINDOW) {
+            rateBase = rateWindowStart;
+            rateWindowStart = now;
+        }
+        return rateBase;
+    }
+
+    /**
+     * Values of the metrics at a given time.
+     * Rates can be computed between two snapshots.
+     */
+    public static class Snapshot {
+
+        private final long time;
+        private final long current;
+        private final long begun;
+        private final long committed;
+        private final long rolledback;
+        private final long expired;
+        private final long readOnly;
+        private final long singleBranch;
+        private final long onePhase;
+        private final LatencyHistogram.Snapshot prepare;
+        private final LatencyHistogram.Snapshot commit;
+        private final LatencyHistogram.Snapshot logForce;
+
+        Snapshot(long time, long current, long begun, long committed, long rolledback, long expired,
+                 long readOnly, long singleBranch, long onePhase,
+                 LatencyHistogram.Snapshot prepare, LatencyHistogram.Snapshot commit,
+                 LatencyHistogram.Snapshot logForce) {
+            this.time = time;
+            this.current = current;
+            this.begun = begun;
+            this.committed = committed;
+            this.rolledback = rolledback;
+            this.expired = expired;
+            this.readOnly = readOnly;
+            this.singleBranch = singleBranch;
+            this.onePhase = onePhase;
+            this.prepare = prepare;
+            this.commit = commit;
+            this.logForce = logForce;
+        }
+
+        /**
+         * @return date of the snapshot in milliseconds
+         */
+        public long getTime() {
+            return time;
+        }
+
+        /**
+         * @return number of transactions in flight
+         */
+        public long getCurrentTransactions() {
+            return current;
+        }
+
+        public long getBegunTransactions() {
+            return begun;
+        }
+
+        public long getCommittedTransactions() {
+            return committed;
+        }
+
+        public long getRolledbackTransactions() {
+            return rolledback;
+        }
+
+        public long getExpiredTransactions() {
+            return expired;
+        }
+
+        /**
+         * @return commits where all the resources voted read-only
+         */
+        public long getReadOnlyFastPaths() {
+            return readOnly;
+        }
+
+        /**
+         * @return commits of a single prepared resource, not logged
+         */
+        public long getSingleBranchFastPaths() {
+            return singleBranch;
+        }
+
+        /**
+         * @return one phase commits of a single enlisted resource
+         */
+        public long getOnePhaseFastPaths() {
+            return onePhase;
+        }
+
+        public LatencyHistogram.Snapshot getPrepareLatency() {
+            return prepare;
+        }
+
+        public LatencyHistogram.Snapshot getCommitLatency() {
+            return commit;
+        }
+
+        public LatencyHistogram.Snapshot getLogForceLatency() {
+            return logForce;
+        }
+
+        /**
+         * @param since older snapshot
+         * @return transactions begun per second since the older snapshot
+         */
+        public double getBeginRate(Snapshot since) {
+            return rate(begun, since.begun, since);
+        }
+
+        /**
+         * @param since older snapshot
+         * @return transactions committed per second since the older snapshot
+         */
+        public double getCommitRate(Snapshot since) {
+            return rate(committed, since.committed, since);
+        }
+
+        /**
+         * @param since older snapshot
+         * @return transactions rolled back per second since the older snapshot
+         */
+        public double getRollbackRate(Snapshot since) {
+            return rate(rolledback, since.rolledback, since);
+        }
+
+        /**
+         * @param since older snapshot
+         * @return transactions expired per second since the older snapshot
+         */
+        public double getExpiredRate(Snapshot since) {
+            return rate(expired, since.expired, since);
+        }
+
+        private double rate(long value, long oldValue, Snapshot since) {
+            long elapsed = time - since.time;
+            if (elapsed <= 0) {
+                return 0;
+            }
+            return (value - oldValue) * 1000.0 / elapsed;
+        }
+
+        public String toString() {
+            return "current=" + current + ", begun=" + begun + ", committed=" + committed
+                + ", rolledback=" + rolledback + ", expired=" + expired
+                + ", readOnly=" + readOnly + ", singleBranch=" + singleBranch + ", onePhase=" + onePhase
+                + ", " + prepare + ", " + commit + ", " + logForce;
+        }
+    }
+}
@@ -87,6 +87,9 @@ public class TransactionRecoveryImpl implements TransactionRecovery {
     // XALogger info
     private transient static XALogger xaLog = null;
 
+    // Group commit stage in front of xaLog
+    private transient static GroupCommitLog<XACommittingTx> groupLog = null;
+
     // Vector used to hold all registered Resource Managers
     // until they can be written to the Howl Logger.
     private transient static Vector vRmRegistration = new Vector();
@@ -335,6 +338,7 @@ public class TransactionRecoveryImpl implements TransactionRecovery {
 
         if (xares == null) {
             nameResourceManager.put(rmName, rmXares);
+            ResourceManagers.register(rmName, rmXares);
         } else {
 
             // check equality based on the XAResource object
@@ -348,6 +352,7 @@ public class TransactionRecoveryImpl implements TransactionRecovery {
                 if( TraceTm.recovery.isDebugEnabled() ) {
                     TraceTm.recovery.debug(rmName + " already registered");
                 }
+                ResourceManagers.sameRM(xares, rmXares);
 
                 if (tranrm != null) {  // initial implementation, call back immediately
                     if ( TraceTm.recovery.isDebugEnabled() ) {
@@ -639,6 +644,16 @@ public class TransactionRecoveryImpl implements TransactionRecovery {
 
     private class xaReplayListener implements ReplayListener {
 
+        // the progress is logged every REPLAY_PROGRESS transaction records
+        private static final int REPLAY_PROGRESS = 10000;
+
+        private final long start = System.currentTimeMillis();
+        private int records = 0;
+
+        int getRecords() {
+            return records;
+        }
+
         public void onRecord (LogRecord lr) {
 
             if (TraceTm.recovery.isDebugEnabled()) {
@@ -661,6 +676,10 @@ public class TransactionRecoveryImpl implements TransactionRecovery {
                     TraceTm.recovery.debug("Howl XA Commit Record");
                 }
                 tmrecovery.rebuildTransaction ((XALogRecord) lr);
+                if (++records % REPLAY_PROGRESS == 0) {
+                    TraceTm.recovery.info("Replayed " + records + " records of the howl log in "
+                                          + (System.currentTimeMillis() - start) + " ms");
+                }
                 break;
             case LogRecordType.XADONE:
                 if (TraceTm.recovery.isDebugEnabled()) {
@@ -728,12 +747,13 @@ public class TransactionRecoveryImpl implements TransactionRecovery {
 
         tmrecovery = new JotmRecovery();
 
-        xaReplayListener myxarl = new xaReplayListener();
-
         if (TraceTm.recovery.isDebugEnabled()) {
             TraceTm.recovery.debug("xaLog.open");
         }
 
+        // open() reads the whole log to find the active transactions
+        long start = System.currentTimeMillis();
+
         try {
             xaLog.open(null);
         } catch (LogException e) {
@@ -753,7 +773,23 @@ public class TransactionRecoveryImpl implements TransactionRecovery {
             throw new SystemException("Exception occurred in xaLog.open() " + e.getMessage());
         }
 
+        int window = JotmProperties.intProperty("jotm.recovery.GroupCommitWindow", 0);
+        int batch = JotmProperties.intProperty("jotm.recovery.GroupCommitSize", 1);
+        if (TraceTm.recovery.isDebugEnabled()) {
+            TraceTm.recovery.debug("group commit window= " + window + "us, size= " + batch);
+        }
+        groupLog = GroupCommitLog.howl(xaLog, window, batch);
+
+        long opened = System.currentTimeMillis();
+
+        xaReplayListener myxarl = new xaReplayListener();
         xaLog.replayActiveTx (myxarl);
+        tmrecovery.endReplay();
+
+        long end = System.currentTimeMillis();
+        TraceTm.recovery.info("Howl log opened in " + (opened - start) + " ms, "
+                              + myxarl.getRecords() + " active records replayed in " + (end - opened) + " ms, "
+                              + JotmRecovery.getTxRecovered().size() + " transactions to recover");
     }
 
     /**
@@ -770,6 +806,11 @@ public class TransactionRecoveryImpl implements TransactionRecovery {
             return;
         }
 
+        if (groupLog != null) {
+            groupLog.close();
+            groupLog = null;
+        }
+
         try {
             xaLog.close();
         } catch (IOException e) {
@@ -801,7 +842,30 @@ public class TransactionRecoveryImpl implements TransactionRecovery {
         if (TraceTm.recovery.isDebugEnabled()) {
             TraceTm.recovery.debug("Commit howl log");
         }
-        return xaLog.putCommit(xaCmRec);
+        long start = System.nanoTime();
+        XACommittingTx xaCmTx = xaLog.putCommit(xaCmRec);
+        TransactionMetrics.getInstance().getLogForceLatency().recordSince(start);
+        return xaCmTx;
+    }
+
+    /**
+     * write the Commit record of a transaction to the Howl Log, in the same
+     * forced write as the Commit records of concurrent transactions.
+     * The Done record must be written with howlDoneLog exactly once.
+     * @param xaCmRec the Commit Record, starting with its RR1 record
+     * @return the XACommittingTx shared by the transactions of the group
+     * @throws LogException could not log the record
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public XACommittingTx howlGroupCommitLog(byte [][] xaCmRec) throws LogException, IOException, InterruptedException {
+        if (TraceTm.recovery.isDebugEnabled()) {
+            TraceTm.recovery.debug("Group commit howl log");
+        }
+        long start = System.nanoTime();
+        XACommittingTx xaCmTx = groupLog.putCommit(xaCmRec);
+        TransactionMetrics.getInstance().getLogForceLatency().recordSince(start);
+        return xaCmTx;
     }
 
     /**
@@ -816,7 +880,22 @@ public class TransactionRecoveryImpl implements TransactionRecovery {
         if (TraceTm.recovery.isDebugEnabled()) {
             TraceTm.recovery.debug("Done howl log");
         }
-        xaLog.putDone(xaDnRec, xaCmTx);
+        if (groupLog != null) {
+            groupLog.putDone(xaDnRec, xaCmTx);
+        } else {
+            xaLog.putDone(xaDnRec, xaCmTx);
+        }
+    }
+
+    /**
+     * Declare the number of transactions found in a replayed Commit record.
+     * @param xaCmTx the XACommittingTx of the replayed record
+     * @param count number of transactions logged in the record
+     */
+    void howlExpectDone(XACommittingTx xaCmTx, int count) {
+        if (groupLog != null) {
+            groupLog.expectDone(xaCmTx, count);
+        }
     }
 
     /**
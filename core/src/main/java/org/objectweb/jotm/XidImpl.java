@@ -42,9 +42,15 @@
  */
 package org.objectweb.jotm;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.nio.ByteBuffer;
 import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import org.objectweb.howl.log.xa.XACommittingTx;
 
@@ -69,22 +75,38 @@ import org.objectweb.howl.log.xa.XACommittingTx;
  */
 public class XidImpl implements Xid, Serializable  {
 
+    /**
+     * Serial version UID of the former versions, whose serialized form is
+     * still read.
+     */
+    private static final long serialVersionUID = -5304614795858442803L;
+
     public static final int JOTM_FORMAT_ID = 0xBB14;
 
-    // these cells are gated by this.getClass()
-    private static SecureRandom rand = null;    // (also used as first-time flag)
-    private final  byte internalVersId = 1;
-    private static int count = 1;
+    // these cells are gated by XidImpl.class
+    private static SecureRandom rand = null;
+    private static final byte INTERNAL_VERS_ID = 1;
+    private static final byte[] NO_BQUAL = new byte[0];
     private static long uuid0;
     private static long uuid1;
     private static boolean uuidsRecovered = false;
-    private static byte[] gtrid_base = null;   // created by makeGtridBase()
     private static String host, server;
 
+    // created once by makeGtridBase(), then read without lock
+    private static volatile byte[] gtrid_base = null;
+    private static int gtrid_base_hash;
+
+    // last unique timestamp given to a gtrid: millis * 1024 + sequence
+    private static final AtomicLong lastTimeStamp = new AtomicLong();
+
+    // The bqual of a branch does not depend on its gtrid (see makeGtrid):
+    // the bquals of the first branches are shared by all the transactions.
+    private static final int SHARED_BQUALS = 64;
+    private static final AtomicReferenceArray<byte[]> bquals = new AtomicReferenceArray<byte[]>(SHARED_BQUALS);
+
     private String fullString = "";
     private String shortString = "";
 
-    private boolean hashcodevalid = false;
     private int myhashcode;
 
     static String HexDigits[] = {
@@ -147,11 +169,21 @@ public class XidImpl implements Xid, Serializable  {
     private byte[] gtrid;
 
     /**
-     * branch qualifier
+     * branch qualifier, null until derived from the branch index
      * @serial
      */
     private byte[] bqual;
 
+    /**
+     * index of the branch, when bqual has not been derived yet
+     */
+    private transient int branch;
+
+    /**
+     * javax.transaction.xa.Xid of this Xid, built on first use
+     */
+    private transient volatile JavaXidImpl javaXid;
+
     // -------------------------------------------------------------------
     // Constructors
     // -------------------------------------------------------------------
@@ -167,12 +199,7 @@ public class XidImpl implements Xid, Serializable  {
 
         formatId = JOTM_FORMAT_ID;
         byte local_vers = 0;
-        long uuid;
-
-        synchronized (getClass()) {
-            uuid = System.currentTimeMillis() * 1024 + count;
-            count++;
-        }
+        long uuid = nextTimeStamp();
 
         // compute gtrid
         // compute JOnAS gtrid
@@ -247,8 +274,15 @@ public class XidImpl implements Xid, Serializable  {
 
         gtrid = makeGtrid();
         gtrid_length = gtrid.length;
-        bqual = new byte[0];
-        bqual_length = bqual.length;
+        bqual = NO_BQUAL;
+        bqual_length = 0;
+
+        // same value as hashCode(), without hashing the constant gtrid_base again
+        int hc = gtrid_base_hash;
+        for (int i = gtrid.length - 8; i < gtrid.length; i++) {
+            hc = hc * 37 + gtrid[i];
+        }
+        myhashcode = hc;
     }
 
     /**
@@ -266,16 +300,18 @@ public class XidImpl implements Xid, Serializable  {
 
         formatId = oldXid.getFormatId();
 
-        gtrid = oldXid.getGlobalTransactionId();
-        makeGtridBase();
+        gtrid = gtridOf(oldXid);   // never modified, can be shared
         gtrid_length = gtrid.length;
 
-        bqual = new byte[MAXBQUALSIZE];
-        ByteBuffer bb = ByteBuffer.wrap(bqual);
-        bb.put(gtrid_base);
-        bb.putLong(0L);    // (time stamp not used on bqual)
-        bb.putLong(index+0L);    // and this makes the bqual unique
-        bqual_length = bqual.length;
+        // The bqual of the first branches is derived on first use:
+        // it is one of the shared bquals.
+        if (index >= 0 && index < SHARED_BQUALS) {
+            branch = index;
+            bqual_length = MAXBQUALSIZE;
+        } else {
+            bqual = makeBqual(index);
+            bqual_length = bqual.length;
+        }
     }
 
     /**
@@ -430,9 +466,9 @@ public class XidImpl implements Xid, Serializable  {
         }
 
         formatId = passedXid.getFormatId();
-        gtrid = passedXid.getGlobalTransactionId();
+        gtrid = gtridOf(passedXid);
+        bqual = bqualOf(passedXid);
         gtrid_length = gtrid.length;
-        bqual = passedXid.getBranchQualifier();
         bqual_length = bqual.length;
     }
 
@@ -472,7 +508,108 @@ public class XidImpl implements Xid, Serializable  {
      * Get the Branch Qualifier for that Xid
      */
     public byte[] getBranchQualifier() {
-        return (byte[]) bqual.clone();
+        return (byte[]) bqual().clone();
+    }
+
+    /**
+     * Get the Global Transaction Id without copying it.
+     * The array must not be modified.
+     */
+    byte[] gtrid() {
+        return gtrid;
+    }
+
+    /**
+     * Get the Branch Qualifier without copying it.
+     * The array must not be modified.
+     */
+    byte[] bqual() {
+        byte[] b = bqual;
+        if (b == null) {
+            // shared bquals are safely published by the bquals array
+            b = branchQualifier(branch);
+            bqual = b;
+        }
+        return b;
+    }
+
+    /**
+     * The bqual is serialized, derived or not.
+     */
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        bqual();
+        out.defaultWriteObject();
+    }
+
+    /**
+     * Get the javax.transaction.xa.Xid of this Xid, built on first use
+     * and then reused.
+     */
+    JavaXidImpl javaXid() {
+        JavaXidImpl jx = javaXid;
+        if (jx == null) {
+            jx = new JavaXidImpl(this);
+            javaXid = jx;
+        }
+        return jx;
+    }
+
+    /**
+     * Get the Global Transaction Id of a Xid, without copying it when
+     * the Xid was built by JOTM. The array must not be modified.
+     */
+    static byte[] gtridOf(javax.transaction.xa.Xid xid) {
+        if (xid instanceof XidImpl) {
+            return ((XidImpl) xid).gtrid;
+        }
+        if (xid instanceof JavaXidImpl) {
+            return ((JavaXidImpl) xid).gtrid();
+        }
+        return xid.getGlobalTransactionId();
+    }
+
+    /**
+     * Get the Branch Qualifier of a Xid, without copying it when
+     * the Xid was built by JOTM. The array must not be modified.
+     */
+    static byte[] bqualOf(javax.transaction.xa.Xid xid) {
+        if (xid instanceof XidImpl) {
+            return ((XidImpl) xid).bqual();
+        }
+        if (xid instanceof JavaXidImpl) {
+            return ((JavaXidImpl) xid).bqual();
+        }
+        return xid.getBranchQualifier();
+    }
+
+    /**
+     * Write a Xid as raw bytes: format id, then gtrid and bqual,
+     * each one preceded by its length on one byte.
+     * @param out the output
+     * @param xid the Xid to write
+     */
+    public static void write(DataOutput out, javax.transaction.xa.Xid xid) throws IOException {
+        byte[] gt = gtridOf(xid);
+        byte[] bq = bqualOf(xid);
+        out.writeInt(xid.getFormatId());
+        out.writeByte(gt.length);
+        out.write(gt);
+        out.writeByte(bq.length);
+        out.write(bq);
+    }
+
+    /**
+     * Read a Xid written by write(DataOutput, Xid).
+     * @param in the input
+     * @return the Xid read
+     */
+    public static XidImpl read(DataInput in) throws IOException {
+        int fid = in.readInt();
+        byte[] gt = new byte[in.readUnsignedByte()];
+        in.readFully(gt);
+        byte[] bq = new byte[in.readUnsignedByte()];
+        in.readFully(bq);
+        return new XidImpl(fid, gt, bq);
     }
 
     // -------------------------------------------------------------------
@@ -525,7 +662,7 @@ public class XidImpl implements Xid, Serializable  {
         bqual_local = new byte[MAXBQUALSIZE];
         ByteBuffer bb = ByteBuffer.wrap(bqual_local);
 
-        if (bqual != null) {
+        if (bqual() != null) {
             System.arraycopy(bqual, 0, bqual_local, 0, bqual_length);
 
             for (int i=0; i < bqual_length; i++) {
@@ -583,28 +720,74 @@ public class XidImpl implements Xid, Serializable  {
      *  Items 1 thru 4 are used to determine if we (JOTM) generated this gtrid/bqual.
      */
 
-    private byte[] makeGtrid() {
-        makeGtridBase();
-        long uniqueTimeStamp;
+    private static byte[] makeGtrid() {
+        byte[] base = makeGtridBase();
+        byte[] g = new byte[base.length + 8];
+        System.arraycopy(base, 0, g, 0, base.length);
+        putLong(g, base.length, nextTimeStamp());
+        return g;
+    }
 
-        synchronized (getClass()) {
-            uniqueTimeStamp = System.currentTimeMillis() * 1024 + count;
-            count++;
+    /*
+     *  Unique timestamp, without lock: the current time in millis * 1024,
+     *  or the previous value + 1 when more than 1024 Xids are made in a millisecond.
+     */
+    private static long nextTimeStamp() {
+        for (;;) {
+            long last = lastTimeStamp.get();
+            long next = System.currentTimeMillis() * 1024;
+            if (next <= last) {
+                next = last + 1;
+            }
+            if (lastTimeStamp.compareAndSet(last, next)) {
+                return next;
+            }
         }
+    }
+
+    /*
+     *  bqual of the branch 'index': gtrid_base, a time stamp not used (0)
+     *  and the index, which makes the bqual unique.
+     */
+    private static byte[] branchQualifier(int index) {
+        if (index >= 0 && index < SHARED_BQUALS) {
+            byte[] b = bquals.get(index);
+            if (b == null) {
+                bquals.compareAndSet(index, null, makeBqual(index));
+                b = bquals.get(index);
+            }
+            return b;
+        }
+        return makeBqual(index);
+    }
+
+    private static byte[] makeBqual(int index) {
+        byte[] base = makeGtridBase();
+        byte[] b = new byte[MAXBQUALSIZE];
+        System.arraycopy(base, 0, b, 0, base.length);
+        putLong(b, base.length + 8, index);
+        return b;
+    }
 
-        ByteBuffer bb = ByteBuffer.allocate(gtrid_base.length+8);
-        bb.put(gtrid_base);
-        bb.putLong(uniqueTimeStamp);
-        return bb.array();
+    private static void putLong(byte[] b, int off, long value) {
+        for (int i = off + 7; i >= off; i--) {
+            b[i] = (byte) value;
+            value >>>= 8;
+        }
     }
 
-    private void makeGtridBase() {
+    private static byte[] makeGtridBase() {
+        byte[] base = gtrid_base;
+        if (base != null) {
+            return base;
+        }
+
         // acquire the configured uuid, host and server name.
         // fabricate a uuid if one does not yet exist.
         // and append a unique timestamp.
 
-        synchronized (getClass()) {
-            if (rand == null) {
+        synchronized (XidImpl.class) {
+            if (gtrid_base == null) {
                 rand = new SecureRandom();
 
                 if (uuidsRecovered == false) {    // first time or no journal
@@ -666,14 +849,17 @@ public class XidImpl implements Xid, Serializable  {
                 // make host & server names fixed length, as defined above
                 host = (host+"                ").substring(0,15);
                 server = (server+"               ").substring(0,14);
-                gtrid_base = new byte[1+8+8+16+15];
-                ByteBuffer	bb = ByteBuffer.wrap(gtrid_base);
-                bb.put(internalVersId);
+                base = new byte[1+8+8+16+15];
+                ByteBuffer	bb = ByteBuffer.wrap(base);
+                bb.put(INTERNAL_VERS_ID);
                 bb.putLong(uuid0);
                 bb.putLong(uuid1);
                 bb.put(host.getBytes());
                 bb.put(server.getBytes());
+                gtrid_base_hash = hash(0, base);
+                gtrid_base = base;
             }
+            return gtrid_base;
         }
     }
 
@@ -684,9 +870,7 @@ public class XidImpl implements Xid, Serializable  {
      *	@return true or false
      */
     public boolean isThisOneOfOurs(byte[] gtrid_or_bqual) {
-        if (rand == null) {
-            makeGtrid(); /* init gtrid_base if not yet done */
-        }
+        byte[] gtrid_base = makeGtridBase();
 
         boolean ret = false;
 
@@ -746,17 +930,43 @@ public class XidImpl implements Xid, Serializable  {
      * return true if objects are identical
      */
     public boolean equals(Object obj2) {
+        if (obj2 == this) {
+            return true;
+        }
         if ((obj2 == null) || (!(obj2 instanceof XidImpl))) {
             return false;
         }
         XidImpl xid2 = (XidImpl) obj2;
 
-        if (formatId == xid2.getFormatId()
-            && java.util.Arrays.equals(bqual, xid2.getBranchQualifier())
-            && java.util.Arrays.equals(gtrid, xid2.getGlobalTransactionId())) {
+        return formatId == xid2.formatId
+            && hashCode() == xid2.hashCode()
+            && sameBytes(gtrid, xid2.gtrid)
+            && sameBytes(bqual(), xid2.bqual());
+    }
+
+    /**
+     * Compare from the end: our gtrids and bquals share the gtrid_base prefix.
+     */
+    private static boolean sameBytes(byte[] a, byte[] b) {
+        if (a == b) {
             return true;
         }
-        return false;
+        if (a.length != b.length) {
+            return false;
+        }
+        for (int i = a.length - 1; i >= 0; i--) {
+            if (a[i] != b[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int hash(int hc, byte[] b) {
+        for (int i = 0; i < b.length; i++) {
+            hc = hc * 37 + b[i];
+        }
+        return hc;
     }
 
     /**
@@ -765,21 +975,13 @@ public class XidImpl implements Xid, Serializable  {
     @Override
         public int hashCode() {
 
-        int hc = 0;
-
-        if (hashcodevalid == false) {
-
-            for (int i = 0; i < gtrid.length; i++) {
-                hc = hc * 37 + gtrid[i];
-            }
-
-            for (int i = 0; i < bqual.length; i++ ) {
-                hc = hc * 37 + bqual[i];
-            }
+        // single read: 0 means not yet computed (a hash of 0 is only computed again)
+        int hc = myhashcode;
 
+        if (hc == 0) {
+            hc = hash(hash(0, gtrid), bqual());
             myhashcode = hc;
-            hashcodevalid = true;
         }
-        return myhashcode;
+        return hc;
     }
 }
@@ -0,0 +1,133 @@
+/*
+ * @(#) BeforeCompletionTest.java
+ *
+ * JOTM: Java Open Transaction Manager
+ *
+ *
+ * This module was originally developed by
+ *
+ *  - Bull S.A. as part of the JOnAS application server code released in
+ *    July 1999 (www.bull.com)
+ *
+ * --------------------------------------------------------------------------
+ *  The original code and portions created by Bull SA are
+ *  Copyright (c) 1999 BULL SA
+ *  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * -Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * -Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * --------------------------------------------------------------------------
+ * $Id$
+ * --------------------------------------------------------------------------
+ */
+package org.objectweb.jotm;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.transaction.Synchronization;
+import javax.transaction.xa.XAException;
+import javax.transaction.xa.XAResource;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * The synchronizations are called before the XAResources are ended,
+ * so that the work they do (a JMS session flushing its batched sends,
+ * for instance) is part of the transaction branch.
+ */
+public class BeforeCompletionTest {
+
+    private final List<String> events = new ArrayList<String>();
+
+    @BeforeClass
+    public static void init() {
+        if (Current.getCurrent() == null) {
+            new Current();
+        }
+    }
+
+    @Test
+    public void testOnePhaseCommit() throws Exception {
+        TransactionImpl tx = begin();
+        tx.commit();
+        assertEquals("[start, beforeCompletion, end, commit1, afterCompletion]", events.toString());
+    }
+
+    @Test
+    public void testPrepare() throws Exception {
+        TransactionImpl tx = begin();
+        assertEquals(Resource.VOTE_COMMIT, tx.prepare());
+        assertEquals("[start, beforeCompletion, end, prepare]", events.toString());
+    }
+
+    private TransactionImpl begin() throws Exception {
+        TransactionImpl tx = new TransactionImpl(new XidImpl(), 60);
+        tx.enlistResource(new Branch());
+        tx.registerSynchronization(new Synchronization() {
+            public void beforeCompletion() {
+                events.add("beforeCompletion");
+            }
+            public void afterCompletion(int status) {
+                events.add("afterCompletion");
+            }
+        });
+        return tx;
+    }
+
+    private class Branch implements XAResource {
+        public void commit(javax.transaction.xa.Xid xid, boolean onePhase) throws XAException {
+            events.add(onePhase ? "commit1" : "commit");
+        }
+        public void end(javax.transaction.xa.Xid xid, int flags) throws XAException {
+            events.add("end");
+        }
+        public void forget(javax.transaction.xa.Xid xid) throws XAException {
+        }
+        public int getTransactionTimeout() throws XAException {
+            return 0;
+        }
+        public boolean isSameRM(XAResource xares) throws XAException {
+            return xares == this;
+        }
+        public int prepare(javax.transaction.xa.Xid xid) throws XAException {
+            events.add("prepare");
+            return XA_OK;
+        }
+        public javax.transaction.xa.Xid[] recover(int flag) throws XAException {
+            return null;
+        }
+        public void rollback(javax.transaction.xa.Xid xid) throws XAException {
+            events.add("rollback");
+        }
+        public boolean setTransactionTimeout(int seconds) throws XAException {
+            return false;
+        }
+        public void start(javax.transaction.xa.Xid xid, int flags) throws XAException {
+            events.add("start");
+        }
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * @(#) GroupCommitBenchmark.java
+ *
+ * JOTM: Java Open Transaction Manager
+ *
+ *
+ * This module was originally developed by
+ *
+ *  - Bull S.A. as part of the JOnAS application server code released in
+ *    July 1999 (www.bull.com)
+ *
+ * --------------------------------------------------------------------------
+ *  The original code and portions created by Bull SA are
+ *  Copyright (c) 1999 BULL SA
+ *  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * -Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * -Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * --------------------------------------------------------------------------
+ * $Id$
+ * --------------------------------------------------------------------------
+ */
+package org.objectweb.jotm;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.StringTokenizer;
+
+import javax.transaction.xa.XAResource;
+
+import org.objectweb.howl.log.Configuration;
+import org.objectweb.howl.log.xa.XACommittingTx;
+import org.objectweb.howl.log.xa.XALogger;
+
+/**
+ * Throughput and latency of the group commit of the HOWL log, to choose
+ * jotm.recovery.GroupCommitWindow and jotm.recovery.GroupCommitSize for a disk.
+ * <pre>
+ * java org.objectweb.jotm.GroupCommitBenchmark logdir [threads] [tx/thread] [windows(us)] [size]
+ * </pre>
+ * A first run is done without grouping, then one run for each window of the
+ * comma separated list. Each transaction logs a commit record of 2 resources,
+ * as written by SubCoordinator, then a done record.
+ * This is a main() driver, not a unit test.
+ */
+public class GroupCommitBenchmark {
+
+    private static final byte[][] DONE = new byte[][] {"RR3JOTMDONE".getBytes()};
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("usage: GroupCommitBenchmark logdir [threads] [tx/thread] [windows(us)] [size]");
+            System.exit(1);
+        }
+        String dir = args[0];
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+        int count = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+        String windows = args.length > 3 ? args[3] : "0,500,1000,2000";
+        int size = args.length > 4 ? Integer.parseInt(args[4]) : 32;
+
+        new File(dir).mkdirs();
+        System.out.println("threads=" + threads + " tx/thread=" + count);
+        System.out.println("size  window(us)    tx/s  forces  tx/force  latency");
+
+        run(dir, threads, count, 0, 1);
+        StringTokenizer st = new StringTokenizer(windows, ",");
+        while (st.hasMoreTokens()) {
+            run(dir, threads, count, Integer.parseInt(st.nextToken().trim()), size);
+        }
+    }
+
+    private static void run(String dir, int threads, final int count, int window, int size) throws Exception {
+        Properties prop = new Properties();
+        prop.put("logFileDir", dir);
+        prop.put("logFileName", "bench");
+        prop.put("bufferSize", "4");
+        prop.put("minBuffers", "16");
+        prop.put("maxBuffers", "16");
+        prop.put("maxBlocksPerFile", "2000");
+        prop.put("maxLogFiles", "2");
+        XALogger xaLog = new XALogger(new Configuration(prop));
+        xaLog.open(null);
+
+        final GroupCommitLog<XACommittingTx> log = GroupCommitLog.howl(xaLog, window, size);
+        final LatencyHistogram latency = new LatencyHistogram("commit");
+        final Exception[] failure = new Exception[1];
+
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int id = t;
+            workers[t] = new Thread() {
+                public void run() {
+                    try {
+                        for (int i = 0; i < count; i++) {
+                            byte[][] record = new byte[][] {record(id, i)};
+                            long start = System.nanoTime();
+                            XACommittingTx tx = log.putCommit(record);
+                            latency.recordSince(start);
+                            log.putDone(DONE, tx);
+                        }
+                    } catch (Exception e) {
+                        failure[0] = e;
+                    }
+                }
+            };
+        }
+
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            workers[t].start();
+        }
+        for (int t = 0; t < threads; t++) {
+            workers[t].join();
+        }
+        long elapsed = System.nanoTime() - start;
+
+        log.close();
+        xaLog.close();
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+
+        long txs = log.getRecordCount();
+        long forces = log.getForceCount();
+        System.out.println(pad(size, 4) + pad(window, 12) + pad(txs * 1000000000L / elapsed, 8) + pad(forces, 8)
+                           + "  " + (forces == 0 ? 0 : txs * 100 / forces / 100.0)
+                           + "  " + latency.snapshot());
+    }
+
+    /**
+     * The commit record of a transaction with 2 resources
+     */
+    private static byte[] record(int thread, int tx) {
+        byte[] gtrid = new byte[32];
+        gtrid[0] = (byte) thread;
+        gtrid[1] = (byte) (tx >> 8);
+        gtrid[2] = (byte) tx;
+        byte[] bqual = new byte[8];
+        List<XAResource> resources = new ArrayList<XAResource>();
+        List<byte[]> resnames = new ArrayList<byte[]>();
+        List<Xid> xids = new ArrayList<Xid>();
+        int[] status = new int[2];
+        for (int r = 1; r <= 2; r++) {
+            byte[] branch = new byte[12];
+            branch[11] = (byte) r;
+            resources.add(new MockXAResource());
+            resnames.add(("jdbc/resource" + r).getBytes());
+            xids.add(new XidImpl(0xBB14, gtrid, branch));
+            status[r - 1] = javax.transaction.Status.STATUS_PREPARED;
+        }
+        return RecoveryRecord.encode(new XidImpl(0xBB14, gtrid, bqual), System.currentTimeMillis(),
+                                     resources, resnames, xids, status);
+    }
+
+    private static String pad(long value, int width) {
+        StringBuffer sb = new StringBuffer(Long.toString(value));
+        while (sb.length() < width) {
+            sb.insert(0, ' ');
+        }
+        return sb.toString();
+    }
+}
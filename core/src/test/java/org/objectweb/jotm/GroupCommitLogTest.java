@@ -0,0 +1,202 @@
+/*
+ * @(#) GroupCommitLogTest.java
+ *
+ * JOTM: Java Open Transaction Manager
+ *
+ *
+ * This module was originally developed by
+ *
+ *  - Bull S.A. as part of the JOnAS application server code released in
+ *    July 1999 (www.bull.com)
+ *
+ * --------------------------------------------------------------------------
+ *  The original code and portions created by Bull SA are
+ *  Copyright (c) 1999 BULL SA
+ *  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * -Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * -Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * --------------------------------------------------------------------------
+ * $Id$
+ * --------------------------------------------------------------------------
+ */
+package org.objectweb.jotm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+/**
+ * Grouping of the commit records and counting of their done records.
+ */
+public class GroupCommitLogTest {
+
+    private static final byte[][] DONE = new byte[][] {"RR3JOTMDONE".getBytes()};
+
+    @Test
+    public void testDirectWrite() throws Exception {
+        RecordingLog log = new RecordingLog(null);
+        GroupCommitLog<Object> group = new GroupCommitLog<Object>(log, 0, 1);
+        Object tx = group.putCommit(record(1));
+        assertEquals(1, log.commits.size());
+        group.putDone(DONE, tx);
+        assertEquals(1, log.dones.size());
+        assertSame(tx, log.dones.get(0));
+        group.close();
+    }
+
+    @Test
+    public void testBatch() throws Exception {
+        // the first commit blocks in the log until the others are queued
+        CountDownLatch release = new CountDownLatch(1);
+        RecordingLog log = new RecordingLog(release);
+        final GroupCommitLog<Object> group = new GroupCommitLog<Object>(log, 0, 8);
+        final int count = 5;
+        final Object[] txs = new Object[count];
+        Thread[] threads = new Thread[count];
+        for (int i = 0; i < count; i++) {
+            final int n = i;
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        txs[n] = group.putCommit(record(n));
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            };
+            threads[i].start();
+            if (i == 0) {
+                log.awaitFirstCommit();
+            }
+        }
+        while (queued(group) < count - 1) {
+            Thread.sleep(1);
+        }
+        release.countDown();
+        for (int i = 0; i < count; i++) {
+            threads[i].join();
+        }
+
+        // one record for the first transaction, one for the others
+        assertEquals(2, log.commits.size());
+        assertEquals(1, log.commits.get(0).length);
+        assertEquals(count - 1, log.commits.get(1).length);
+        assertEquals(2, group.getForceCount());
+        assertEquals(count, group.getRecordCount());
+        for (int i = 2; i < count; i++) {
+            assertSame(txs[1], txs[i]);
+        }
+
+        // the done record of the batch is written by its last transaction
+        group.putDone(DONE, txs[0]);
+        assertEquals(1, log.dones.size());
+        for (int i = 1; i < count; i++) {
+            assertEquals(1, log.dones.size());
+            group.putDone(DONE, txs[i]);
+        }
+        assertEquals(2, log.dones.size());
+        assertSame(txs[1], log.dones.get(1));
+        group.close();
+    }
+
+    @Test
+    public void testReplayedBatch() throws Exception {
+        RecordingLog log = new RecordingLog(null);
+        GroupCommitLog<Object> group = new GroupCommitLog<Object>(log, 0, 1);
+        Object replayed = new Object();
+        Object single = new Object();
+        group.expectDone(replayed, 3);
+        group.expectDone(single, 1);
+
+        group.putDone(DONE, single);
+        assertEquals(1, log.dones.size());
+
+        group.putDone(DONE, replayed);
+        group.putDone(DONE, replayed);
+        assertEquals(1, log.dones.size());
+        group.putDone(DONE, replayed);
+        assertEquals(2, log.dones.size());
+        assertSame(replayed, log.dones.get(1));
+        group.close();
+    }
+
+    @Test(expected = org.objectweb.howl.log.LogException.class)
+    public void testClosed() throws Exception {
+        GroupCommitLog<Object> group = new GroupCommitLog<Object>(new RecordingLog(null), 0, 8);
+        group.close();
+        group.putCommit(record(0));
+    }
+
+    private static int queued(GroupCommitLog<Object> group) throws Exception {
+        java.lang.reflect.Field f = GroupCommitLog.class.getDeclaredField("queue");
+        f.setAccessible(true);
+        List<?> queue = (List<?>) f.get(group);
+        synchronized (queue) {
+            return queue.size();
+        }
+    }
+
+    private static byte[][] record(int n) {
+        return new byte[][] {("RC1" + n).getBytes()};
+    }
+
+    /**
+     * Log keeping the records written
+     */
+    private static class RecordingLog implements GroupCommitLog.Log<Object> {
+
+        final List<byte[][]> commits = new ArrayList<byte[][]>();
+        final List<Object> dones = new ArrayList<Object>();
+        private final CountDownLatch release;
+        private final CountDownLatch first = new CountDownLatch(1);
+
+        RecordingLog(CountDownLatch release) {
+            this.release = release;
+        }
+
+        void awaitFirstCommit() throws InterruptedException {
+            first.await();
+        }
+
+        public Object putCommit(byte[][] record) throws InterruptedException {
+            synchronized (this) {
+                commits.add(record);
+            }
+            first.countDown();
+            if (release != null) {
+                release.await();
+            }
+            return new Object();
+        }
+
+        public synchronized void putDone(byte[][] record, Object tx) {
+            dones.add(tx);
+        }
+    }
+}
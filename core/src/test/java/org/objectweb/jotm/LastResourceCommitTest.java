@@ -0,0 +1,152 @@
+/*
+ * @(#) LastResourceCommitTest.java
+ *
+ * JOTM: Java Open Transaction Manager
+ *
+ *
+ * This module was originally developed by
+ *
+ *  - Bull S.A. as part of the JOnAS application server code released in
+ *    July 1999 (www.bull.com)
+ *
+ * --------------------------------------------------------------------------
+ *  The original code and portions created by Bull SA are
+ *  Copyright (c) 1999 BULL SA
+ *  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * -Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * -Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * --------------------------------------------------------------------------
+ * $Id$
+ * --------------------------------------------------------------------------
+ */
+package org.objectweb.jotm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import javax.transaction.HeuristicMixedException;
+import javax.transaction.RollbackException;
+import javax.transaction.xa.XAException;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Outcome of the other resources after the one phase commit of the last
+ * resource.
+ */
+public class LastResourceCommitTest {
+
+    @BeforeClass
+    public static void init() {
+        if (Current.getCurrent() == null) {
+            new Current();
+        }
+    }
+
+    @Test
+    public void testCommit() throws Exception {
+        MockXAResource other = new MockXAResource();
+        MockLastResource last = new MockLastResource();
+        begin(other, last).commit();
+        assertEquals("[start, end, prepare, commit]", other.getCalls().toString());
+        assertEquals("[start, end, commit1p]", last.getCalls().toString());
+    }
+
+    @Test
+    public void testRollback() throws Exception {
+        checkRolledBack(XAException.XA_RBROLLBACK);
+        checkRolledBack(XAException.XA_RBTIMEOUT);
+        checkRolledBack(XAException.XA_HEURRB);
+    }
+
+    @Test
+    public void testUnknownOutcome() throws Exception {
+        checkInDoubt(XAException.XAER_RMFAIL);
+        checkInDoubt(XAException.XAER_RMERR);
+        checkInDoubt(XAException.XA_HEURHAZ);
+    }
+
+    @Test
+    public void testHeuristicCommit() throws Exception {
+        MockXAResource other = new MockXAResource();
+        MockLastResource last = new MockLastResource();
+        last.commitError = MockXAResource.error(XAException.XA_HEURCOM);
+        begin(other, last).commit();
+        assertEquals("[start, end, prepare, commit]", other.getCalls().toString());
+    }
+
+    @Test
+    public void testOtherCommitFails() throws Exception {
+        MockXAResource other = new MockXAResource();
+        MockLastResource last = new MockLastResource();
+        other.commitError = MockXAResource.error(XAException.XAER_RMFAIL);
+        try {
+            begin(other, last).commit();
+            fail("the outcome should be mixed");
+        } catch (HeuristicMixedException e) {
+            // expected
+        }
+        assertEquals("[start, end, prepare, commit]", other.getCalls().toString());
+    }
+
+    private void checkRolledBack(int error) throws Exception {
+        MockXAResource other = new MockXAResource();
+        MockLastResource last = new MockLastResource();
+        last.commitError = MockXAResource.error(error);
+        try {
+            begin(other, last).commit();
+            fail("the transaction should roll back");
+        } catch (RollbackException e) {
+            // expected
+        }
+        assertEquals("[start, end, prepare, rollback]", other.getCalls().toString());
+        assertEquals("[start, end, commit1p]", last.getCalls().toString());
+    }
+
+    private void checkInDoubt(int error) throws Exception {
+        MockXAResource other = new MockXAResource();
+        MockLastResource last = new MockLastResource();
+        last.commitError = MockXAResource.error(error);
+        try {
+            begin(other, last).commit();
+            fail("the outcome should be a heuristic hazard");
+        } catch (HeuristicMixedException e) {
+            // expected
+        }
+        // left prepared, to the recovery
+        assertEquals("[start, end, prepare]", other.getCalls().toString());
+        assertEquals("[start, end, commit1p]", last.getCalls().toString());
+    }
+
+    private static TransactionImpl begin(MockXAResource other, MockLastResource last) throws Exception {
+        TransactionImpl tx = new TransactionImpl(new XidImpl(), 60);
+        tx.enlistResource(other);
+        tx.enlistResource(last);
+        return tx;
+    }
+
+    private static class MockLastResource extends MockXAResource implements LastResource {
+    }
+}
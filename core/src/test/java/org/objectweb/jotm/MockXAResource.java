@@ -0,0 +1,159 @@
+/*
+ * @(#) MockXAResource.java
+ *
+ * JOTM: Java Open Transaction Manager
+ *
+ *
+ * This module was originally developed by
+ *
+ *  - Bull S.A. as part of the JOnAS application server code released in
+ *    July 1999 (www.bull.com)
+ *
+ * --------------------------------------------------------------------------
+ *  The original code and portions created by Bull SA are
+ *  Copyright (c) 1999 BULL SA
+ *  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * -Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * -Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * --------------------------------------------------------------------------
+ * $Id$
+ * --------------------------------------------------------------------------
+ */
+package org.objectweb.jotm;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import javax.transaction.xa.XAException;
+import javax.transaction.xa.XAResource;
+
+/**
+ * XAResource of the tests: records the calls it gets, and fails or blocks
+ * the ones it is told to.
+ */
+public class MockXAResource implements XAResource {
+
+    /**
+     * calls received, as "prepare", "commit", "commit1p", "rollback", ...
+     */
+    private final List<String> calls = new ArrayList<String>();
+
+    /**
+     * vote returned by prepare
+     */
+    int vote = XA_OK;
+
+    /**
+     * errors thrown by prepare, commit and rollback, null for none
+     */
+    XAException prepareError;
+    XAException commitError;
+    XAException rollbackError;
+
+    /**
+     * if not null, prepare waits until it is released
+     */
+    CountDownLatch prepareLatch;
+
+    /**
+     * Xids returned by recover
+     */
+    javax.transaction.xa.Xid[] recovered = new javax.transaction.xa.Xid[0];
+
+    static XAException error(int code) {
+        return new XAException(code);
+    }
+
+    synchronized List<String> getCalls() {
+        return new ArrayList<String>(calls);
+    }
+
+    synchronized boolean called(String call) {
+        return calls.contains(call);
+    }
+
+    private synchronized void call(String call) {
+        calls.add(call);
+    }
+
+    public void commit(javax.transaction.xa.Xid xid, boolean onePhase) throws XAException {
+        call(onePhase ? "commit1p" : "commit");
+        if (commitError != null) {
+            throw commitError;
+        }
+    }
+
+    public void end(javax.transaction.xa.Xid xid, int flags) throws XAException {
+        call("end");
+    }
+
+    public void forget(javax.transaction.xa.Xid xid) throws XAException {
+        call("forget");
+    }
+
+    public int getTransactionTimeout() throws XAException {
+        return 0;
+    }
+
+    public boolean isSameRM(XAResource xares) throws XAException {
+        return xares == this;
+    }
+
+    public int prepare(javax.transaction.xa.Xid xid) throws XAException {
+        call("prepare");
+        if (prepareLatch != null) {
+            try {
+                prepareLatch.await();
+            } catch (InterruptedException e) {
+                // a timed out XA call is not stopped by an interrupt
+            }
+            call("prepared");
+        }
+        if (prepareError != null) {
+            throw prepareError;
+        }
+        return vote;
+    }
+
+    public javax.transaction.xa.Xid[] recover(int flag) throws XAException {
+        call("recover");
+        return flag == TMSTARTRSCAN ? recovered : new javax.transaction.xa.Xid[0];
+    }
+
+    public void rollback(javax.transaction.xa.Xid xid) throws XAException {
+        call("rollback");
+        if (rollbackError != null) {
+            throw rollbackError;
+        }
+    }
+
+    public boolean setTransactionTimeout(int seconds) throws XAException {
+        return false;
+    }
+
+    public void start(javax.transaction.xa.Xid xid, int flags) throws XAException {
+        call("start");
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * @(#) RecoveryRecordTest.java
+ *
+ * JOTM: Java Open Transaction Manager
+ *
+ *
+ * This module was originally developed by
+ *
+ *  - Bull S.A. as part of the JOnAS application server code released in
+ *    July 1999 (www.bull.com)
+ *
+ * --------------------------------------------------------------------------
+ *  The original code and portions created by Bull SA are
+ *  Copyright (c) 1999 BULL SA
+ *  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * -Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * -Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * --------------------------------------------------------------------------
+ * $Id$
+ * --------------------------------------------------------------------------
+ */
+package org.objectweb.jotm;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.transaction.xa.XAException;
+import javax.transaction.xa.XAResource;
+
+import org.junit.Test;
+
+/**
+ * Round trip of the compact recovery record codec.
+ */
+public class RecoveryRecordTest {
+
+    @Test
+    public void testVarint() {
+        int [] values = {0, 1, 127, 128, 16383, 16384, 2097151, 2097152, Integer.MAX_VALUE, -1};
+        ByteBuffer bb = ByteBuffer.allocate(5 * values.length);
+        for (int value : values) {
+            RecoveryRecord.putVarint(bb, value);
+        }
+        bb.flip();
+        for (int value : values) {
+            assertEquals(value, RecoveryRecord.getVarint(bb));
+        }
+        assertEquals(0, bb.remaining());
+    }
+
+    @Test
+    public void testRecord() {
+        byte [] gtrid = {1, 2, 3, 4, 5, 6, 7, 8};
+        Xid txxid = new XidImpl(0xBB14, gtrid, new byte[] {9, 9});
+
+        List<XAResource> resources = new ArrayList<XAResource>();
+        List<byte []> resnames = new ArrayList<byte []>();
+        List<Xid> xids = new ArrayList<Xid>();
+        resources.add(new ResourceA());
+        resnames.add("rm1".getBytes());
+        xids.add(new XidImpl(0xBB14, gtrid, new byte[] {9, 9, 0, 1}));
+        resources.add(new ResourceB());
+        resnames.add("rm2".getBytes());
+        xids.add(new XidImpl(0xBB14, gtrid, new byte[] {9, 9, 0, 2}));
+        resources.add(new ResourceA());
+        resnames.add(new byte[0]);
+        xids.add(new XidImpl(0x1234, new byte[] {7, 7}, new byte[] {1}));
+        int [] status = {1, 2, 3};
+
+        byte [] record = RecoveryRecord.encode(txxid, 42L, resources, resnames, xids, status);
+        ByteBuffer bb = ByteBuffer.wrap(record);
+        byte [] type = new byte[3];
+        bb.get(type);
+        assertArrayEquals(RecoveryRecord.RC1, type);
+
+        RecoveryRecord.Tx tx = RecoveryRecord.decode(RecoveryRecord.VERSION, bb);
+        assertEquals(0, bb.remaining());
+        assertEquals(42L, tx.txDate);
+        assertEquals(0xBB14, tx.formatId);
+        assertArrayEquals(gtrid, tx.gtrid);
+        assertArrayEquals(new byte[] {9, 9}, tx.bqual);
+        assertEquals(3, tx.branches.size());
+        for (int i = 0; i < 3; i++) {
+            RecoveryRecord.Branch br = tx.branches.get(i);
+            Xid xid = xids.get(i);
+            assertEquals(resources.get(i).getClass().getName(), br.className);
+            assertArrayEquals(resnames.get(i), br.resName);
+            assertEquals(xid.getFormatId(), br.formatId);
+            assertArrayEquals(xid.getGlobalTransactionId(), br.gtrid);
+            assertArrayEquals(xid.getBranchQualifier(), br.bqual);
+            assertEquals(status[i], br.status);
+        }
+    }
+
+    @Test
+    public void testLargeRecord() {
+        byte [] gtrid = {1, 2, 3, 4};
+        Xid txxid = new XidImpl(0xBB14, gtrid, new byte[] {9});
+        List<XAResource> resources = new ArrayList<XAResource>();
+        List<byte []> resnames = new ArrayList<byte []>();
+        List<Xid> xids = new ArrayList<Xid>();
+        resources.add(new ResourceA());
+        resnames.add(new byte[2 * RecoveryRecord.MAX_CACHED_BUFFER]);
+        xids.add(new XidImpl(0xBB14, gtrid, new byte[] {9, 1}));
+
+        // a record larger than the cached buffer, then a small one
+        for (int n = 0; n < 2; n++) {
+            byte [] record = RecoveryRecord.encode(txxid, 1L, resources, resnames, xids, new int[] {1});
+            ByteBuffer bb = ByteBuffer.wrap(record, 3, record.length - 3);
+            RecoveryRecord.Tx tx = RecoveryRecord.decode(RecoveryRecord.VERSION, bb);
+            assertEquals(0, bb.remaining());
+            assertArrayEquals(resnames.get(0), tx.branches.get(0).resName);
+            resnames.set(0, "rm1".getBytes());
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownVersion() {
+        RecoveryRecord.decode(RecoveryRecord.VERSION + 1, ByteBuffer.allocate(64));
+    }
+
+    private static class ResourceA implements XAResource {
+        public void commit(javax.transaction.xa.Xid xid, boolean onePhase) throws XAException {
+        }
+        public void end(javax.transaction.xa.Xid xid, int flags) throws XAException {
+        }
+        public void forget(javax.transaction.xa.Xid xid) throws XAException {
+        }
+        public int getTransactionTimeout() throws XAException {
+            return 0;
+        }
+        public boolean isSameRM(XAResource xares) throws XAException {
+            return xares == this;
+        }
+        public int prepare(javax.transaction.xa.Xid xid) throws XAException {
+            return XA_OK;
+        }
+        public javax.transaction.xa.Xid[] recover(int flag) throws XAException {
+            return null;
+        }
+        public void rollback(javax.transaction.xa.Xid xid) throws XAException {
+        }
+        public boolean setTransactionTimeout(int seconds) throws XAException {
+            return false;
+        }
+        public void start(javax.transaction.xa.Xid xid, int flags) throws XAException {
+        }
+    }
+
+    private static class ResourceB extends ResourceA {
+    }
+}
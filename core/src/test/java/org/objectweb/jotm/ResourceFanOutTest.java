@@ -0,0 +1,157 @@
+/*
+ * @(#) ResourceFanOutTest.java
+ *
+ * JOTM: Java Open Transaction Manager
+ *
+ *
+ * This module was originally developed by
+ *
+ *  - Bull S.A. as part of the JOnAS application server code released in
+ *    July 1999 (www.bull.com)
+ *
+ * --------------------------------------------------------------------------
+ *  The original code and portions created by Bull SA are
+ *  Copyright (c) 1999 BULL SA
+ *  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * -Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * -Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * --------------------------------------------------------------------------
+ * $Id$
+ * --------------------------------------------------------------------------
+ */
+package org.objectweb.jotm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CountDownLatch;
+
+import javax.transaction.HeuristicMixedException;
+import javax.transaction.RollbackException;
+import javax.transaction.xa.XAException;
+import javax.transaction.xa.XAResource;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Parallel prepare and commit, when a resource does not reply in time.
+ */
+public class ResourceFanOutTest {
+
+    @BeforeClass
+    public static void init() {
+        if (Current.getCurrent() == null) {
+            new Current();
+        }
+    }
+
+    @Test
+    public void testPrepareTimeout() throws Exception {
+        MockXAResource fast = new MockXAResource();
+        MockXAResource slow = new MockXAResource();
+        slow.prepareLatch = new CountDownLatch(1);
+
+        startFanOut(200);
+        try {
+            TransactionImpl tx = begin(fast, slow);
+            try {
+                tx.commit();
+                fail("the transaction should roll back");
+            } catch (RollbackException e) {
+                // expected
+            }
+            assertTrue(fast.called("rollback"));
+            // the prepare of the slow resource is still running
+            assertFalse(slow.called("rollback"));
+
+            slow.prepareLatch.countDown();
+            long deadline = System.currentTimeMillis() + 5000;
+            while (!slow.called("rollback") && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals("[start, end, prepare, prepared, rollback]", slow.getCalls().toString());
+        } finally {
+            stopFanOut();
+        }
+    }
+
+    @Test
+    public void testCommitFailure() throws Exception {
+        MockXAResource ok = new MockXAResource();
+        MockXAResource failed = new MockXAResource();
+        failed.commitError = MockXAResource.error(XAException.XAER_RMFAIL);
+        startFanOut(200);
+        try {
+            TransactionImpl tx = begin(ok, failed);
+            try {
+                tx.commit();
+                fail("the outcome should be mixed");
+            } catch (HeuristicMixedException e) {
+                // expected
+            }
+            assertTrue(ok.called("commit"));
+            assertFalse(failed.called("rollback"));
+        } finally {
+            stopFanOut();
+        }
+    }
+
+    @Test(expected = HeuristicMixedException.class)
+    public void testNoCommit() throws Exception {
+        MockXAResource first = new MockXAResource();
+        MockXAResource second = new MockXAResource();
+        first.commitError = MockXAResource.error(XAException.XAER_RMERR);
+        second.commitError = MockXAResource.error(XAException.XAER_RMFAIL);
+        startFanOut(200);
+        try {
+            begin(first, second).commit();
+        } finally {
+            stopFanOut();
+        }
+    }
+
+    private static TransactionImpl begin(XAResource... resources) throws Exception {
+        TransactionImpl tx = new TransactionImpl(new XidImpl(), 60);
+        for (XAResource res : resources) {
+            tx.enlistResource(res);
+        }
+        return tx;
+    }
+
+    private static void startFanOut(int timeout) {
+        System.setProperty("jotm.twopc.ParallelThreads", "4");
+        System.setProperty("jotm.twopc.ResourceTimeout", Integer.toString(timeout));
+        ResourceFanOut.stop();
+        ResourceFanOut.getInstance();
+    }
+
+    private static void stopFanOut() {
+        System.getProperties().remove("jotm.twopc.ParallelThreads");
+        System.getProperties().remove("jotm.twopc.ResourceTimeout");
+        ResourceFanOut.stop();
+    }
+}
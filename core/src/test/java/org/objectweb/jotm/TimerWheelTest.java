@@ -0,0 +1,166 @@
+/*
+ * @(#) TimerWheelTest.java
+ *
+ * JOTM: Java Open Transaction Manager
+ *
+ *
+ * This module was originally developed by
+ *
+ *  - Bull S.A. as part of the JOnAS application server code released in
+ *    July 1999 (www.bull.com)
+ *
+ * --------------------------------------------------------------------------
+ *  The original code and portions created by Bull SA are
+ *  Copyright (c) 1999 BULL SA
+ *  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * -Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * -Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * --------------------------------------------------------------------------
+ * $Id$
+ * --------------------------------------------------------------------------
+ */
+package org.objectweb.jotm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Expiry of the timers of the timing wheel, tick by tick.
+ */
+public class TimerWheelTest {
+
+    private static final long RESOLUTION = 10;
+
+    /**
+     * @return a wheel whose tick <code>tick</code> is the deadline of te
+     */
+    private static TimerWheel wheelExpiring(TimerEvent te, long tick) {
+        return new TimerWheel(RESOLUTION, te.getDeadline() - tick * RESOLUTION);
+    }
+
+    private static TimerEvent timer() {
+        return new TimerEvent(null, 1000, null, false, null);
+    }
+
+    /**
+     * Check that te expires exactly at the given tick.
+     */
+    private static void checkExpiry(long tick) {
+        TimerEvent te = timer();
+        TimerWheel wheel = wheelExpiring(te, tick);
+        long origin = te.getDeadline() - tick * RESOLUTION;
+        List<TimerEvent> expired = new ArrayList<TimerEvent>();
+        wheel.insert(te);
+
+        wheel.advance(origin + (tick - 1) * RESOLUTION, expired);
+        assertTrue("expired before tick " + tick, expired.isEmpty());
+        assertEquals(1, wheel.size());
+
+        wheel.advance(origin + tick * RESOLUTION, expired);
+        assertEquals("expiry at tick " + tick, 1, expired.size());
+        assertSame(te, expired.get(0));
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void testExpiryInFirstLevel() {
+        checkExpiry(1);
+        checkExpiry(TimerWheel.SLOTS - 1);
+    }
+
+    @Test
+    public void testExpiryAtLevelBoundaries() {
+        long ticks = 1;
+        for (int level = 1; level < TimerWheel.LEVELS; level++) {
+            ticks *= TimerWheel.SLOTS;
+            checkExpiry(ticks - 1);
+            checkExpiry(ticks);
+            checkExpiry(ticks + 1);
+            checkExpiry(2 * ticks);
+        }
+    }
+
+    @Test
+    public void testCancel() {
+        TimerEvent te = timer();
+        TimerWheel wheel = wheelExpiring(te, TimerWheel.SLOTS);
+        List<TimerEvent> expired = new ArrayList<TimerEvent>();
+        wheel.insert(te);
+        wheel.remove(te);
+        assertEquals(0, wheel.size());
+        wheel.advance(te.getDeadline() + 10 * RESOLUTION, expired);
+        assertTrue(expired.isEmpty());
+
+        // removing twice does nothing
+        wheel.remove(te);
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void testRearm() {
+        TimerEvent te = timer();
+        TimerWheel wheel = wheelExpiring(te, 3);
+        long origin = te.getDeadline() - 3 * RESOLUTION;
+        List<TimerEvent> expired = new ArrayList<TimerEvent>();
+        wheel.insert(te);
+        wheel.advance(origin + 3 * RESOLUTION, expired);
+        assertEquals(1, expired.size());
+        expired.clear();
+
+        // a permanent timer is armed again by the clock thread
+        te.rearm();
+        wheel.insert(te);
+        long tick = (te.getDeadline() - origin + RESOLUTION - 1) / RESOLUTION;
+        // a deadline already reached fires at the next tick
+        tick = Math.max(tick, 3 + 1);
+        wheel.advance(origin + (tick - 1) * RESOLUTION, expired);
+        assertTrue(expired.isEmpty());
+        wheel.advance(origin + tick * RESOLUTION, expired);
+        assertEquals(1, expired.size());
+        assertSame(te, expired.get(0));
+    }
+
+    @Test
+    public void testIdleTicks() {
+        TimerEvent te = timer();
+        TimerWheel wheel = new TimerWheel(RESOLUTION, te.getDeadline());
+        List<TimerEvent> expired = new ArrayList<TimerEvent>();
+
+        // an empty wheel skips the elapsed ticks at once
+        long later = te.getDeadline() + 1000000 * RESOLUTION;
+        wheel.advance(later, expired);
+        assertEquals(later + RESOLUTION, wheel.nextTickDate());
+
+        // a timer already expired fires at the next tick
+        wheel.insert(te);
+        wheel.advance(later + RESOLUTION, expired);
+        assertEquals(1, expired.size());
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * @(#) XidBenchmark.java
+ *
+ * JOTM: Java Open Transaction Manager
+ *
+ *
+ * This module was originally developed by
+ *
+ *  - Bull S.A. as part of the JOnAS application server code released in
+ *    July 1999 (www.bull.com)
+ *
+ * --------------------------------------------------------------------------
+ *  The original code and portions created by Bull SA are
+ *  Copyright (c) 1999 BULL SA
+ *  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * -Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * -Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * --------------------------------------------------------------------------
+ * $Id$
+ * --------------------------------------------------------------------------
+ */
+package org.objectweb.jotm;
+
+import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Throughput of the creation of Xids and of their lookup in a map,
+ * as done by the TransactionManager for each transaction.
+ * <pre>
+ * java org.objectweb.jotm.XidBenchmark [threads] [xid/thread]
+ * </pre>
+ * threads is a comma separated list: one run is done for each count.
+ * This is a main() driver, not a unit test.
+ */
+public class XidBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        String threads = args.length > 0 ? args[0] : "1,2,4,8,16,32,64";
+        int count = args.length > 1 ? Integer.parseInt(args[1]) : 200000;
+
+        // warm up
+        run(4, count / 4);
+
+        System.out.println("xid/thread=" + count);
+        System.out.println("threads   new/s   lookup/s");
+
+        StringTokenizer st = new StringTokenizer(threads, ",");
+        while (st.hasMoreTokens()) {
+            int t = Integer.parseInt(st.nextToken().trim());
+            long[] rates = run(t, count);
+            System.out.println(pad(t, 7) + pad(rates[0], 10) + pad(rates[1], 11));
+        }
+    }
+
+    private static long[] run(int threads, final int count) throws Exception {
+        final XidImpl[][] xids = new XidImpl[threads][count];
+        final ConcurrentHashMap<XidImpl, Object> map = new ConcurrentHashMap<XidImpl, Object>();
+
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final XidImpl[] mine = xids[t];
+            workers[t] = new Thread() {
+                public void run() {
+                    for (int i = 0; i < count; i++) {
+                        mine[i] = new XidImpl();
+                    }
+                }
+            };
+        }
+        long created = time(workers);
+
+        for (int t = 0; t < threads; t++) {
+            for (int i = 0; i < count; i++) {
+                map.put(xids[t][i], Boolean.TRUE);
+            }
+        }
+
+        final int[] misses = new int[1];
+        for (int t = 0; t < threads; t++) {
+            final XidImpl[] mine = xids[t];
+            workers[t] = new Thread() {
+                public void run() {
+                    int missed = 0;
+                    for (int i = 0; i < count; i++) {
+                        // an equal copy, as received from a resource or a remote coordinator
+                        XidImpl copy = new XidImpl(mine[i].getFormatId(), mine[i].gtrid(), mine[i].bqual());
+                        if (map.get(copy) == null) {
+                            missed++;
+                        }
+                    }
+                    synchronized (misses) {
+                        misses[0] += missed;
+                    }
+                }
+            };
+        }
+        long looked = time(workers);
+
+        if (map.size() != threads * count || misses[0] != 0) {
+            throw new IllegalStateException("duplicate or missing Xids: size=" + map.size() + " misses=" + misses[0]);
+        }
+
+        long total = (long) threads * count;
+        return new long[] {total * 1000000000L / created, total * 1000000000L / looked};
+    }
+
+    private static long time(Thread[] workers) throws InterruptedException {
+        long start = System.nanoTime();
+        for (int t = 0; t < workers.length; t++) {
+            workers[t].start();
+        }
+        for (int t = 0; t < workers.length; t++) {
+            workers[t].join();
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static String pad(long value, int width) {
+        StringBuffer sb = new StringBuffer(Long.toString(value));
+        while (sb.length() < width) {
+            sb.insert(0, ' ');
+        }
+        return sb.toString();
+    }
+}
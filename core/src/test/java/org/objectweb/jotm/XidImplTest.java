@@ -0,0 +1,151 @@
+/*
+ * @(#) XidImplTest.java
+ *
+ * JOTM: Java Open Transaction Manager
+ *
+ *
+ * This module was originally developed by
+ *
+ *  - Bull S.A. as part of the JOnAS application server code released in
+ *    July 1999 (www.bull.com)
+ *
+ * --------------------------------------------------------------------------
+ *  The original code and portions created by Bull SA are
+ *  Copyright (c) 1999 BULL SA
+ *  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * -Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * -Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * --------------------------------------------------------------------------
+ * $Id$
+ * --------------------------------------------------------------------------
+ */
+package org.objectweb.jotm;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+import org.junit.Test;
+
+/**
+ * Branch Xids derived from the Xid of their transaction.
+ */
+public class XidImplTest {
+
+    // Serialized with the classes of the former versions: a transaction Xid
+    // (bb14, gtrid 0102030405060708, bqual 0909) and the JavaXidImpl of
+    // its branch 1.
+    private static final String FORMER_XID =
+        "aced00057372001a6f72672e6f626a6563747765622e6a6f746d2e586964496d"
+        + "706cb66238f2be9385cd02000a49000c627175616c5f6c656e67746849000866"
+        + "6f726d6174496449000c67747269645f6c656e6774685a000d68617368636f64"
+        + "6576616c696442000e696e7465726e616c56657273496449000a6d7968617368"
+        + "636f64655b0005627175616c7400025b424c000a66756c6c537472696e677400"
+        + "124c6a6176612f6c616e672f537472696e673b5b0005677472696471007e0001"
+        + "4c000b73686f7274537472696e6771007e00027870000000020000bb14000000"
+        + "0801017bbb8b8a757200025b42acf317f8060854e00200007870000000020909"
+        + "7400007571007e000400000008010203040506070874001e626231343a383a32"
+        + "3a303130323033303430353036303730383a30393039";
+
+    private static final String FORMER_JAVAXID =
+        "aced00057372001e6f72672e6f626a6563747765622e6a6f746d2e4a61766158"
+        + "6964496d706c6feafe96c4c475e402000a49000c627175616c5f6c656e677468"
+        + "490008666f726d6174496449000c67747269645f6c656e6774685a000d686173"
+        + "68636f646576616c696442000e696e7465726e616c56657273496449000a6d79"
+        + "68617368636f64655b0005627175616c7400025b424c000a66756c6c53747269"
+        + "6e677400124c6a6176612f6c616e672f537472696e673b5b0005677472696471"
+        + "007e00014c000b73686f7274537472696e6771007e00027870000000400000bb"
+        + "1400000008010159f78131757200025b42acf317f8060854e002000078700000"
+        + "004001fa78bca2119ed773f4d68ad3bfd7df5620202020202020202020202020"
+        + "2020202020202020202020202020202000000000000000000000000000000000"
+        + "00017400007571007e000400000008010203040506070871007e0006";
+
+    @Test
+    public void testBranchXid() {
+        XidImpl txxid = new XidImpl();
+        for (int index : new int[] {0, 5, 100}) {
+            XidImpl xid = new XidImpl(txxid, index);
+            XidImpl copy = new XidImpl(xid.getFormatId(), xid.getGlobalTransactionId(),
+                                       xid.getBranchQualifier());
+            assertEquals(copy, xid);
+            assertEquals(xid, copy);
+            assertEquals(copy.hashCode(), xid.hashCode());
+            assertEquals(copy.toString(true), xid.toString(true));
+            assertArrayEquals(xid.getBranchQualifier(), new XidImpl(txxid, index).getBranchQualifier());
+        }
+    }
+
+    @Test
+    public void testJavaXid() {
+        XidImpl xid = new XidImpl(new XidImpl(), 1);
+        JavaXidImpl javaxid = xid.javaXid();
+        assertSame(javaxid, xid.javaXid());
+        assertSame(xid, javaxid.xid());
+        assertArrayEquals(xid.getBranchQualifier(), javaxid.getBranchQualifier());
+        assertEquals(xid.hashCode(), javaxid.hashCode());
+    }
+
+    @Test
+    public void testSerialization() throws Exception {
+        XidImpl xid = new XidImpl(new XidImpl(), 2);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(xid);
+        out.close();
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        XidImpl read = (XidImpl) in.readObject();
+        assertEquals(xid, read);
+        assertArrayEquals(xid.getBranchQualifier(), read.getBranchQualifier());
+    }
+
+    @Test
+    public void testFormerSerializedForm() throws Exception {
+        XidImpl xid = (XidImpl) deserialize(FORMER_XID);
+        XidImpl expected = new XidImpl(0xBB14, new byte[] {1, 2, 3, 4, 5, 6, 7, 8}, new byte[] {9, 9});
+        assertEquals(expected, xid);
+        assertEquals(expected.hashCode(), xid.hashCode());
+        assertEquals(expected.toString(), xid.toString());
+
+        JavaXidImpl javaxid = (JavaXidImpl) deserialize(FORMER_JAVAXID);
+        assertEquals(0xBB14, javaxid.getFormatId());
+        assertArrayEquals(expected.getGlobalTransactionId(), javaxid.getGlobalTransactionId());
+        assertEquals(64, javaxid.getBranchQualifier().length);
+        JavaXidImpl copy = new JavaXidImpl(new XidImpl(javaxid));
+        assertEquals(copy, javaxid);
+        assertEquals(copy.hashCode(), javaxid.hashCode());
+    }
+
+    private static Object deserialize(String hex) throws Exception {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        }
+        return new ObjectInputStream(new ByteArrayInputStream(bytes)).readObject();
+    }
+}
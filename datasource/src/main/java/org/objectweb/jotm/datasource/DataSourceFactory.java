@@ -43,15 +43,31 @@
 
 package org.objectweb.jotm.datasource;
 
+import java.util.ArrayList;
 import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 import javax.naming.Context;
 import javax.naming.Name;
 import javax.naming.NamingException;
 import javax.naming.RefAddr;
 import javax.naming.Reference;
+import javax.naming.event.EventContext;
+import javax.naming.event.NamespaceChangeListener;
+import javax.naming.event.NamingEvent;
+import javax.naming.event.NamingExceptionEvent;
 import javax.naming.spi.ObjectFactory;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.enhydra.jdbc.pool.StandardXAPoolDataSource;
 import org.enhydra.jdbc.standard.StandardXADataSource;
 
@@ -64,17 +80,26 @@ import org.objectweb.jotm.Jotm;
  *       factory="org.objectweb.jotm.datasource.DataSourceFactory"
  * The jotm will be created at first use (static bloc)
  * Datasource are created by the XAPool module. (org.enhydra.jdbc packages)
+ * One pool is created per distinct Reference (same attributes), and shared
+ * by all lookups. It is shut down when all the names it was looked up with
+ * are unbound, if the naming contexts send events, or by closeDataSource().
  * @author jmesnil
  */
 public class DataSourceFactory implements ObjectFactory {
 
-    private static Hashtable table = new Hashtable();
+    private static final Log log = LogFactory.getLog("org.objectweb.jotm.datasource");
+
+    /**
+     * Pools by canonical Reference key.
+     * A pool is built once per key, even if several lookups race.
+     */
+    private static ConcurrentMap<String, Pool> table = new ConcurrentHashMap<String, Pool>();
 
     static {
         try {
             jotm = new Jotm(true, false);
         } catch (NamingException e) {
-            e.printStackTrace();
+            log.error("Cannot create JOTM", e);
         }
     }
 
@@ -85,70 +110,244 @@ public class DataSourceFactory implements ObjectFactory {
      */
     public Object getObjectInstance(Object obj, Name n, Context nameCtx, Hashtable environment)
             throws Exception {
-        StandardXAPoolDataSource xads = null;
-        StandardXADataSource ds = null;
+        final Reference ref = (Reference) obj;
+        String key = getKey(ref);
+        Pool pool = table.get(key);
+        if (pool == null) {
+            Pool newpool = new Pool(key, ref);
+            pool = table.putIfAbsent(key, newpool);
+            if (pool == null) {
+                pool = newpool;
+                pool.task.run();
+            }
+        }
+        if (n != null && nameCtx instanceof EventContext) {
+            pool.addBinding((EventContext) nameCtx, n);
+        }
         try {
-            Reference ref = (Reference) obj;
-            ds = new StandardXADataSource();
-            xads = new StandardXAPoolDataSource(ds);
-            Enumeration addrs = ref.getAll();
-            while (addrs.hasMoreElements()) {
-                RefAddr addr = (RefAddr) addrs.nextElement();
-                String name = addr.getType();
-                String value = (String) addr.getContent();
-                if (name.equals("driverClassName")) {
-                    ds.setDriverName(value);
-                } else if (name.equals("url")) {
-                    ds.setUrl(value);
-                } else if (name.equals("username")) {
-                    xads.user = value;
-                    ds.setUser(value);
-                } else if (name.equals("password")) {
-                    ds.setPassword(value);
-                    xads.password = value;
-                } else if (name.equals("min")) {
-                    try {
-                        int min = Integer.parseInt(value);
-                        xads.setMinSize(min);
-                    } catch (NumberFormatException e) {
-                        // we do nothing (default value will be used)
-                    }
-                } else if (name.equals("max")) {
-                    try {
-                        int max = Integer.parseInt(value);
-                        xads.setMaxSize(max);
-                    } catch (NumberFormatException e) {
-                        // we do nothing (default value will be used)
-                    }
-                }  else if (name.equals("testStmt")) {
-                    xads.setJdbcTestStmt(value);
-                } else if (name.equals("checkLevel")){
-                    try {
-                        int max = Integer.parseInt(value);
-                        xads.setCheckLevelObject(max);
-                    } catch (NumberFormatException e) {
-                        // we do nothing (default value will be used)
-                    }
-                } else if (name.equals("maxWait")) {
-                    try {
-                        int max = Integer.parseInt(value);
-                        xads.setDeadLockMaxWait(max);
-                    } catch (NumberFormatException e) {
-                        // we do nothing (default value will be used)
-                    }
+            return pool.task.get();
+        } catch (ExecutionException e) {
+            // not cached: the next lookup tries again
+            table.remove(key, pool);
+            log.error("Cannot create DataSource " + ref.getClassName(), e.getCause());
+            throw e;
+        }
+    }
+
+    /**
+     * Shut down the pool created for this Reference, if any.
+     * @param ref the Reference of the DataSource
+     */
+    public static void closeDataSource(Reference ref) {
+        close(getKey(ref));
+    }
+
+    /**
+     * Build the key of a Reference: its class name and its attributes, sorted.
+     * @param ref the Reference of the DataSource
+     * @return a key equal for References with the same attributes
+     */
+    private static String getKey(Reference ref) {
+        Map<String, String> attrs = new TreeMap<String, String>();
+        Enumeration addrs = ref.getAll();
+        while (addrs.hasMoreElements()) {
+            RefAddr addr = (RefAddr) addrs.nextElement();
+            attrs.put(addr.getType(), String.valueOf(addr.getContent()));
+        }
+        StringBuilder sb = new StringBuilder(ref.getClassName());
+        for (Map.Entry<String, String> e : attrs.entrySet()) {
+            sb.append('\n').append(e.getKey()).append('=').append(e.getValue());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Remove a pool from the table and shut it down.
+     * @param key key of the pool
+     */
+    private static void close(String key) {
+        Pool pool = table.remove(key);
+        if (pool != null) {
+            pool.removeBindings();
+            try {
+                pool.task.get().shutdown(true);
+            } catch (ExecutionException e) {
+                // never created: nothing to shut down
+            } catch (Exception e) {
+                log.error("Cannot shut down DataSource", e);
+            }
+        }
+    }
+
+    /**
+     * Create the pool for a Reference.
+     * @param ref the Reference of the DataSource
+     * @return the pool
+     * @throws Exception the pool could not be created
+     */
+    private static StandardXAPoolDataSource createDataSource(Reference ref) throws Exception {
+        StandardXADataSource ds = new StandardXADataSource();
+        StandardXAPoolDataSource xads = new StandardXAPoolDataSource(ds);
+        Enumeration addrs = ref.getAll();
+        while (addrs.hasMoreElements()) {
+            RefAddr addr = (RefAddr) addrs.nextElement();
+            String name = addr.getType();
+            String value = (String) addr.getContent();
+            if (name.equals("driverClassName")) {
+                ds.setDriverName(value);
+            } else if (name.equals("url")) {
+                ds.setUrl(value);
+            } else if (name.equals("username")) {
+                xads.user = value;
+                ds.setUser(value);
+            } else if (name.equals("password")) {
+                ds.setPassword(value);
+                xads.password = value;
+            } else if (name.equals("min")) {
+                try {
+                    int min = Integer.parseInt(value);
+                    xads.setMinSize(min);
+                } catch (NumberFormatException e) {
+                    // we do nothing (default value will be used)
+                }
+            } else if (name.equals("max")) {
+                try {
+                    int max = Integer.parseInt(value);
+                    xads.setMaxSize(max);
+                } catch (NumberFormatException e) {
+                    // we do nothing (default value will be used)
+                }
+            }  else if (name.equals("testStmt")) {
+                xads.setJdbcTestStmt(value);
+            } else if (name.equals("checkLevel")){
+                try {
+                    int max = Integer.parseInt(value);
+                    xads.setCheckLevelObject(max);
+                } catch (NumberFormatException e) {
+                    // we do nothing (default value will be used)
+                }
+            } else if (name.equals("maxWait")) {
+                try {
+                    int max = Integer.parseInt(value);
+                    xads.setDeadLockMaxWait(max);
+                } catch (NumberFormatException e) {
+                    // we do nothing (default value will be used)
                 }
+            }
+
+        }
+        xads.setTransactionManager(jotm.getTransactionManager());
+        xads.setDataSource(ds);
+        return xads;
+    }
 
+    /**
+     * A pool, built at first lookup, and the names it is bound to.
+     */
+    private static class Pool {
+        final String key;
+        final FutureTask<StandardXAPoolDataSource> task;
+        // listener of each name the pool was looked up with
+        private final Map<String, Binding> bindings = new HashMap<String, Binding>();
+
+        Pool(String key, final Reference ref) {
+            this.key = key;
+            this.task = new FutureTask<StandardXAPoolDataSource>(new Callable<StandardXAPoolDataSource>() {
+                public StandardXAPoolDataSource call() throws Exception {
+                    return createDataSource(ref);
+                }
+            });
+        }
+
+        /**
+         * Listen to the unbinding of a name the pool was looked up with.
+         * A name is listened to once, whatever the context it was looked up from.
+         * Contexts not supporting listeners on this name are ignored.
+         */
+        void addBinding(EventContext ctx, Name n) {
+            String name = n.toString();
+            Binding binding = new Binding(ctx, name);
+            synchronized (bindings) {
+                if (bindings.containsKey(name)) {
+                    return;
+                }
+                bindings.put(name, binding);
+            }
+            try {
+                ctx.addNamingListener(n, EventContext.OBJECT_SCOPE, binding);
+            } catch (NamingException e) {
+                // no event support: the pool lives until closeDataSource()
+                synchronized (bindings) {
+                    bindings.remove(name);
+                }
             }
-            xads.setTransactionManager(jotm.getTransactionManager());
-            xads.setDataSource(ds);
-        } catch (Exception e) {
-            e.printStackTrace();
         }
-        if (table.containsKey(ds)) {
-            return table.get(ds);
-        } else {
-            table.put(ds, xads);
-            return xads;
+
+        /**
+         * A name has been unbound: shut down the pool if it was the last one.
+         */
+        private void removeBinding(Binding binding) {
+            synchronized (bindings) {
+                if (bindings.get(binding.name) != binding) {
+                    return;
+                }
+                bindings.remove(binding.name);
+                if (!bindings.isEmpty()) {
+                    return;
+                }
+            }
+            if (table.get(key) == this) {
+                close(key);
+            }
+        }
+
+        /**
+         * The pool is shut down: stop listening to its names.
+         */
+        void removeBindings() {
+            List<Binding> list;
+            synchronized (bindings) {
+                list = new ArrayList<Binding>(bindings.values());
+                bindings.clear();
+            }
+            for (Binding binding : list) {
+                binding.stop();
+            }
+        }
+
+        /**
+         * Listener of the unbinding of one name.
+         */
+        private class Binding implements NamespaceChangeListener {
+            final EventContext ctx;
+            final String name;
+
+            Binding(EventContext ctx, String name) {
+                this.ctx = ctx;
+                this.name = name;
+            }
+
+            void stop() {
+                try {
+                    ctx.removeNamingListener(this);
+                } catch (NamingException e) {
+                    // nothing to do
+                }
+            }
+
+            public void objectAdded(NamingEvent evt) {
+            }
+
+            public void objectRemoved(NamingEvent evt) {
+                stop();
+                removeBinding(this);
+            }
+
+            public void objectRenamed(NamingEvent evt) {
+            }
+
+            public void namingExceptionThrown(NamingExceptionEvent evt) {
+            }
         }
     }
 }
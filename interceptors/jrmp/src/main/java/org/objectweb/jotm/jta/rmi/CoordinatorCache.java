@@ -0,0 +1,227 @@
+/*
+ * @(#) CoordinatorCache
+ *
+ * JOTM: Java Open Transaction Manager
+ *
+ * This module was originally developed by
+ *  - INRIA inside the ObjectWeb Consortium(http://www.objectweb.org)
+ *
+ * The original code and portions created by INRIA are
+ * Copyright (C) 2002 - INRIA (www.inria.fr)
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * -Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * -Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ * --------------------------------------------------------------------------
+ * $Id$
+ * --------------------------------------------------------------------------
+ */
+package org.objectweb.jotm.jta.rmi;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInput;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutput;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.lang.reflect.Proxy;
+import java.rmi.Remote;
+import java.rmi.server.RemoteObject;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.objectweb.jotm.Coordinator;
+import org.objectweb.jotm.LruCache;
+import org.objectweb.jotm.TraceTm;
+
+/**
+ * Class <code>CoordinatorCache</code> encodes the Coordinator of the
+ * JRMP propagation context.
+ * A stub is serialized once on the sending side, and the bytes are sent
+ * with each request. The receiving side keeps the stubs already decoded,
+ * so a coordinator is deserialized (and registered to the DGC) only the
+ * first time it is seen.
+ */
+public final class CoordinatorCache {
+
+    /**
+     * Max number of decoded stubs kept on the receiving side.
+     */
+    public static final String SIZE_PROPERTY = "jotm.jrmp.CoordinatorCacheSize";
+
+    private static final int DEFAULT_SIZE = 256;
+
+    // kind of coordinator on the wire
+    private static final byte NONE = 0;
+    private static final byte ENCODED = 1;
+    private static final byte OBJECT = 2;
+
+    /**
+     * Encoded stubs, per coordinator sent.
+     */
+    private static final Map<Coordinator, byte[]> encoded =
+        new WeakHashMap<Coordinator, byte[]>();
+
+    /**
+     * Decoded stubs, per encoded bytes received, least recently used first.
+     */
+    private static final LruCache<LruCache.BytesKey, Coordinator> decoded =
+        new LruCache<LruCache.BytesKey, Coordinator>(Integer.getInteger(SIZE_PROPERTY, DEFAULT_SIZE).intValue());
+
+    private CoordinatorCache() {
+    }
+
+    /**
+     * Write a Coordinator
+     * @param out the object output
+     * @param coord the Coordinator, may be null
+     */
+    public static void write(ObjectOutput out, Coordinator coord) throws IOException {
+        if (coord == null) {
+            out.writeByte(NONE);
+            return;
+        }
+        byte[] bytes = encode(coord);
+        if (bytes == null) {
+            // not exported yet: let the RMI stream replace it by its stub
+            out.writeByte(OBJECT);
+            out.writeObject(coord);
+            return;
+        }
+        out.writeByte(ENCODED);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Read a Coordinator written by write(ObjectOutput, Coordinator)
+     * @param in the object input
+     * @return the Coordinator, or null
+     */
+    public static Coordinator read(ObjectInput in) throws IOException, ClassNotFoundException {
+        switch (in.readByte()) {
+        case NONE:
+            return null;
+        case OBJECT:
+            return (Coordinator) in.readObject();
+        case ENCODED:
+            byte[] bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+            return decode(bytes);
+        default:
+            throw new IOException("bad coordinator encoding");
+        }
+    }
+
+    /**
+     * @return the serialized stub of the coordinator, or null if it has none.
+     */
+    private static byte[] encode(Coordinator coord) {
+        synchronized (encoded) {
+            byte[] bytes = encoded.get(coord);
+            if (bytes != null) {
+                return bytes;
+            }
+        }
+        byte[] bytes;
+        try {
+            Remote stub = coord;
+            if (!(coord instanceof RemoteObject) && !Proxy.isProxyClass(coord.getClass())) {
+                stub = RemoteObject.toStub(coord);
+            }
+            ByteArrayOutputStream bos = new ByteArrayOutputStream(256);
+            ObjectOutputStream oos = new ObjectOutputStream(bos);
+            oos.writeObject(stub);
+            oos.close();
+            bytes = bos.toByteArray();
+        } catch (IOException e) {
+            if (TraceTm.jta.isDebugEnabled()) {
+                TraceTm.jta.debug("cannot encode coordinator: " + e);
+            }
+            return null;
+        }
+        synchronized (encoded) {
+            encoded.put(coord, bytes);
+        }
+        return bytes;
+    }
+
+    /**
+     * @return the stub serialized in bytes, decoded only if not seen yet.
+     */
+    private static Coordinator decode(byte[] bytes) throws IOException, ClassNotFoundException {
+        LruCache.BytesKey key = new LruCache.BytesKey(bytes);
+        Coordinator coord = decoded.get(key);
+        if (coord != null) {
+            return coord;
+        }
+        ObjectInputStream ois = new ContextObjectInputStream(new ByteArrayInputStream(bytes));
+        try {
+            coord = (Coordinator) ois.readObject();
+        } finally {
+            ois.close();
+        }
+        decoded.put(key, coord);
+        return coord;
+    }
+
+    /**
+     * Resolve the stub classes with the context class loader,
+     * as the RMI streams do.
+     */
+    private static final class ContextObjectInputStream extends ObjectInputStream {
+
+        ContextObjectInputStream(InputStream in) throws IOException {
+            super(in);
+        }
+
+        protected Class<?> resolveClass(ObjectStreamClass desc)
+            throws IOException, ClassNotFoundException {
+            ClassLoader cl = Thread.currentThread().getContextClassLoader();
+            if (cl != null) {
+                try {
+                    return Class.forName(desc.getName(), false, cl);
+                } catch (ClassNotFoundException e) {
+                    // try the default way
+                }
+            }
+            return super.resolveClass(desc);
+        }
+
+        protected Class<?> resolveProxyClass(String[] interfaces)
+            throws IOException, ClassNotFoundException {
+            ClassLoader cl = Thread.currentThread().getContextClassLoader();
+            if (cl == null) {
+                return super.resolveProxyClass(interfaces);
+            }
+            Class<?>[] classes = new Class<?>[interfaces.length];
+            for (int i = 0; i < interfaces.length; i++) {
+                classes[i] = Class.forName(interfaces[i], false, cl);
+            }
+            return Proxy.getProxyClass(cl, classes);
+        }
+    }
+}
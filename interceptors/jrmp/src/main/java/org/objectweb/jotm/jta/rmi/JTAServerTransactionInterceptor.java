@@ -77,6 +77,12 @@ public class JTAServerTransactionInterceptor
      */
     private static String interceptorName = "JTAServerTransactionInterceptor";
 
+    /**
+     * context received with the current request, if any
+     */
+    private static ThreadLocal<TransactionContext> received =
+        new ThreadLocal<TransactionContext>();
+
     /**
      * constructor
      */
@@ -102,9 +108,12 @@ public class JTAServerTransactionInterceptor
                     TX_CTX_ID);
             if (jtasc != null) {
                 // put into the the Current object (true for client side context
+                received.set(jtasc.getTransactionContext());
                 current.setPropagationContext(
                     jtasc.getTransactionContext(),
                     false);
+            } else {
+                received.remove();
             }
         }
     }
@@ -125,13 +134,37 @@ public class JTAServerTransactionInterceptor
             // get the Transaction Context (null if there is no transaction)
             TransactionContext txCtx = current.getPropagationContext(false);
             if (txCtx != null) {
-                JTATransactionServiceContext jtasc =
-                    new JTATransactionServiceContext();
-                jtasc.setContext(txCtx, true);
-                jri.addReplyServiceContext(jtasc);
+                addReplyContext(jri, txCtx);
                 current.setPropagationContext(null, false);
             }
         }
+        received.remove();
+    }
+
+    /**
+     * Add the context to the reply, unless the client already has it:
+     * same coordinator and same Xid as the context of the request.
+     * @param jri JServerRequestInfo the jrmp server request information
+     * @param txCtx the Transaction Context
+     */
+    private void addReplyContext(JServerRequestInfo jri, TransactionContext txCtx) throws IOException {
+        TransactionContext rcvCtx = received.get();
+        if (rcvCtx != null
+            && sameCoordinator(rcvCtx.getCoordinator(), txCtx.getCoordinator())
+            && rcvCtx.getXid().equals(txCtx.getXid())) {
+            if (TraceTm.jta.isDebugEnabled()) {
+                TraceTm.jta.debug("context unchanged, not sent with reply");
+            }
+            return;
+        }
+        JTATransactionServiceContext jtasc =
+            new JTATransactionServiceContext();
+        jtasc.setContext(txCtx, true);
+        jri.addReplyServiceContext(jtasc);
+    }
+
+    private static boolean sameCoordinator(Object c1, Object c2) {
+        return c1 == c2 || (c1 != null && c1.equals(c2));
     }
 
     /**
@@ -153,13 +186,11 @@ public class JTAServerTransactionInterceptor
             // get the Transaction Context (null if there is no transaction)
             TransactionContext txCtx = current.getPropagationContext(false);
             if (txCtx != null) {
-                JTATransactionServiceContext jtasc =
-                    new JTATransactionServiceContext();
-                jtasc.setContext(txCtx, true);
-                jri.addReplyServiceContext(jtasc);
+                addReplyContext(jri, txCtx);
                 current.setPropagationContext(null, false);
             }
         }
+        received.remove();
     }
 
     public void sendOther(JServerRequestInfo jri) throws IOException {
@@ -173,13 +204,11 @@ public class JTAServerTransactionInterceptor
             // get the Transaction Context (null if there is no transaction)
             TransactionContext txCtx = current.getPropagationContext(false);
             if (txCtx != null) {
-                JTATransactionServiceContext jtasc =
-                    new JTATransactionServiceContext();
-                jtasc.setContext(txCtx, true);
-                jri.addReplyServiceContext(jtasc);
+                addReplyContext(jri, txCtx);
                 current.setPropagationContext(null, false);
             }
         }
+        received.remove();
         // log.trace("<-- sent other");
     }
 }
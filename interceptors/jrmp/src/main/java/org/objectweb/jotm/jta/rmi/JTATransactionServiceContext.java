@@ -60,6 +60,11 @@ import org.ow2.carol.rmi.interceptor.spi.JServiceContext;
 public class JTATransactionServiceContext
     implements JServiceContext, Externalizable {
 
+    /**
+     * Version of the format written by writeExternal
+     */
+    static final byte FORMAT_VERSION = 1;
+
     /**
      * Transaction Context
      */
@@ -113,17 +118,17 @@ public class JTATransactionServiceContext
      */
     public void readExternal(ObjectInput in)
         throws IOException, ClassNotFoundException {
+        // read format version
+        byte version = in.readByte();
+        if (version != FORMAT_VERSION) {
+            throw new IOException("Unknown transaction context format version " + version);
+        }
         // read Xid
-        int fid = in.readInt();
-        byte[] gti = new byte[in.readInt()];
-        in.read(gti);
-        byte[] bq = new byte[in.readInt()];
-        in.read(bq);
-        Xid xid = new XidImpl(fid, gti, bq);
-        // read Coordinator
-        Coordinator coor = (Coordinator) in.readObject();
+        Xid xid = XidImpl.read(in);
         // read timeout
         int timeout = in.readInt();
+        // read Coordinator
+        Coordinator coor = CoordinatorCache.read(in);
         this.txCtx = new InternalTransactionContext(timeout, coor, xid);
     }
 
@@ -132,16 +137,13 @@ public class JTATransactionServiceContext
      * @param out the object output
      */
     public void writeExternal(ObjectOutput out) throws IOException {
+        // send format version
+        out.writeByte(FORMAT_VERSION);
         // send Xid
-        Xid xid = txCtx.getXid();
-        out.writeInt(xid.getFormatId());
-        out.writeInt(xid.getGlobalTransactionId().length);
-        out.write(xid.getGlobalTransactionId());
-        out.writeInt(xid.getBranchQualifier().length);
-        out.write(xid.getBranchQualifier());
-        // send Coordinator
-        out.writeObject(txCtx.getCoordinator());
+        XidImpl.write(out, txCtx.getXid());
         // send timeout
         out.writeInt(txCtx.getTimeout());
+        // send Coordinator, encoded once per coordinator
+        CoordinatorCache.write(out, txCtx.getCoordinator());
     }
 }
@@ -38,14 +38,19 @@
  */
 package org.objectweb.jotm.ots;
 
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
 import javax.rmi.PortableRemoteObject;
 import javax.transaction.xa.Xid;
 
 import org.objectweb.jotm.Coordinator;
+import org.objectweb.jotm.Current;
 import org.objectweb.jotm.InternalTransactionContext;
+import org.objectweb.jotm.LruCache;
 import org.objectweb.jotm.Terminator;
 import org.objectweb.jotm.TraceTm;
 import org.objectweb.jotm.TransactionContext;
+import org.objectweb.jotm.TransactionImpl;
 import org.objectweb.jotm.XidImpl;
 import org.omg.CORBA.Any;
 import org.omg.CORBA.LocalObject;
@@ -92,6 +97,28 @@ public abstract class OTSInterceptor extends LocalObject {
      */
     private static ORB orb = null;
 
+    /**
+     * Max number of contexts kept decoded.
+     */
+    public static final String CACHE_SIZE_PROPERTY = "jotm.ots.ContextCacheSize";
+
+    private static final int DEFAULT_CACHE_SIZE = 256;
+
+    /**
+     * Contexts already decoded, per service context data.
+     * A decoded context is only weakly referenced here: it is kept by its
+     * local transaction, as a user resource, and dropped once the transaction
+     * is completed, so that the Coordinator of a completed transaction
+     * is not kept. The service context data already encoded is kept by
+     * the transaction the same way (see buildCorbaPropagationContext).
+     */
+    private final LruCache<LruCache.BytesKey, DecodedRef> decoded;
+
+    /**
+     * Decoded contexts dropped by their transaction.
+     */
+    private final ReferenceQueue<Decoded> dropped = new ReferenceQueue<Decoded>();
+
     /**
      * Constructor.
      * @param info ORB Configuration object
@@ -136,6 +163,9 @@ public abstract class OTSInterceptor extends LocalObject {
         }
 
         this.dynAnyFactory = resolvedDynAnyFactory;
+
+        int size = Integer.getInteger(CACHE_SIZE_PROPERTY, DEFAULT_CACHE_SIZE).intValue();
+        decoded = new LruCache<LruCache.BytesKey, DecodedRef>(size);
     } // end constructor
 
     /**
@@ -172,6 +202,16 @@ public abstract class OTSInterceptor extends LocalObject {
             int timeout = txCtx.getTimeout();
             Coordinator coord = txCtx.getCoordinator();
 
+            // Reuse the data encoded for a previous call of this transaction,
+            // unless the context has changed since. It is kept as a resource
+            // of the local transaction, so it is dropped with it once completed.
+            Current current = Current.getCurrent();
+            TransactionImpl tx = current == null ? null : current.getTxByXid(txCtx.getXid());
+            Encoded enc = tx == null ? null : (Encoded) tx.getUserResource(this);
+            if (enc != null && enc.timeout == timeout && enc.coord == coord) {
+                return new ServiceContext(TX_CTX_ID, enc.data);
+            }
+
             // Xid is coded in the otid_t
             byte[] gtrid = xid.getGlobalTransactionId();
             byte[] bqual = xid.getBranchQualifier();
@@ -217,6 +257,9 @@ public abstract class OTSInterceptor extends LocalObject {
 
             // encode the PropagationContext in a service context
             byte[] propagationContextData = codec.encode_value(pAny);
+            if (tx != null) {
+                tx.putUserResource(this, new Encoded(timeout, coord, propagationContextData));
+            }
             return new ServiceContext(TX_CTX_ID, propagationContextData);
 
         } catch (Exception e) {
@@ -239,7 +282,18 @@ public abstract class OTSInterceptor extends LocalObject {
             TraceTm.jta.debug("OTSInterceptor: no tx ctx");
             return null;
         }
-        Xid xid = null;
+
+        // Same data as a context already decoded
+        purgeDecoded();
+        LruCache.BytesKey key = new LruCache.BytesKey(sCtx.context_data);
+        DecodedRef ref = decoded.get(key);
+        Decoded dec = ref == null ? null : ref.get();
+        if (dec != null) {
+            keepDecoded(dec);
+            return dec.newContext();
+        }
+
+        XidImpl xid = null;
         int timeout;
         Any specific = null;
 
@@ -290,15 +344,93 @@ public abstract class OTSInterceptor extends LocalObject {
             TraceTm.jta.debug("OTSInterceptor: null ctx or valid ctx but sent from another app server");
         }
 
-        TransactionContext tCtx = new InternalTransactionContext(timeout,
-                                                                 coord,
-                                                                 term,
-                                                                 xid);
         if (!isJotmCtx) {
             TraceTm.jta.debug("OTSInterceptor: ctx comes from another vendor");
-            tCtx.setNotJotmCtx();
         }
-        return tCtx;
+        dec = new Decoded(timeout, coord, term, xid, isJotmCtx);
+        decoded.put(key, new DecodedRef(key, dec, dropped));
+        keepDecoded(dec);
+        return dec.newContext();
     }
-}
 
+    /**
+     * Keep a decoded context with its local transaction, if it exists already.
+     * On the server side, the transaction is only created for the first call,
+     * after its context is decoded: it keeps it from the next call on.
+     * @param dec the decoded context
+     */
+    private void keepDecoded(final Decoded dec) {
+        Current current = Current.getCurrent();
+        TransactionImpl tx = current == null ? null : current.getTxByXid(dec.xid);
+        if (tx != null && tx.getUserResource(decoded) != dec) {
+            tx.putUserResource(decoded, dec);
+        }
+    }
+
+    /**
+     * Remove from the cache the contexts dropped by their transaction.
+     */
+    private void purgeDecoded() {
+        DecodedRef ref;
+        while ((ref = (DecodedRef) dropped.poll()) != null) {
+            if (decoded.get(ref.key) == ref) {
+                decoded.remove(ref.key);
+            }
+        }
+    }
+
+    /**
+     * Service context data encoded for a transaction.
+     */
+    private static final class Encoded {
+        final int timeout;
+        final Coordinator coord;
+        final byte[] data;
+
+        Encoded(int timeout, Coordinator coord, byte[] data) {
+            this.timeout = timeout;
+            this.coord = coord;
+            this.data = data;
+        }
+    }
+
+    /**
+     * Entry of the cache of the decoded contexts.
+     */
+    private static final class DecodedRef extends WeakReference<Decoded> {
+        final LruCache.BytesKey key;
+
+        DecodedRef(LruCache.BytesKey key, Decoded dec, ReferenceQueue<Decoded> queue) {
+            super(dec, queue);
+            this.key = key;
+        }
+    }
+
+    /**
+     * Values decoded from a service context data.
+     * The TransactionContext is mutable: a new one is built for each call.
+     */
+    private static final class Decoded {
+        final int timeout;
+        final Coordinator coord;
+        final Terminator term;
+        final XidImpl xid;
+        final boolean isJotmCtx;
+
+        Decoded(int timeout, Coordinator coord, Terminator term, XidImpl xid, boolean isJotmCtx) {
+            this.timeout = timeout;
+            this.coord = coord;
+            this.term = term;
+            this.xid = xid;
+            this.isJotmCtx = isJotmCtx;
+        }
+
+        TransactionContext newContext() {
+            TransactionContext tCtx = new InternalTransactionContext(timeout, coord, term, xid);
+            if (!isJotmCtx) {
+                tCtx.setNotJotmCtx();
+            }
+            return tCtx;
+        }
+    }
+}
@@ -13,6 +13,7 @@ import javax.jms.Session;
 import javax.jms.Topic;
 import javax.jms.XAConnection;
 import javax.jms.XAConnectionFactory;
+import javax.jms.XASession;
 import javax.transaction.TransactionManager;
 
 import org.objectweb.util.monolog.api.Logger;
@@ -28,12 +29,16 @@ public class JConnection implements Connection {
     protected XAConnection xac;
 
     protected boolean closed;
+    protected long creationTime = System.currentTimeMillis();
     protected String user;
     protected boolean globaltx;
     protected static TransactionManager tm;
     protected JConnectionFactory jcf;
     protected LinkedList<Session> sessionlist = new LinkedList<Session>();
 
+    // Idle XASessions, reused from one transaction to the next.
+    protected XASessionPool sessionpool;
+
     // This constant is used to determine connection
     // with an anonymous user in the pool of JConnection.
     protected static final String INTERNAL_USER_NAME = "anybody";
@@ -50,6 +55,7 @@ public class JConnection implements Connection {
         this.jcf = jcf;
         this.logger = logger;
         closed = false;
+        sessionpool = new XASessionPool(this, logger);
         if (tm == null) {
             tm = JmsManagerImpl.getTransactionManager();
         }
@@ -122,6 +128,24 @@ public class JConnection implements Connection {
         }
     }
 
+    /**
+     * Create a new XASession in the MOM.
+     * Overridden to get the XASession type matching the connection.
+     * @return a newly created XASession
+     * @throws JMSException could not create the XASession
+     */
+    protected XASession createMOMXASession() throws JMSException {
+        return xac.createXASession();
+    }
+
+    /**
+     * Return the pool of XASessions of this connection
+     * @return the XASession pool, also giving its hit/miss and wait statistics
+     */
+    public XASessionPool getSessionPool() {
+        return sessionpool;
+    }
+
     /**
      * Return the user associated to this connection
      * @return  user's name
@@ -130,6 +154,14 @@ public class JConnection implements Connection {
         return user;
     }
 
+    /**
+     * Return the time this connection was created
+     * @return creation time, in ms
+     */
+    public long getCreationTime() {
+        return creationTime;
+    }
+
     // -----------------------------------------------------------------------
     // Connection implementation
     // -----------------------------------------------------------------------
@@ -164,16 +196,31 @@ public class JConnection implements Connection {
                     }
                 }
             }
-            closed = true;
-            xac.close();
+            physicalClose();
         }
     }
 
     public void finalClose() throws JMSException {
         logger.log(BasicLevel.DEBUG, "");
-        if (!closed) {
+        physicalClose();
+    }
+
+    /**
+     * Close the XAConnection, once, and tell the factory.
+     * @throws JMSException could not close the XAConnection
+     */
+    protected void physicalClose() throws JMSException {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
             closed = true;
+        }
+        sessionpool.close();
+        try {
             xac.close();
+        } finally {
+            jcf.connectionClosed(this);
         }
     }
         
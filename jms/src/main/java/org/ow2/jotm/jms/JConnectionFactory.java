@@ -1,7 +1,15 @@
 package org.ow2.jotm.jms;
 
 import java.io.Serializable;
-import java.util.LinkedList;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import javax.naming.NamingException;
 import javax.naming.Reference;
 import javax.naming.Referenceable;
@@ -9,23 +17,69 @@ import javax.naming.Referenceable;
 import javax.jms.Connection;
 import javax.jms.ConnectionFactory;
 import javax.jms.JMSException;
+import javax.jms.ResourceAllocationException;
 import javax.jms.XAConnectionFactory;
 
 import org.objectweb.util.monolog.api.Logger;
+import org.objectweb.util.monolog.api.BasicLevel;
 
 import org.ow2.jotm.jms.api.JmsManager;
 import static org.ow2.jotm.jms.JConnection.INTERNAL_USER_NAME;
 
 /**
  */
-public class JConnectionFactory implements ConnectionFactory, Referenceable, Serializable {
+public class JConnectionFactory implements ConnectionFactory, Referenceable, Serializable,
+                                           JConnectionFactoryMBean {
+
+    /**
+     * Max number of open connections of this factory, 0 for no limit.
+     */
+    public static final String MAX_CONNECTIONS_PROPERTY = "jotm.jms.MaxConnections";
+
+    /**
+     * Time (ms) to wait for a connection when the max is reached.
+     */
+    public static final String WAIT_TIMEOUT_PROPERTY = "jotm.jms.ConnectionWaitTimeout";
+
+    /**
+     * Time (ms) a free connection may stay in the pool before being closed.
+     */
+    public static final String IDLE_TIMEOUT_PROPERTY = "jotm.jms.ConnectionIdleTimeout";
+
+    /**
+     * Time (ms) after which a connection is closed instead of being reused, 0 for no limit.
+     */
+    public static final String MAX_LIFETIME_PROPERTY = "jotm.jms.ConnectionMaxLifetime";
+
+    // Max time (ms) between two checks of a waiting caller.
+    private static final long WAIT_SLICE = 50L;
 
     protected JmsManager jms;
     protected String name;
     protected XAConnectionFactory xacf;
     protected Logger logger;
 
-    private final LinkedList<JConnection> connectionpool = new LinkedList<JConnection>();
+    // Free connections, one queue per user.
+    private final ConcurrentMap<String, Queue<FreeConnection>> connectionpool =
+        new ConcurrentHashMap<String, Queue<FreeConnection>>();
+
+    private final int maxConnections;
+    private final long waitTimeout;
+    private final long idleTimeout;
+    private final long maxLifetime;
+
+    // One permit per connection that may still be opened, null if no limit.
+    private final Semaphore permits;
+
+    private final AtomicInteger open = new AtomicInteger();
+    private final AtomicInteger free = new AtomicInteger();
+    private final AtomicLong created = new AtomicLong();
+    private final AtomicLong reused = new AtomicLong();
+    private final AtomicLong evicted = new AtomicLong();
+    private final AtomicLong waits = new AtomicLong();
+    private final AtomicLong waitNanos = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong lastSweep = new AtomicLong(System.currentTimeMillis());
 
     /**
      * Constructor.
@@ -37,6 +91,12 @@ public class JConnectionFactory implements ConnectionFactory, Referenceable, Ser
         this.xacf = xacf;
         this.logger = logger;
         jms = JmsManagerImpl.getInstance();
+        maxConnections = Integer.getInteger(MAX_CONNECTIONS_PROPERTY, 0).intValue();
+        waitTimeout = Long.getLong(WAIT_TIMEOUT_PROPERTY, 30000L).longValue();
+        idleTimeout = Long.getLong(IDLE_TIMEOUT_PROPERTY, 300000L).longValue();
+        maxLifetime = Long.getLong(MAX_LIFETIME_PROPERTY, 0L).longValue();
+        permits = maxConnections > 0 ? new Semaphore(maxConnections) : null;
+        JmxPoolRegistry.register(this, JConnectionFactoryMBean.class, getMBeanName(), logger);
     }
 
     // -----------------------------------------------------------------------
@@ -51,11 +111,7 @@ public class JConnectionFactory implements ConnectionFactory, Referenceable, Ser
      * due to some internal error. required resources for a Connection.
      */
     public Connection createConnection() throws JMSException {
-        JConnection c = getJConnection(null);
-        if (c == null) {
-            c = new JConnection(this, xacf, logger);
-        }
-        return c;
+        return allocJConnection(null, null);
     }
 
     /**
@@ -70,24 +126,155 @@ public class JConnectionFactory implements ConnectionFactory, Referenceable, Ser
      * due to some internal error. required resources for a Connection.
      */
     public Connection createConnection(String userName, String password) throws JMSException {
-        JConnection c = getJConnection(userName);
-        if (c == null) {
-            c = new JConnection(this, xacf, userName, password, logger);
-        }
-        return c;
+        return allocJConnection(userName, password);
     }
 
     // -----------------------------------------------------------------------
     // Internal Methods
     // -----------------------------------------------------------------------
 
+    /**
+     * Create a new JConnection of the type matching this factory.
+     * @param user user's name, null for an anonymous user
+     * @param passwd user's password
+     * @return a newly created JConnection
+     * @throws JMSException could not create the connection
+     */
+    protected JConnection createJConnection(String user, String passwd) throws JMSException {
+        if (user == null) {
+            return new JConnection(this, xacf, logger);
+        }
+        return new JConnection(this, xacf, user, passwd, logger);
+    }
+
+    /**
+     * Get a Connection for the specified user: a free one from the pool
+     * if possible, else a new one. When the max number of connections
+     * is reached, wait for one to be freed or closed.
+     * @param user user's name, null for an anonymous user
+     * @param passwd user's password
+     * @return the Connection
+     * @throws JMSException could not create the connection or timed out
+     */
+    protected JConnection allocJConnection(String user, String passwd) throws JMSException {
+        JConnection con = getJConnection(user);
+        if (con != null) {
+            return con;
+        }
+        if (permits != null && !permits.tryAcquire()) {
+            con = waitJConnection(user);
+            if (con != null) {
+                return con;
+            }
+        }
+        boolean ok = false;
+        try {
+            con = createJConnection(user, passwd);
+            ok = true;
+        } finally {
+            if (!ok && permits != null) {
+                permits.release();
+            }
+        }
+        open.incrementAndGet();
+        created.incrementAndGet();
+        return con;
+    }
+
+    /**
+     * Wait until a free connection of this user is available, or a new one
+     * may be opened. Free connections of other users are closed to make room.
+     * @param user user's name, null for an anonymous user
+     * @return a free connection, or null if a permit was got for a new one
+     * @throws JMSException nothing available before the timeout
+     */
+    private JConnection waitJConnection(String user) throws JMSException {
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(waitTimeout);
+        waits.incrementAndGet();
+        try {
+            while (true) {
+                JConnection con = getJConnection(user);
+                if (con != null) {
+                    return con;
+                }
+                if (closeFreeConnection() && permits.tryAcquire()) {
+                    return null;
+                }
+                long left = deadline - System.nanoTime();
+                if (left <= 0) {
+                    timeouts.incrementAndGet();
+                    throw new ResourceAllocationException("JConnectionFactory " + name
+                        + ": no connection available after " + waitTimeout + " ms ("
+                        + maxConnections + " open)");
+                }
+                try {
+                    if (permits.tryAcquire(Math.min(left, TimeUnit.MILLISECONDS.toNanos(WAIT_SLICE)),
+                                           TimeUnit.NANOSECONDS)) {
+                        return null;
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new JMSException("JConnectionFactory: interrupted while waiting for a connection");
+                }
+            }
+        } finally {
+            waitNanos.addAndGet(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Close one free connection, whatever its user.
+     * @return true if a connection has been closed
+     */
+    private boolean closeFreeConnection() {
+        for (Queue<FreeConnection> q : connectionpool.values()) {
+            FreeConnection fc = q.poll();
+            if (fc != null) {
+                free.decrementAndGet();
+                evicted.incrementAndGet();
+                close(fc.con);
+                return true;
+            }
+        }
+        return false;
+    }
+
     /**
      * Free a Connection and return it to the pool
      * @param con - Connection to be freed
      */
     public void freeJConnection(JConnection con) {
-        synchronized (connectionpool) {
-            connectionpool.addLast(con);
+        long now = System.currentTimeMillis();
+        if (maxLifetime > 0 && now - con.getCreationTime() >= maxLifetime) {
+            evicted.incrementAndGet();
+            close(con);
+        } else {
+            Queue<FreeConnection> q = connectionpool.get(con.getUser());
+            if (q == null) {
+                q = new ConcurrentLinkedQueue<FreeConnection>();
+                Queue<FreeConnection> prev = connectionpool.putIfAbsent(con.getUser(), q);
+                if (prev != null) {
+                    q = prev;
+                }
+            }
+            q.offer(new FreeConnection(con, now));
+            free.incrementAndGet();
+        }
+        long last = lastSweep.get();
+        if (now - last >= Math.min(idleTimeout, 60000L) && lastSweep.compareAndSet(last, now)) {
+            sweep(now);
+        }
+    }
+
+    /**
+     * A connection of this factory has been physically closed.
+     * @param con - Connection closed
+     */
+    protected void connectionClosed(JConnection con) {
+        open.decrementAndGet();
+        if (permits != null) {
+            permits.release();
         }
     }
 
@@ -95,13 +282,11 @@ public class JConnectionFactory implements ConnectionFactory, Referenceable, Ser
      *  Close all Connections of the pool.
      */
     public void cleanPool() {
-        synchronized (connectionpool) {
-            for (JConnection con : connectionpool) {
-                try {
-                    con.finalClose();
-                } catch (JMSException e) {
-                    System.out.println("Could not close connection: " + e);
-                }
+        for (Queue<FreeConnection> q : connectionpool.values()) {
+            FreeConnection fc;
+            while ((fc = q.poll()) != null) {
+                free.decrementAndGet();
+                close(fc.con);
             }
         }
     }
@@ -110,24 +295,138 @@ public class JConnectionFactory implements ConnectionFactory, Referenceable, Ser
      * Get a Connection from the pool for the specified user
      *
      * @param user User wanting a connection
-     * @return Connection from the pool for the specified user
+     * @return Connection from the pool for the specified user, or null
      */
     public JConnection getJConnection(String user) {
         if (user == null) {
             user = INTERNAL_USER_NAME;
         }
-        synchronized (connectionpool) {
-            for (JConnection con : connectionpool) {
-                if (con.getUser().equals(user)) {
-                    connectionpool.remove(con);
-                    return con;
-                }
+        Queue<FreeConnection> q = connectionpool.get(user);
+        if (q == null) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        FreeConnection fc;
+        while ((fc = q.poll()) != null) {
+            free.decrementAndGet();
+            if (expired(fc, now)) {
+                evicted.incrementAndGet();
+                close(fc.con);
+            } else {
+                reused.incrementAndGet();
+                return fc.con;
             }
         }
         return null;
     }
 
+    /**
+     * Close the free connections idle or open for too long.
+     * @param now current time
+     */
+    private void sweep(long now) {
+        for (Queue<FreeConnection> q : connectionpool.values()) {
+            for (Iterator<FreeConnection> it = q.iterator(); it.hasNext();) {
+                FreeConnection fc = it.next();
+                if (expired(fc, now) && q.remove(fc)) {
+                    free.decrementAndGet();
+                    evicted.incrementAndGet();
+                    close(fc.con);
+                }
+            }
+        }
+    }
+
+    private boolean expired(FreeConnection fc, long now) {
+        return now - fc.since >= idleTimeout
+            || (maxLifetime > 0 && now - fc.con.getCreationTime() >= maxLifetime);
+    }
+
+    private void close(JConnection con) {
+        try {
+            con.finalClose();
+        } catch (JMSException e) {
+            logger.log(BasicLevel.ERROR, "Could not close connection: " + e);
+        }
+    }
 
+    /**
+     * Stop publishing the statistics of the pool.
+     */
+    public void unregister() {
+        JmxPoolRegistry.unregister(getMBeanName(), logger);
+    }
+
+    private String getMBeanName() {
+        return JmxPoolRegistry.DOMAIN + ":type=JConnectionFactory,name=" + name;
+    }
+
+    // -----------------------------------------------------------------------
+    // Pool statistics
+    // -----------------------------------------------------------------------
+
+    /**
+     * @return number of connections currently open, free ones included
+     */
+    public int getOpenConnections() {
+        return open.get();
+    }
+
+    /**
+     * @return number of free connections in the pool
+     */
+    public int getFreeConnections() {
+        return free.get();
+    }
+
+    /**
+     * @return max number of open connections, 0 if no limit
+     */
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    /**
+     * @return number of connections created
+     */
+    public long getCreatedCount() {
+        return created.get();
+    }
+
+    /**
+     * @return number of connections taken from the pool
+     */
+    public long getReusedCount() {
+        return reused.get();
+    }
+
+    /**
+     * @return number of free connections closed by the pool
+     */
+    public long getEvictedCount() {
+        return evicted.get();
+    }
+
+    /**
+     * @return number of callers that had to wait for a connection
+     */
+    public long getWaitCount() {
+        return waits.get();
+    }
+
+    /**
+     * @return total time (ms) spent waiting for a connection
+     */
+    public long getWaitTime() {
+        return waitNanos.get() / 1000000L;
+    }
+
+    /**
+     * @return number of callers that got no connection before the timeout
+     */
+    public long getTimeoutCount() {
+        return timeouts.get();
+    }
 
     // -----------------------------------------------------------------------
     // Referenceable implementation
@@ -137,5 +436,16 @@ public class JConnectionFactory implements ConnectionFactory, Referenceable, Ser
         return new Reference(getClass().getName(), "org.ow2.jotm.jms.JObjectFactory", null);
     }
 
+    /**
+     * A connection waiting in the pool.
+     */
+    private static class FreeConnection {
+        final JConnection con;
+        final long since;
 
+        FreeConnection(JConnection con, long since) {
+            this.con = con;
+            this.since = since;
+        }
+    }
 }
@@ -0,0 +1,53 @@
+package org.ow2.jotm.jms;
+
+/**
+ * Statistics of the JConnection pool of a JConnectionFactory,
+ * published under the name org.ow2.jotm.jms:type=JConnectionFactory,name=(factory name)
+ */
+public interface JConnectionFactoryMBean {
+
+    /**
+     * @return number of connections currently open, free ones included
+     */
+    int getOpenConnections();
+
+    /**
+     * @return number of free connections in the pool
+     */
+    int getFreeConnections();
+
+    /**
+     * @return max number of open connections, 0 if no limit
+     */
+    int getMaxConnections();
+
+    /**
+     * @return number of connections created
+     */
+    long getCreatedCount();
+
+    /**
+     * @return number of connections taken from the pool
+     */
+    long getReusedCount();
+
+    /**
+     * @return number of free connections closed by the pool
+     */
+    long getEvictedCount();
+
+    /**
+     * @return number of callers that had to wait for a connection
+     */
+    long getWaitCount();
+
+    /**
+     * @return total time (ms) spent waiting for a connection
+     */
+    long getWaitTime();
+
+    /**
+     * @return number of callers that got no connection before the timeout
+     */
+    long getTimeoutCount();
+}
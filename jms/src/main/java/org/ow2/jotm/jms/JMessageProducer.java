@@ -0,0 +1,201 @@
+package org.ow2.jotm.jms;
+
+import javax.jms.Destination;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageProducer;
+import javax.jms.Queue;
+import javax.jms.QueueSender;
+import javax.jms.Topic;
+import javax.jms.TopicPublisher;
+
+/**
+ * MessageProducer of a JSession in batched send mode.
+ * It's a wrapper above the MOM producer: inside a transaction, sends
+ * are kept by the JSession and done all together before completion.
+ * Outside transactions, sends go directly to the MOM producer.
+ * As the message is sent later, it must not be modified after send,
+ * and its JMS header fields are only set when the batch is flushed.
+ */
+public class JMessageProducer implements QueueSender, TopicPublisher {
+
+    // The MOM producer
+    protected MessageProducer producer;
+    protected JSession jsess;
+
+    /**
+     * Constructor
+     * @param jsess the JSession creating this producer
+     * @param producer the MOM producer
+     */
+    public JMessageProducer(JSession jsess, MessageProducer producer) {
+        this.jsess = jsess;
+        this.producer = producer;
+    }
+
+    // -----------------------------------------------------------------------
+    // Internal Methods
+    // -----------------------------------------------------------------------
+
+    /**
+     * Send a message now, or keep it until the transaction completes.
+     */
+    private void doSend(Destination dest, Message msg, int mode, int prio, long ttl)
+        throws JMSException {
+        PendingSend ps = new PendingSend(producer, dest, msg, mode, prio, ttl);
+        if (!jsess.deferSend(ps)) {
+            ps.send();
+        }
+    }
+
+    /**
+     * A send kept by the JSession until the transaction completes.
+     */
+    static final class PendingSend {
+        private final MessageProducer producer;
+        private final Destination dest;
+        private final Message msg;
+        private final int mode;
+        private final int prio;
+        private final long ttl;
+
+        PendingSend(MessageProducer producer, Destination dest, Message msg,
+                    int mode, int prio, long ttl) {
+            this.producer = producer;
+            this.dest = dest;
+            this.msg = msg;
+            this.mode = mode;
+            this.prio = prio;
+            this.ttl = ttl;
+        }
+
+        boolean sentBy(MessageProducer producer) {
+            return this.producer == producer;
+        }
+
+        void send() throws JMSException {
+            if (dest == null) {
+                producer.send(msg, mode, prio, ttl);
+            } else {
+                producer.send(dest, msg, mode, prio, ttl);
+            }
+        }
+    }
+
+    // -----------------------------------------------------------------------
+    // MessageProducer Implementation
+    // -----------------------------------------------------------------------
+
+    /**
+     * Flush the pending sends of this producer, then close the MOM producer.
+     */
+    public void close() throws JMSException {
+        jsess.flushSends(producer);
+        producer.close();
+    }
+
+    public int getDeliveryMode() throws JMSException {
+        return producer.getDeliveryMode();
+    }
+
+    public Destination getDestination() throws JMSException {
+        return producer.getDestination();
+    }
+
+    public boolean getDisableMessageID() throws JMSException {
+        return producer.getDisableMessageID();
+    }
+
+    public boolean getDisableMessageTimestamp() throws JMSException {
+        return producer.getDisableMessageTimestamp();
+    }
+
+    public int getPriority() throws JMSException {
+        return producer.getPriority();
+    }
+
+    public long getTimeToLive() throws JMSException {
+        return producer.getTimeToLive();
+    }
+
+    public void setDeliveryMode(int deliveryMode) throws JMSException {
+        producer.setDeliveryMode(deliveryMode);
+    }
+
+    public void setDisableMessageID(boolean value) throws JMSException {
+        producer.setDisableMessageID(value);
+    }
+
+    public void setDisableMessageTimestamp(boolean value) throws JMSException {
+        producer.setDisableMessageTimestamp(value);
+    }
+
+    public void setPriority(int priority) throws JMSException {
+        producer.setPriority(priority);
+    }
+
+    public void setTimeToLive(long timeToLive) throws JMSException {
+        producer.setTimeToLive(timeToLive);
+    }
+
+    public void send(Message message) throws JMSException {
+        doSend(null, message, producer.getDeliveryMode(), producer.getPriority(), producer.getTimeToLive());
+    }
+
+    public void send(Message message, int deliveryMode, int priority, long timeToLive)
+        throws JMSException {
+        doSend(null, message, deliveryMode, priority, timeToLive);
+    }
+
+    public void send(Destination destination, Message message) throws JMSException {
+        doSend(destination, message, producer.getDeliveryMode(), producer.getPriority(), producer.getTimeToLive());
+    }
+
+    public void send(Destination destination, Message message,
+                     int deliveryMode, int priority, long timeToLive) throws JMSException {
+        doSend(destination, message, deliveryMode, priority, timeToLive);
+    }
+
+    // -----------------------------------------------------------------------
+    // QueueSender Implementation
+    // -----------------------------------------------------------------------
+
+    public Queue getQueue() throws JMSException {
+        return ((QueueSender) producer).getQueue();
+    }
+
+    public void send(Queue queue, Message message) throws JMSException {
+        send((Destination) queue, message);
+    }
+
+    public void send(Queue queue, Message message,
+                     int deliveryMode, int priority, long timeToLive) throws JMSException {
+        send((Destination) queue, message, deliveryMode, priority, timeToLive);
+    }
+
+    // -----------------------------------------------------------------------
+    // TopicPublisher Implementation
+    // -----------------------------------------------------------------------
+
+    public Topic getTopic() throws JMSException {
+        return ((TopicPublisher) producer).getTopic();
+    }
+
+    public void publish(Message message) throws JMSException {
+        send(message);
+    }
+
+    public void publish(Message message, int deliveryMode, int priority, long timeToLive)
+        throws JMSException {
+        send(message, deliveryMode, priority, timeToLive);
+    }
+
+    public void publish(Topic topic, Message message) throws JMSException {
+        send((Destination) topic, message);
+    }
+
+    public void publish(Topic topic, Message message,
+                        int deliveryMode, int priority, long timeToLive) throws JMSException {
+        send((Destination) topic, message, deliveryMode, priority, timeToLive);
+    }
+}
@@ -8,6 +8,7 @@ import javax.jms.QueueSession;
 import javax.jms.ServerSessionPool;
 import javax.jms.XAQueueConnection;
 import javax.jms.XAQueueConnectionFactory;
+import javax.jms.XASession;
 
 import org.objectweb.util.monolog.api.Logger;
 import org.objectweb.util.monolog.api.BasicLevel;
@@ -52,6 +53,15 @@ public class JQueueConnection extends JConnection implements QueueConnection {
         this.xac = xaqc;
     }
 
+    /**
+     * Create a new XAQueueSession in the MOM.
+     * @return a newly created XAQueueSession
+     * @throws JMSException could not create the XAQueueSession
+     */
+    protected XASession createMOMXASession() throws JMSException {
+        return xaqc.createXAQueueSession();
+    }
+
     // -----------------------------------------------------------------------
     // QueueConnection implementation
     // -----------------------------------------------------------------------
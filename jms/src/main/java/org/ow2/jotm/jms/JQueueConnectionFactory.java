@@ -24,6 +24,20 @@ public class JQueueConnectionFactory extends JConnectionFactory implements Queue
         this.xaqcf = xaqcf;
     }
 
+    /**
+     * Create a new JQueueConnection.
+     * @param user user's name, null for an anonymous user
+     * @param passwd user's password
+     * @return a newly created JQueueConnection
+     * @throws JMSException - if JMS fails to create the queue connection
+     */
+    protected JConnection createJConnection(String user, String passwd) throws JMSException {
+        if (user == null) {
+            return new JQueueConnection(this, xaqcf, logger);
+        }
+        return new JQueueConnection(this, xaqcf, user, passwd, logger);
+    }
+
     // -----------------------------------------------------------------------
     // QueueConnectionFactory implementation
     // -----------------------------------------------------------------------
@@ -37,11 +51,7 @@ public class JQueueConnectionFactory extends JConnectionFactory implements Queue
      */
     public QueueConnection createQueueConnection() throws JMSException {
         logger.log(BasicLevel.DEBUG, "");
-        JQueueConnection qc = (JQueueConnection) getJConnection(null);
-        if (qc == null) {
-            qc = new JQueueConnection(this, xaqcf, logger);
-        }
-        return qc;
+        return (JQueueConnection) allocJConnection(null, null);
     }
 
     /**
@@ -56,11 +66,7 @@ public class JQueueConnectionFactory extends JConnectionFactory implements Queue
      * due to some internal error. required resources for a Queue Connection.
      */
     public QueueConnection createQueueConnection(String userName, String password) throws JMSException {
-        JQueueConnection qc = (JQueueConnection) getJConnection(userName);
-        if (qc == null) {
-            qc = new JQueueConnection(this, xaqcf, userName, password, logger);
-        }
-        return qc;
+        return (JQueueConnection) allocJConnection(userName, password);
     }
 
 
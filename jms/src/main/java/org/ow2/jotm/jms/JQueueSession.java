@@ -10,7 +10,6 @@ import javax.jms.Session;
 import javax.jms.TemporaryQueue;
 import javax.jms.XAQueueConnection;
 import javax.jms.XAQueueSession;
-import javax.transaction.RollbackException;
 import javax.transaction.SystemException;
 import javax.transaction.Transaction;
 import org.objectweb.util.monolog.api.Logger;
@@ -61,25 +60,7 @@ public class JQueueSession extends JSession implements QueueSession {
             logger.log(BasicLevel.DEBUG, "getMOMQueueSession no tx");
             return (QueueSession) sess;
         } else {
-            if (xasess == null) {
-                xasess = xaqc.createXAQueueSession();
-                if (currtx != null) {
-                    System.out.println("mixed transactions");
-                }
-                currtx = tx;
-                xares = xasess.getXAResource();
-                try {
-                    tx.enlistResource(this.getXAResource());
-                    txover = false;
-                } catch (SystemException e) {
-                    System.out.println("cannot enlist session:"+e);
-                    throw new JMSException(e.toString());
-                } catch (RollbackException e) {
-                    System.out.println("transaction rolled back");
-                    throw new JMSException(e.toString());
-                }
-            } 
-            return ((XAQueueSession)xasess).getQueueSession();
+            return ((XAQueueSession) getMOMXASession(tx)).getQueueSession();
         }
     }
     
@@ -92,7 +73,7 @@ public class JQueueSession extends JSession implements QueueSession {
      */
     public QueueBrowser createBrowser(Queue queue) throws JMSException {
         logger.log(BasicLevel.DEBUG, "");
-        return getMOMQueueSession().createBrowser(queue);
+        return browser(getMOMQueueSession().createBrowser(queue));
     }
 
     /**
@@ -100,7 +81,7 @@ public class JQueueSession extends JSession implements QueueSession {
      */
     public QueueBrowser createBrowser(Queue queue, String messageSelector) throws JMSException {
         logger.log(BasicLevel.DEBUG, "");
-        return getMOMQueueSession().createBrowser(queue, messageSelector);
+        return browser(getMOMQueueSession().createBrowser(queue, messageSelector));
     }
 
     /**
@@ -116,7 +97,7 @@ public class JQueueSession extends JSession implements QueueSession {
      */
     public QueueReceiver createReceiver(Queue queue) throws JMSException {
         logger.log(BasicLevel.DEBUG, "");
-        return getMOMQueueSession().createReceiver(queue);
+        return consumer(getMOMQueueSession().createReceiver(queue));
     }
 
     /**
@@ -124,7 +105,7 @@ public class JQueueSession extends JSession implements QueueSession {
      */
     public QueueReceiver createReceiver(Queue queue, String messageSelector) throws JMSException {
         logger.log(BasicLevel.DEBUG, "");
-        return getMOMQueueSession().createReceiver(queue, messageSelector);
+        return consumer(getMOMQueueSession().createReceiver(queue, messageSelector));
     }
     
     /**
@@ -132,7 +113,9 @@ public class JQueueSession extends JSession implements QueueSession {
      */
     public QueueSender createSender(Queue queue) throws JMSException {
         logger.log(BasicLevel.DEBUG, "");
-        return getMOMQueueSession().createSender(queue);
+        QueueSender qs = getMOMQueueSession().createSender(queue);
+        pinned = true;
+        return batchsends ? new JMessageProducer(this, qs) : qs;
     }
 
     /**
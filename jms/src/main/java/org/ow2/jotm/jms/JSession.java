@@ -1,6 +1,9 @@
 package org.ow2.jotm.jms;
 
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
 
 import javax.jms.BytesMessage;
 import javax.jms.Destination;
@@ -40,6 +43,11 @@ import org.objectweb.util.monolog.api.BasicLevel;
  */
 public class JSession implements Session, Synchronization {
 
+    /**
+     * Default for the batched send mode, false if not set.
+     */
+    public static final String BATCH_SENDS_PROPERTY = "jotm.jms.BatchSends";
+
     protected XAResource xares = null;	// The underlaying XAResource 
     protected boolean txover = true;
     protected Transaction currtx = null;
@@ -50,6 +58,19 @@ public class JSession implements Session, Synchronization {
     protected XAConnection xac;
     protected Session sess = null;     // no tx
     protected XASession xasess = null;
+    // false once a session MessageListener is set on the XASession
+    protected boolean reusable = true;
+    // true once a consumer or a producer may still use the XASession: it is
+    // then kept by this Session until closed
+    protected boolean pinned = false;
+    // consumers and browsers created on the XASession, closed before the
+    // XASession goes back to the pool
+    protected List<MessageConsumer> consumers = null;
+    protected List<QueueBrowser> browsers = null;
+
+    // Batched send mode: sends inside a transaction are done before completion
+    protected boolean batchsends = Boolean.getBoolean(BATCH_SENDS_PROPERTY);
+    protected List<JMessageProducer.PendingSend> pendingsends = null;
 
     protected Logger logger;
 
@@ -106,32 +127,220 @@ public class JSession implements Session, Synchronization {
             }
             return sess;
         } else {
-            if (xasess == null) {
-                xasess = xac.createXASession();
-                if (currtx != null) {
-                    System.out.println("getMOMSession: mixed transactions");
+            return getMOMXASession(tx).getSession();
+        }
+    }
+
+    /**
+     * Get the XASession used inside the transaction.
+     * The XASession is taken from the connection pool, and given back
+     * when the transaction completes, unless a consumer or a producer
+     * created on it may still use it: it is then kept until this Session
+     * is closed.
+     * It is enlisted once in each transaction.
+     * @param tx the current transaction
+     * @return the XASession enlisted in tx
+     * @throws JMSException could not get or enlist the XASession,
+     * or this Session is used in another transaction
+     */
+    protected XASession getMOMXASession(Transaction tx) throws JMSException {
+        if (xasess == null) {
+            xasess = jconn.getSessionPool().acquire();
+            xares = xasess.getXAResource();
+        }
+        if (currtx == null) {
+            currtx = tx;
+            try {
+                tx.enlistResource(xares);
+                tx.registerSynchronization(this);
+                txover = false;
+            } catch (SystemException e) {
+                throw new JMSException(e.toString());
+            } catch (RollbackException e) {
+                throw new JMSException(e.toString());
+            }
+        } else if (!currtx.equals(tx)) {
+            logger.log(BasicLevel.ERROR, "Session already used in transaction " + currtx
+                       + ", cannot be used in " + tx);
+            throw new javax.jms.IllegalStateException("Session already used in another transaction");
+        }
+        return xasess;
+    }
+
+    /**
+     * Keep a send until the transaction completes, in batched send mode.
+     * The XASession is enlisted in the current transaction if not done yet.
+     * @param ps the send
+     * @return false if the send must be done now.
+     * @throws JMSException could not enlist the XASession
+     */
+    protected synchronized boolean deferSend(JMessageProducer.PendingSend ps) throws JMSException {
+        if (!batchsends) {
+            return false;
+        }
+        Transaction tx = null;
+        try {
+            tx = tm.getTransaction();
+        } catch (SystemException e) {
+            logger.log(BasicLevel.ERROR, "cannot get Transaction: " + e);
+            throw new JMSException("JSession: cannot get Transaction: " + e);
+        }
+        if (tx == null) {
+            return false;
+        }
+        getMOMXASession(tx);
+        if (pendingsends == null) {
+            pendingsends = new ArrayList<JMessageProducer.PendingSend>();
+        }
+        pendingsends.add(ps);
+        return true;
+    }
+
+    /**
+     * Do all the sends kept for the current transaction.
+     * @throws JMSException a send failed
+     */
+    protected void flushSends() throws JMSException {
+        List<JMessageProducer.PendingSend> list;
+        synchronized (this) {
+            list = pendingsends;
+            pendingsends = null;
+        }
+        if (list != null) {
+            logger.log(BasicLevel.DEBUG, "flush " + list.size() + " sends");
+            for (JMessageProducer.PendingSend ps : list) {
+                ps.send();
+            }
+        }
+    }
+
+    /**
+     * Do the sends kept for the current transaction made with this MOM producer,
+     * before it is closed. The sends of the other producers are left pending.
+     * @param producer the MOM producer
+     * @throws JMSException a send failed
+     */
+    protected void flushSends(MessageProducer producer) throws JMSException {
+        List<JMessageProducer.PendingSend> list = new ArrayList<JMessageProducer.PendingSend>();
+        synchronized (this) {
+            if (pendingsends == null) {
+                return;
+            }
+            for (Iterator<JMessageProducer.PendingSend> it = pendingsends.iterator(); it.hasNext();) {
+                JMessageProducer.PendingSend ps = it.next();
+                if (ps.sentBy(producer)) {
+                    list.add(ps);
+                    it.remove();
+                }
+            }
+        }
+        for (JMessageProducer.PendingSend ps : list) {
+            ps.send();
+        }
+    }
+
+    /**
+     * Set the batched send mode: inside a transaction, messages sent with
+     * producers created afterwards are kept until the transaction completes,
+     * then sent together, or dropped if the transaction rolls back.
+     * A message must not be modified once sent in this mode.
+     * @param batchsends true to batch the sends
+     */
+    public void setBatchSends(boolean batchsends) {
+        this.batchsends = batchsends;
+    }
+
+    /**
+     * @return true if in batched send mode
+     */
+    public boolean isBatchSends() {
+        return batchsends;
+    }
+
+    /**
+     * Keep a consumer, to close it when the XASession is given back.
+     * @param mc the consumer created on the MOM session
+     * @return mc
+     */
+    protected <C extends MessageConsumer> C consumer(C mc) {
+        pinned = true;
+        if (consumers == null) {
+            consumers = new ArrayList<MessageConsumer>();
+        }
+        consumers.add(mc);
+        return mc;
+    }
+
+    /**
+     * Keep a browser, to close it when the XASession is given back.
+     * @param qb the browser created on the MOM session
+     * @return qb
+     */
+    protected QueueBrowser browser(QueueBrowser qb) {
+        pinned = true;
+        if (browsers == null) {
+            browsers = new ArrayList<QueueBrowser>();
+        }
+        browsers.add(qb);
+        return qb;
+    }
+
+    /**
+     * Close the consumers and browsers created by this Session.
+     * @return false if one of them could not be closed
+     */
+    private boolean closeConsumers() {
+        boolean ok = true;
+        if (consumers != null) {
+            for (MessageConsumer mc : consumers) {
+                try {
+                    mc.close();
+                } catch (JMSException e) {
+                    logger.log(BasicLevel.DEBUG, "cannot close consumer: " + e);
+                    ok = false;
                 }
-                currtx = tx;
-                xares = xasess.getXAResource();
+            }
+            consumers = null;
+        }
+        if (browsers != null) {
+            for (QueueBrowser qb : browsers) {
                 try {
-                    tx.enlistResource(xares);
-                    txover = false;
-                } catch (SystemException e) {
-                    throw new JMSException(e.toString());
-                } catch (RollbackException e) {
-                    throw new JMSException(e.toString());
+                    qb.close();
+                } catch (JMSException e) {
+                    logger.log(BasicLevel.DEBUG, "cannot close browser: " + e);
+                    ok = false;
                 }
-            } 
-            return xasess.getSession();
+            }
+            browsers = null;
         }
+        return ok;
     }
 
-    protected void MOMSessionClose() {
-        try {
-            if (xasess != null) {
+    /**
+     * Give the XASession back to the pool for the next transactions,
+     * once the consumers created on it are closed. It is closed instead
+     * if a session MessageListener was set, or a consumer could not be
+     * closed.
+     * @throws JMSException could not close the XASession
+     */
+    protected void releaseXASession() throws JMSException {
+        boolean closedConsumers = closeConsumers();
+        if (xasess != null) {
+            if (reusable && closedConsumers) {
+                jconn.getSessionPool().release(xasess);
+            } else {
                 xasess.close();
-                xasess = null;
             }
+            xasess = null;
+            xares = null;
+            reusable = true;
+            pinned = false;
+        }
+    }
+
+    protected void MOMSessionClose() {
+        try {
+            releaseXASession();
             if (sess != null) {
                 sess.close();
                 sess = null;
@@ -166,6 +375,8 @@ public class JSession implements Session, Synchronization {
             if (currtx == null) {
                 System.out.println("should be in a tx");
             } else {
+                // pending sends must be done before the end of the branch
+                flushSends();
                 try {
                     currtx.delistResource(xares, XAResource.TMSUCCESS);
                 } catch (SystemException e) {
@@ -189,7 +400,7 @@ public class JSession implements Session, Synchronization {
     public QueueBrowser createBrowser(Queue queue)
         throws JMSException {
         logger.log(BasicLevel.DEBUG, "");
-        return getMOMSession().createBrowser(queue);
+        return browser(getMOMSession().createBrowser(queue));
     }
 
     /**
@@ -198,7 +409,7 @@ public class JSession implements Session, Synchronization {
     public QueueBrowser createBrowser(Queue queue, java.lang.String messageSelector)
         throws JMSException {
         logger.log(BasicLevel.DEBUG, "");
-        return getMOMSession().createBrowser(queue, messageSelector);
+        return browser(getMOMSession().createBrowser(queue, messageSelector));
     }
 
     /**
@@ -216,7 +427,7 @@ public class JSession implements Session, Synchronization {
     public MessageConsumer createConsumer(Destination destination)
         throws JMSException {
         logger.log(BasicLevel.DEBUG, "");
-        return getMOMSession().createConsumer(destination);
+        return consumer(getMOMSession().createConsumer(destination));
     }
 
 
@@ -227,7 +438,7 @@ public class JSession implements Session, Synchronization {
                                           String messageSelector)
         throws JMSException {
         logger.log(BasicLevel.DEBUG, "");
-        return getMOMSession().createConsumer(destination, messageSelector);
+        return consumer(getMOMSession().createConsumer(destination, messageSelector));
     }
 
     /**
@@ -238,7 +449,7 @@ public class JSession implements Session, Synchronization {
                                           boolean NoLocal)
         throws JMSException {
         logger.log(BasicLevel.DEBUG, "");
-        return getMOMSession().createConsumer(destination, messageSelector,NoLocal );
+        return consumer(getMOMSession().createConsumer(destination, messageSelector,NoLocal ));
     }
 
     /**
@@ -248,7 +459,7 @@ public class JSession implements Session, Synchronization {
                                                    String name)
         throws JMSException {
         logger.log(BasicLevel.DEBUG, "");
-        return getMOMSession().createDurableSubscriber(topic, name);
+        return consumer(getMOMSession().createDurableSubscriber(topic, name));
     }
 
     /**
@@ -260,7 +471,7 @@ public class JSession implements Session, Synchronization {
                                                    boolean noLocal)
         throws JMSException {
         logger.log(BasicLevel.DEBUG, "");
-        return getMOMSession().createDurableSubscriber(topic, name, messageSelector, noLocal);
+        return consumer(getMOMSession().createDurableSubscriber(topic, name, messageSelector, noLocal));
     }
 
     /**
@@ -301,7 +512,9 @@ public class JSession implements Session, Synchronization {
     public MessageProducer createProducer(Destination destination)
         throws JMSException {
         logger.log(BasicLevel.DEBUG, "");
-        return getMOMSession().createProducer(destination);  
+        MessageProducer mp = getMOMSession().createProducer(destination);
+        pinned = true;
+        return batchsends ? new JMessageProducer(this, mp) : mp;
     }
 
     /**
@@ -421,6 +634,7 @@ public class JSession implements Session, Synchronization {
      */
     public void setMessageListener(MessageListener listener) throws JMSException {
         logger.log(BasicLevel.DEBUG, "");
+        reusable = false;
         getMOMSession().setMessageListener(listener);
     }
 
@@ -445,6 +659,18 @@ public class JSession implements Session, Synchronization {
      */	
     public void beforeCompletion() {
         logger.log(BasicLevel.DEBUG, "");
+        try {
+            flushSends();
+        } catch (JMSException e) {
+            logger.log(BasicLevel.ERROR, "cannot flush the pending sends: " + e);
+            try {
+                if (currtx != null) {
+                    currtx.setRollbackOnly();
+                }
+            } catch (SystemException se) {
+                logger.log(BasicLevel.ERROR, "cannot set rollback only: " + se);
+            }
+        }
     }
 
     /**
@@ -455,8 +681,21 @@ public class JSession implements Session, Synchronization {
     public void afterCompletion(int status) {
         logger.log(BasicLevel.DEBUG, "");
         txover = true;
+        currtx = null;
+        // nothing left if committed, dropped if rolled back
+        synchronized (this) {
+            pendingsends = null;
+        }
         if (closed) {
             PhysicalClose();
+        } else if (reusable && !pinned) {
+            // nothing created on the XASession is left: the next
+            // transaction takes one from the pool again
+            try {
+                releaseXASession();
+            } catch (JMSException e) {
+                logger.log(BasicLevel.ERROR, "cannot release the XASession: " + e);
+            }
         }
     }
 
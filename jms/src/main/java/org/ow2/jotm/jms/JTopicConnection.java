@@ -7,6 +7,7 @@ import javax.jms.Topic;
 import javax.jms.TopicConnection;
 import javax.jms.TopicSession;
 import javax.jms.XAConnection;
+import javax.jms.XASession;
 import javax.jms.XATopicConnection;
 import javax.jms.XATopicConnectionFactory;
 
@@ -49,6 +50,15 @@ public class JTopicConnection extends JConnection implements TopicConnection {
         this.xac = (XAConnection) xatc;
     }
 
+    /**
+     * Create a new XATopicSession in the MOM.
+     * @return a newly created XATopicSession
+     * @throws JMSException could not create the XATopicSession
+     */
+    protected XASession createMOMXASession() throws JMSException {
+        return xatc.createXATopicSession();
+    }
+
     // -----------------------------------------------------------------------
     // TopicConnection implementation
     // -----------------------------------------------------------------------
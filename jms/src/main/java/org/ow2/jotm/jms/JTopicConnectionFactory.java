@@ -26,6 +26,20 @@ public class JTopicConnectionFactory extends JConnectionFactory implements Topic
         this.xatcf = xatcf;
     }
 
+    /**
+     * Create a new JTopicConnection.
+     * @param user user's name, null for an anonymous user
+     * @param passwd user's password
+     * @return a newly created JTopicConnection
+     * @throws JMSException - if JMS fails to create the topic connection
+     */
+    protected JConnection createJConnection(String user, String passwd) throws JMSException {
+        if (user == null) {
+            return new JTopicConnection(this, xatcf, logger);
+        }
+        return new JTopicConnection(this, xatcf, user, passwd, logger);
+    }
+
     // -----------------------------------------------------------------------
     // TopicConnectionFactory implementation
     // -----------------------------------------------------------------------
@@ -38,13 +52,8 @@ public class JTopicConnectionFactory extends JConnectionFactory implements Topic
      * Connection due to some internal error.
      */
     public TopicConnection createTopicConnection() throws JMSException {
-        // Try to reuse a connection from the pool.
-        // Create a new one if no connection available.
-        JTopicConnection tc = (JTopicConnection) getJConnection(null);
-        if (tc == null) {
-            tc = new JTopicConnection(this, xatcf, logger);
-        }
-        return tc;
+        // Reuse a connection from the pool if possible.
+        return (JTopicConnection) allocJConnection(null, null);
     }
 
     /**
@@ -60,13 +69,8 @@ public class JTopicConnectionFactory extends JConnectionFactory implements Topic
      */
     public TopicConnection createTopicConnection(String userName, String password) 
         throws JMSException {
-        // Try to reuse a connection from the pool.
-        // Create a new one if no connection available.
-        JTopicConnection tc = (JTopicConnection) getJConnection(userName);
-        if (tc == null) {
-            tc = new JTopicConnection(this, xatcf, userName, password, logger);
-        }
-        return tc;
+        // Reuse a connection from the pool if possible.
+        return (JTopicConnection) allocJConnection(userName, password);
     }
 
 } 
@@ -10,7 +10,6 @@ import javax.jms.TopicSession;
 import javax.jms.TopicSubscriber;
 import javax.jms.XATopicConnection;
 import javax.jms.XATopicSession;
-import javax.transaction.RollbackException;
 import javax.transaction.SystemException;
 import javax.transaction.Transaction;
 
@@ -59,23 +58,7 @@ public class JTopicSession extends JSession implements TopicSession {
             }
             return (TopicSession) sess;
         } else {
-            if (xasess == null) {
-                xasess = xatc.createXATopicSession();
-                if (currtx != null) {
-                    System.out.println("mixed transactions");
-                }
-                currtx = tx;
-                xares = xasess.getXAResource();
-                try {
-                    tx.enlistResource(this.getXAResource());
-                    txover = false;
-                } catch (SystemException e) {
-                    throw new JMSException(e.toString());
-                } catch (RollbackException e) {
-                    throw new JMSException(e.toString());
-                }
-            } 
-            return ((XATopicSession)xasess).getTopicSession();
+            return ((XATopicSession) getMOMXASession(tx)).getTopicSession();
         }
     }
 
@@ -96,7 +79,7 @@ public class JTopicSession extends JSession implements TopicSession {
      */
     public TopicSubscriber createSubscriber(Topic topic) throws JMSException {
         logger.log(BasicLevel.DEBUG, "");
-        return getMOMTopicSession().createSubscriber(topic);
+        return consumer(getMOMTopicSession().createSubscriber(topic));
     }
     
     /**
@@ -106,7 +89,7 @@ public class JTopicSession extends JSession implements TopicSession {
                                             String messageSelector, 
                                             boolean noLocal) throws JMSException {
         logger.log(BasicLevel.DEBUG, "");
-        return getMOMTopicSession().createSubscriber(topic, messageSelector, noLocal);
+        return consumer(getMOMTopicSession().createSubscriber(topic, messageSelector, noLocal));
     }
 
     /**
@@ -115,7 +98,7 @@ public class JTopicSession extends JSession implements TopicSession {
     public TopicSubscriber createDurableSubscriber(Topic topic, 
                                                    String name) throws JMSException {
         logger.log(BasicLevel.DEBUG, "");
-        return getMOMTopicSession().createDurableSubscriber(topic, name);
+        return consumer(getMOMTopicSession().createDurableSubscriber(topic, name));
     }
  
     /**
@@ -126,7 +109,7 @@ public class JTopicSession extends JSession implements TopicSession {
                                                    String messageSelector, 
                                                    boolean noLocal) throws JMSException {
         logger.log(BasicLevel.DEBUG, "");
-        return getMOMTopicSession().createDurableSubscriber(topic, name, messageSelector, noLocal);
+        return consumer(getMOMTopicSession().createDurableSubscriber(topic, name, messageSelector, noLocal));
     }
    
     /**
@@ -134,7 +117,9 @@ public class JTopicSession extends JSession implements TopicSession {
      */
     public TopicPublisher createPublisher(Topic topic) throws JMSException {
         logger.log(BasicLevel.DEBUG, "");
-        return getMOMTopicSession().createPublisher(topic);
+        TopicPublisher tp = getMOMTopicSession().createPublisher(topic);
+        pinned = true;
+        return batchsends ? new JMessageProducer(this, tp) : tp;
     }
 
     /**
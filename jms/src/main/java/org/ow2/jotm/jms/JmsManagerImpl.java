@@ -228,14 +228,17 @@ public class JmsManagerImpl implements JmsManager {
         // Before stopping the MOM clean up the connection pools
         if (cf != null) {
             ((JConnectionFactory) cf).cleanPool();
+            ((JConnectionFactory) cf).unregister();
         }
 
         if (tcf != null) {
             ((JConnectionFactory) tcf).cleanPool();
+            ((JConnectionFactory) tcf).unregister();
         }
 
         if (qcf != null) {
             ((JConnectionFactory) qcf).cleanPool();
+            ((JConnectionFactory) qcf).unregister();
         }
 
         // Stop the MOM
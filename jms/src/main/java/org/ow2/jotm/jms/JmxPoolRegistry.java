@@ -0,0 +1,63 @@
+package org.ow2.jotm.jms;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+import org.objectweb.util.monolog.api.Logger;
+import org.objectweb.util.monolog.api.BasicLevel;
+
+/**
+ * Publish the statistics of the JMS pools as MBeans of the platform MBeanServer.
+ * The statistics are only informative: a failure is logged, never thrown.
+ */
+public class JmxPoolRegistry {
+
+    /**
+     * Domain of the MBeans
+     */
+    public static final String DOMAIN = "org.ow2.jotm.jms";
+
+    private JmxPoolRegistry() {
+    }
+
+    /**
+     * Register a pool, replacing any MBean already registered under this name.
+     * @param pool the pool
+     * @param mbeanInterface the management interface of the pool
+     * @param name name of the MBean
+     * @param logger logger of the pool
+     */
+    public static <T> void register(T pool, Class<T> mbeanInterface, String name, Logger logger) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName oname = new ObjectName(name);
+            if (server.isRegistered(oname)) {
+                server.unregisterMBean(oname);
+            }
+            server.registerMBean(new StandardMBean(pool, mbeanInterface), oname);
+            logger.log(BasicLevel.DEBUG, "registered as " + name);
+        } catch (Exception e) {
+            logger.log(BasicLevel.WARN, "cannot register " + name + ": " + e);
+        }
+    }
+
+    /**
+     * Unregister a pool.
+     * @param name name of the MBean
+     * @param logger logger of the pool
+     */
+    public static void unregister(String name, Logger logger) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName oname = new ObjectName(name);
+            if (server.isRegistered(oname)) {
+                server.unregisterMBean(oname);
+            }
+        } catch (Exception e) {
+            logger.log(BasicLevel.WARN, "cannot unregister " + name + ": " + e);
+        }
+    }
+}
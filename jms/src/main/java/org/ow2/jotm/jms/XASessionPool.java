@@ -0,0 +1,232 @@
+package org.ow2.jotm.jms;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jms.JMSException;
+import javax.jms.XASession;
+
+import org.objectweb.util.monolog.api.Logger;
+import org.objectweb.util.monolog.api.BasicLevel;
+
+/**
+ * Pool of idle XASessions of a JConnection.
+ * A JConnection belongs to one user, so does its pool: a JSession takes
+ * an XASession from here when it first works inside a transaction,
+ * and gives it back once the transaction is completed, or once the JSession
+ * is closed if a consumer or a producer still uses the XASession. The
+ * consumers and browsers of a JSession are closed before its XASession is
+ * given back. An XASession on which a session MessageListener was set is
+ * closed instead: the listener cannot be detached.
+ * <p>
+ * At most jotm.jms.SessionMaxIdle sessions are kept idle; the number of
+ * sessions in use is not bounded. Sessions idle for more than the idle
+ * timeout are closed when the pool is next used: there is no background
+ * sweep, so the idle sessions of a connection no longer used stay open
+ * until the connection is closed.
+ * <p>
+ * The statistics of the pool are published as a MBean while the connection is open.
+ */
+public class XASessionPool implements XASessionPoolMBean {
+
+    /**
+     * Time (ms) an XASession may stay idle in the pool before being closed.
+     */
+    public static final String IDLE_TIMEOUT_PROPERTY = "jotm.jms.SessionIdleTimeout";
+
+    /**
+     * Max number of idle XASessions kept per connection.
+     */
+    public static final String MAX_IDLE_PROPERTY = "jotm.jms.SessionMaxIdle";
+
+    private static final long DEFAULT_IDLE_TIMEOUT = 60000L;
+    private static final int DEFAULT_MAX_IDLE = 16;
+
+    // Numbers the pools in the names of their MBeans.
+    private static final AtomicInteger poolCount = new AtomicInteger();
+
+    private final JConnection jconn;
+    private final Logger logger;
+    private final long idleTimeout;
+    private final int maxIdle;
+    private final String mbeanName;
+
+    // Idle sessions, most recently released first.
+    private final LinkedList<IdleSession> idle = new LinkedList<IdleSession>();
+    private boolean closed = false;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong waitNanos = new AtomicLong();
+
+    /**
+     * Constructor
+     * @param jconn the JConnection creating the XASessions
+     */
+    public XASessionPool(JConnection jconn, Logger logger) {
+        this.jconn = jconn;
+        this.logger = logger;
+        idleTimeout = Long.getLong(IDLE_TIMEOUT_PROPERTY, DEFAULT_IDLE_TIMEOUT).longValue();
+        maxIdle = Integer.getInteger(MAX_IDLE_PROPERTY, DEFAULT_MAX_IDLE).intValue();
+        mbeanName = JmxPoolRegistry.DOMAIN + ":type=XASessionPool,factory=" + jconn.jcf.name
+            + ",id=" + poolCount.incrementAndGet();
+        JmxPoolRegistry.register(this, XASessionPoolMBean.class, mbeanName, logger);
+    }
+
+    /**
+     * Get an XASession, reusing an idle one if possible.
+     * @return an XASession not used by any JSession
+     * @throws JMSException could not create the XASession
+     */
+    public XASession acquire() throws JMSException {
+        long start = System.nanoTime();
+        XASession xasess = null;
+        List<XASession> expired;
+        synchronized (this) {
+            expired = evict(System.currentTimeMillis());
+            if (!idle.isEmpty()) {
+                xasess = idle.removeFirst().session;
+            }
+        }
+        closeAll(expired);
+        try {
+            if (xasess != null) {
+                hits.incrementAndGet();
+            } else {
+                misses.incrementAndGet();
+                xasess = jconn.createMOMXASession();
+            }
+        } finally {
+            waitNanos.addAndGet(System.nanoTime() - start);
+        }
+        return xasess;
+    }
+
+    /**
+     * Give back an XASession once its transaction is over.
+     * The session is closed if the pool is full or closed.
+     * @param xasess the XASession to give back
+     */
+    public void release(XASession xasess) {
+        boolean pooled = false;
+        List<XASession> expired;
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            expired = evict(now);
+            if (!closed && idle.size() < maxIdle) {
+                idle.addFirst(new IdleSession(xasess, now));
+                pooled = true;
+            }
+        }
+        closeAll(expired);
+        if (!pooled) {
+            close(xasess);
+        }
+    }
+
+    /**
+     * Close all idle sessions. Sessions released later are closed at once.
+     */
+    public void close() {
+        List<XASession> all = new LinkedList<XASession>();
+        synchronized (this) {
+            if (!closed) {
+                JmxPoolRegistry.unregister(mbeanName, logger);
+            }
+            closed = true;
+            for (IdleSession is : idle) {
+                all.add(is.session);
+            }
+            idle.clear();
+        }
+        closeAll(all);
+    }
+
+    /**
+     * @return number of XASessions taken from the pool
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * @return number of XASessions created because the pool was empty
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * @return number of idle XASessions closed by the idle timeout
+     */
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    /**
+     * @return total time (ms) JSessions waited for an XASession, creation included
+     */
+    public long getWaitTime() {
+        return waitNanos.get() / 1000000L;
+    }
+
+    /**
+     * @return number of XASessions currently idle in the pool
+     */
+    public synchronized int getIdleCount() {
+        return idle.size();
+    }
+
+    /**
+     * Remove the sessions idle for too long. Must be called with the lock held.
+     * @param now current time
+     * @return the sessions to be closed, or null
+     */
+    private List<XASession> evict(long now) {
+        List<XASession> expired = null;
+        // oldest sessions are at the end of the list
+        while (!idle.isEmpty() && now - idle.getLast().released >= idleTimeout) {
+            IdleSession is = idle.removeLast();
+            if (expired == null) {
+                expired = new LinkedList<XASession>();
+            }
+            expired.add(is.session);
+        }
+        if (expired != null) {
+            evictions.addAndGet(expired.size());
+        }
+        return expired;
+    }
+
+    private void closeAll(List<XASession> list) {
+        if (list != null) {
+            for (XASession xasess : list) {
+                close(xasess);
+            }
+        }
+    }
+
+    private void close(XASession xasess) {
+        try {
+            xasess.close();
+        } catch (JMSException e) {
+            logger.log(BasicLevel.DEBUG, "cannot close XASession: " + e);
+        }
+    }
+
+    /**
+     * An XASession waiting in the pool.
+     */
+    private static class IdleSession {
+        final XASession session;
+        final long released;
+
+        IdleSession(XASession session, long released) {
+            this.session = session;
+            this.released = released;
+        }
+    }
+}
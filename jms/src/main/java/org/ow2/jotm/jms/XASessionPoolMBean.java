@@ -0,0 +1,34 @@
+package org.ow2.jotm.jms;
+
+/**
+ * Statistics of the XASession pool of a JConnection, published under the name
+ * org.ow2.jotm.jms:type=XASessionPool,factory=(factory name),id=(pool number)
+ * while the connection is open.
+ */
+public interface XASessionPoolMBean {
+
+    /**
+     * @return number of XASessions taken from the pool
+     */
+    long getHitCount();
+
+    /**
+     * @return number of XASessions created because the pool was empty
+     */
+    long getMissCount();
+
+    /**
+     * @return number of idle XASessions closed by the idle timeout
+     */
+    long getEvictionCount();
+
+    /**
+     * @return total time (ms) JSessions waited for an XASession, creation included
+     */
+    long getWaitTime();
+
+    /**
+     * @return number of XASessions currently idle in the pool
+     */
+    int getIdleCount();
+}